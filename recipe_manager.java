@@ -1,39 +1,131 @@
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.*;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 class Recipe {
+    // Popularity runs 0 (unrated) to MAX_POPULARITY; the histogram and ranking rely on the cap
+    static final int MAX_POPULARITY = 10;
 
-    private String name;
-    private String cuisine;
-    private List<String> ingredients;
-    private int cookingTime;
-    private int servings;
-    private int popularity;
+    private final String name;
+    private final String cuisine;
+    private final List<String> ingredients;
+    private final int cookingTime;
+    private final int servings;
+    private final int popularity;
 
+    // Details that validate rejects throw IllegalArgumentException, so a Recipe is never left
+    // half-built with null fields. Code handling user input calls validate first.
     public Recipe(String name, String cuisine, List<String> ingredients, int cookingTime, int servings,
             int popularity) {
-        try {
-            if (name.isEmpty() || cuisine.isEmpty() || ingredients.isEmpty()) {
-                throw new IllegalArgumentException("Invalid input: Recipe details cannot be null or empty");
-            }
-            this.name = name;
-            this.cuisine = cuisine;
-            this.ingredients = ingredients;
-            this.cookingTime = cookingTime;
-            this.servings = servings;
-            this.popularity = popularity;
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+        RecipeError error = validate(name, cuisine, ingredients, popularity);
+        if (error != null) {
+            RecipeMetrics.CREATE.error();
+            throw new InvalidRecipeException(error);
+        }
+        this.name = name;
+        this.cuisine = cuisine;
+        this.ingredients = ingredients;
+        this.cookingTime = cookingTime;
+        this.servings = servings;
+        this.popularity = popularity;
+    }
+
+    // Returns why the details cannot make a recipe, or null when they can. Bulk loaders and the
+    // console call this first so bad input is rejected without constructing or throwing anything.
+    static RecipeError validate(String name, String cuisine, List<String> ingredients, int popularity) {
+        if (name == null || name.isBlank()) {
+            return RecipeError.MISSING_NAME;
+        }
+        if (cuisine == null || cuisine.isBlank()) {
+            return RecipeError.MISSING_CUISINE;
+        }
+        if (ingredients == null || ingredients.isEmpty()) {
+            return RecipeError.MISSING_INGREDIENTS;
+        }
+        if (popularity < 0 || popularity > MAX_POPULARITY) {
+            return RecipeError.BAD_POPULARITY;
         }
+        return null;
     }
 
     // getters method is used to get respective values by return
@@ -67,111 +159,606 @@ class Recipe {
                 String.join(", ", ingredients), cookingTime, servings, popularity);
     }
 
-    public String getCookingTime() {
-        // TODO Auto-generated method stub
-        return null;
+    public int getCookingTime() {
+        return cookingTime;
     }
 
-    public Object getServings() {
-        // TODO Auto-generated method stub
-        return null;
+    public int getServings() {
+        return servings;
     }
 
 }
 
+// A node's links are set once, before the node is reachable from a published root, and never
+// change after that: a write copies the nodes on its path instead, so every root a reader ever
+// saw still describes a complete, balanced tree.
 class RecipeNode {
-    Recipe recipe;
+    final Recipe recipe;
+    final String key; // case-folded name, computed once so lookups never fold the stored side again
     RecipeNode left, right;
+    int height;
+    int size; // nodes in this subtree, for rank/select
+    int id; // dense id handed to secondary indexes, assigned by RecipeBST on insert
 
     // constructor to pass values
     public RecipeNode(Recipe recipe) {
-        try {
-            if (recipe == null) {
-                throw new IllegalArgumentException("Recipe cannot be null");
+        if (recipe == null) {
+            throw new IllegalArgumentException("Recipe cannot be null");
+        }
+        this.recipe = recipe;
+        this.key = RecipeBST.foldKey(recipe.getName());
+        left = right = null;
+        height = 1;
+        size = 1;
+    }
+
+    // Copy of entry's recipe, key and id with new children
+    RecipeNode(RecipeNode entry, RecipeNode left, RecipeNode right) {
+        this.recipe = entry.recipe;
+        this.key = entry.key;
+        this.id = entry.id;
+        this.left = left;
+        this.right = right;
+        this.height = Math.max(left == null ? 0 : left.height, right == null ? 0 : right.height) + 1;
+        this.size = (left == null ? 0 : left.size) + (right == null ? 0 : right.size) + 1;
+    }
+}
+
+// Why recipe details were rejected. Validation hands these back as plain values; the importer
+// tallies them per batch.
+enum RecipeError {
+    MISSING_NAME("Recipe name cannot be null or empty"),
+    MISSING_CUISINE("Cuisine cannot be null or empty"),
+    MISSING_INGREDIENTS("Ingredients cannot be null or empty"),
+    BAD_POPULARITY("Popularity must be between 0 and " + Recipe.MAX_POPULARITY),
+    MALFORMED_ROW("Row could not be parsed");
+
+    private final String message;
+
+    RecipeError(String message) {
+        this.message = message;
+    }
+
+    String message() {
+        return message;
+    }
+}
+
+// Thrown where a rejected recipe cannot be returned as a value (constructors, parsers). It carries
+// the error code and skips the stack trace, which says nothing the code does not.
+class InvalidRecipeException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    final RecipeError error;
+
+    InvalidRecipeException(RecipeError error) {
+        super(error.message());
+        this.error = error;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
+
+// AVL tree ordered by the case-folded recipe name. Height stays within 1.44 log2(n), so
+// sorted bulk input no longer degenerates into a list, and every operation is iterative.
+// The tree is persistent: a write copies the O(log n) nodes on its path, shares everything
+// else with the previous version and publishes the new root with one volatile write. Readers
+// never lock; each read works on the root it found, and snapshot() hands out that root for
+// reads that must agree with each other, such as an export. Writers serialize on a mutex.
+class RecipeBST implements Iterable<Recipe> {
+    // An AVL tree of height 64 would need more nodes than fit in memory
+    private static final int MAX_HEIGHT = 64;
+    static final RecipeOrder NAME_ORDER = RecipeOrder.by(RecipeField.NAME);
+    static final Comparator<RecipeNode> KEY_ORDER = (a, b) -> a.key.compareTo(b.key);
+
+    private volatile RecipeNode root;
+    private final ReentrantLock writer = new ReentrantLock();
+    // Root-to-leaf path of the current write and the side taken at each step, reused since
+    // writers are exclusive
+    private final RecipeNode[] path = new RecipeNode[MAX_HEIGHT];
+    private final boolean[] wentLeft = new boolean[MAX_HEIGHT];
+    // Dense recipe ids; ids of deleted recipes are reused so id-indexed arrays stay compact.
+    // Written before the root that covers them is published, so a reader that has read the
+    // root sees them.
+    private Recipe[] recipesById = new Recipe[16];
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId;
+    private final List<RecipeIndexListener> listeners = new CopyOnWriteArrayList<>();
+    // Bumped on every delete, so holders of recipe references can tell when to re-check them
+    private volatile long deletions;
+
+    // Folds each char exactly like String.compareToIgnoreCase does, so comparing folded keys
+    // with compareTo gives the same order the tree always used
+    static String foldKey(String name) {
+        char[] folded = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char f = fold(c);
+            if (f != c) {
+                if (folded == null) {
+                    folded = name.toCharArray();
+                }
+                folded[i] = f;
             }
+        }
+        return folded == null ? name : new String(folded);
+    }
 
-            this.recipe = recipe;
-            left = right = null;
-        } catch (IllegalArgumentException e) {
+    static char fold(char c) {
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    // Same result as foldKey(name).compareTo(key), folding as it goes so lookups by a
+    // caller's name never build a folded copy
+    static int compareFolded(String name, String key) {
+        int n = Math.min(name.length(), key.length());
+        for (int i = 0; i < n; i++) {
+            char f = fold(name.charAt(i));
+            char k = key.charAt(i);
+            if (f != k) {
+                return f - k;
+            }
+        }
+        return name.length() - key.length();
+    }
 
-            System.err.println(e.getMessage());
+    // The current version of the catalog. It never changes, however many writes follow, and
+    // stays readable for as long as it is held.
+    public Snapshot snapshot() {
+        return new Snapshot(root);
+    }
 
+    // Returns false, without adding anything, for null or a name already in the tree
+    public boolean insert(Recipe recipe) {
+        if (recipe == null) {
+            RecipeMetrics.INSERT.error();
+            return false;
+        }
+        long start = RecipeMetrics.start();
+        RecipeNode node = new RecipeNode(recipe);
+        boolean added;
+        writer.lock();
+        try {
+            added = insertNode(node);
+        } finally {
+            writer.unlock();
+            RecipeMetrics.INSERT.stop(start);
+        }
+        if (!added) {
+            RecipeMetrics.INSERT.miss();
         }
+        return added;
     }
-}
 
-class RecipeBST {
-    static RecipeNode root;
-    static List<Recipe> recipes = new ArrayList<>();
+    // Publishes a root with the node added and tells the listeners. Returns false when a recipe
+    // with the same name already exists (duplicates are ignored).
+    private boolean insertNode(RecipeNode node) {
+        int depth = 0;
+        RecipeNode current = root;
+        while (current != null) {
+            int cmp = node.key.compareTo(current.key);
+            if (cmp == 0) {
+                clearPath(depth);
+                return false;
+            }
+            path[depth] = current;
+            wentLeft[depth++] = cmp < 0;
+            current = cmp < 0 ? current.left : current.right;
+        }
+        node.id = allocateId(node.recipe);
+        root = copyPath(depth, node);
+        inserted(node);
+        return true;
+    }
 
-    public void insert(Recipe recipe) {
+    // Inserts a batch under a single write lock; returns how many were new (nulls, names already
+    // in the tree and repeats within the batch are skipped, the first one wins). The batch is
+    // sorted in parallel before the lock is taken. A batch that is large next to the tree is
+    // merged with the existing nodes and the tree rebuilt in O(n + m); a small one is inserted
+    // in name order, so consecutive descents share their path.
+    public int insertAll(Collection<Recipe> batch) {
+        RecipeNode[] nodes = sortedNodes(batch);
+        int inserted = 0;
+        writer.lock();
         try {
-            if (recipe == null) {
-                throw new IllegalArgumentException("Cannot insert a null recipe");
+            if (!rebuildCheaper(nodes.length)) {
+                for (RecipeNode node : nodes) {
+                    if (insertNode(node)) {
+                        inserted++;
+                    }
+                }
+                return inserted;
             }
-            root = insertRecursive(root, recipe);
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+            RecipeNode[] existing = nodesInOrder(root);
+            RecipeNode[] merged = new RecipeNode[existing.length + nodes.length];
+            int count = 0;
+            for (int i = 0, j = 0; i < existing.length || j < nodes.length;) {
+                int cmp = i == existing.length ? 1 : j == nodes.length ? -1 : existing[i].key.compareTo(nodes[j].key);
+                if (cmp <= 0) {
+                    merged[count++] = new RecipeNode(existing[i++], null, null);
+                    j += cmp == 0 ? 1 : 0; // the recipe already in the tree wins
+                } else {
+                    RecipeNode node = nodes[j++];
+                    node.id = allocateId(node.recipe);
+                    merged[count++] = node;
+                    nodes[inserted++] = node;
+                }
+            }
+            if (inserted > 0) {
+                root = build(merged, 0, count);
+            }
+            for (int i = 0; i < inserted; i++) {
+                inserted(nodes[i]);
+            }
+            return inserted;
+        } finally {
+            writer.unlock();
         }
     }
 
-    private RecipeNode insertRecursive(RecipeNode root, Recipe recipe) {
+    // Replaces the whole catalog with the given recipes (nulls skipped, the first of a repeated
+    // name wins) and returns how many were loaded. Sorting runs in parallel before the write
+    // lock is taken; under it the tree is built bottom-up in O(n), perfectly balanced.
+    // Once the new root is published, listeners see every old recipe deleted, then every new
+    // one inserted in name order. The new recipes get ids the old ones do not hold, and the old
+    // ids are only freed as their deletes are heard, as for any other delete.
+    // Snapshots taken before keep the old catalog.
+    public int bulkLoad(Iterable<Recipe> recipes) {
+        RecipeNode[] nodes = sortedNodes(recipes);
+        writer.lock();
+        try {
+            RecipeNode[] old = nodesInOrder(root);
+            for (RecipeNode node : nodes) {
+                node.id = allocateId(node.recipe);
+            }
+            root = build(nodes, 0, nodes.length);
+            for (RecipeNode node : old) {
+                deleted(node.id);
+            }
+            for (RecipeNode node : nodes) {
+                inserted(node);
+            }
+            return nodes.length;
+        } finally {
+            writer.unlock();
+        }
+    }
 
-        if (root == null) {
-            root = new RecipeNode(recipe);
-            return root;
+    // Deletes every named recipe under a single write lock and returns how many were found.
+    // A batch that is large next to the tree is applied in one in-order pass, checking each node
+    // against a hash set of the folded names, followed by an O(n) rebuild.
+    public int deleteAll(Collection<String> names) {
+        List<String> valid = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (name != null && !name.isBlank()) {
+                valid.add(name);
+            }
         }
-        if (recipe.getName().compareToIgnoreCase(root.recipe.getName()) < 0) {
-            // checks alphabetically Recipe name and if Alphabet value less than root goes
-            // to left subtree
-            root.left = insertRecursive(root.left, recipe);
-        } else if (recipe.getName().compareToIgnoreCase(root.recipe.getName()) > 0) {
-            // checks alphabetically Recipe name and if Alphabet value more than root goes
-            // to Right subtree
-            root.right = insertRecursive(root.right, recipe);
+        int removed = 0;
+        writer.lock();
+        try {
+            if (!rebuildCheaper(valid.size())) {
+                for (String name : valid) {
+                    if (removeNode(name) >= 0) {
+                        removed++;
+                    }
+                }
+                return removed;
+            }
+            Set<String> keys = new HashSet<>(valid.size() * 2);
+            for (String name : valid) {
+                keys.add(foldKey(name));
+            }
+            RecipeNode[] existing = nodesInOrder(root);
+            int[] removedIds = new int[Math.min(existing.length, keys.size())];
+            int kept = 0;
+            for (RecipeNode node : existing) {
+                if (keys.contains(node.key)) {
+                    removedIds[removed++] = node.id;
+                } else {
+                    existing[kept++] = new RecipeNode(node, null, null);
+                }
+            }
+            if (removed > 0) {
+                root = build(existing, 0, kept);
+            }
+            for (int i = 0; i < removed; i++) {
+                deleted(removedIds[i]);
+            }
+            return removed;
+        } finally {
+            writer.unlock();
         }
-        return root;
     }
 
-    public Recipe search(String name) {
+    // Nodes for the non-null recipes sorted by key, keeping the first of each repeated name.
+    // Keys are folded and sorted in parallel; the sort is stable, so batch order breaks ties.
+    private static RecipeNode[] sortedNodes(Iterable<Recipe> recipes) {
+        List<Recipe> valid = recipes instanceof Collection ? new ArrayList<>(((Collection<Recipe>) recipes).size())
+                : new ArrayList<>();
+        for (Recipe recipe : recipes) {
+            if (recipe != null) {
+                valid.add(recipe);
+            }
+        }
+        RecipeNode[] nodes = new RecipeNode[valid.size()];
+        Arrays.parallelSetAll(nodes, i -> new RecipeNode(valid.get(i)));
+        sortByKey(nodes, 0, nodes.length, 0);
+        int unique = 0;
+        for (RecipeNode node : nodes) {
+            if (unique == 0 || !node.key.equals(nodes[unique - 1].key)) {
+                nodes[unique++] = node;
+            }
+        }
+        return unique == nodes.length ? nodes : Arrays.copyOf(nodes, unique);
+    }
 
-        try {
-            if (name == null || name.trim().isEmpty()) {
-                throw new IllegalArgumentException("Recipe name cannot be null or empty");
+    // Stable sort of nodes [from, to) by key, where the keys are known to agree on their first
+    // offset chars. Comparing keys directly chases node, String and array per side, so this sorts
+    // packed longs instead: the next few chars after the range's common prefix in the high bits
+    // and the node's position in the low bits. Runs that tie on those chars recurse on the chars
+    // after them, like an MSD radix sort, until they are small enough for a plain merge sort.
+    // RecipeBenchmark bulk-load times it against Arrays.parallelSort(nodes, KEY_ORDER).
+    static void sortByKey(RecipeNode[] nodes, int from, int to, int offset) {
+        int n = to - from;
+        if (n <= 64) {
+            Arrays.sort(nodes, from, to, KEY_ORDER);
+            return;
+        }
+        String first = nodes[from].key;
+        int common = first.length();
+        for (int i = from + 1; i < to && common > offset; i++) {
+            String key = nodes[i].key;
+            int limit = Math.min(common, key.length());
+            int c = offset;
+            while (c < limit && key.charAt(c) == first.charAt(c)) {
+                c++;
+            }
+            common = c;
+        }
+        common = Math.max(common, offset); // a shorter first key still agrees up to offset, padded
+        int indexBits = 32 - Integer.numberOfLeadingZeros(n - 1);
+        int chars = (64 - indexBits) / 8;
+        int shift = 64 - 8 * chars;
+        long[] packed = new long[n];
+        boolean exhausted = true; // every key ends within the packed chars
+        for (int i = 0; i < n; i++) {
+            String key = nodes[from + i].key;
+            long prefix = 0;
+            for (int c = common; c < common + chars; c++) {
+                int ch = c < key.length() ? key.charAt(c) : 0;
+                if (ch > 0xFF) {
+                    Arrays.parallelSort(nodes, from, to, KEY_ORDER); // chars wider than a byte
+                    return;
+                }
+                prefix = prefix << 8 | ch;
+            }
+            exhausted &= key.length() <= common + chars;
+            packed[i] = (prefix << shift | i) ^ Long.MIN_VALUE; // flipped so signed order is unsigned
+        }
+        if (offset == 0) {
+            Arrays.parallelSort(packed);
+        } else {
+            Arrays.sort(packed);
+        }
+        RecipeNode[] sorted = new RecipeNode[n];
+        long indexMask = (1L << shift) - 1;
+        for (int i = 0; i < n; i++) {
+            sorted[i] = nodes[from + (int) (packed[i] & indexMask)];
+        }
+        System.arraycopy(sorted, 0, nodes, from, n);
+        for (int run = 0; run < n;) {
+            int end = run + 1;
+            while (end < n && (packed[end] ^ packed[run]) >>> shift == 0) {
+                end++;
+            }
+            if (end - run > 1) {
+                if (exhausted) {
+                    Arrays.sort(nodes, from + run, from + end, KEY_ORDER); // only a '\0' char can still differ
+                } else {
+                    sortByKey(nodes, from + run, from + end, common + chars);
+                }
             }
+            run = end;
+        }
+    }
 
-            RecipeNode resultNode = searchRecursive(root, name);
-            if (resultNode != null) {
-                // RECIPE FOUND
-                return resultNode.recipe;
-            } else {
-                // Throws custom exception when recipe not found
-                throw new NoSuchElementException("Recipe not found");
+    // A batch of m against n nodes: m descents of log(n + m) each, or one O(n + m) rebuild
+    private boolean rebuildCheaper(int batch) {
+        long total = (long) size(root) + batch;
+        return batch > 0 && (long) batch * (64 - Long.numberOfLeadingZeros(total)) >= total;
+    }
+
+    // Links sorted nodes [from, to) into a perfectly balanced subtree, children before parents,
+    // so heights and sizes are right without any rotation. The nodes must not be reachable from
+    // a published root: callers pass copies of the ones they keep from the current version.
+    private static RecipeNode build(RecipeNode[] nodes, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        RecipeNode node = nodes[middle];
+        node.left = build(nodes, from, middle);
+        node.right = build(nodes, middle + 1, to);
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private static RecipeNode[] nodesInOrder(RecipeNode root) {
+        RecipeNode[] nodes = new RecipeNode[size(root)];
+        RecipeNode[] stack = new RecipeNode[MAX_HEIGHT];
+        int top = 0;
+        int count = 0;
+        RecipeNode node = root;
+        while (node != null || top > 0) {
+            while (node != null) {
+                stack[top++] = node;
+                node = node.left;
             }
-        } catch (IllegalArgumentException | NoSuchElementException e) {
-            System.err.println(e.getMessage());
+            node = stack[--top];
+            nodes[count++] = node;
+            node = node.right;
         }
-        return null;
+        return nodes;
+    }
+
+    // Listeners hear about a change once its root is published
+    private void inserted(RecipeNode node) {
+        for (RecipeIndexListener listener : listeners) {
+            listener.recipeInserted(node.id, node.recipe);
+        }
+    }
+
+    private void deleted(int id) {
+        Recipe removed = recipesById[id];
+        for (RecipeIndexListener listener : listeners) {
+            listener.recipeDeleted(id, removed);
+        }
+        releaseId(id);
+        deletions++;
     }
 
-    private RecipeNode searchRecursive(RecipeNode root, String name) {
-        if (root == null) {
+    // The named recipe (ignoring case), or null when there is none or the name is blank. Misses
+    // are ordinary here: nothing is thrown, printed or allocated.
+    public Recipe search(String name) {
+        if (name == null || name.isBlank()) {
+            RecipeMetrics.SEARCH.error();
+            return null;
+        }
+        long start = RecipeMetrics.start();
+        RecipeNode node = findNode(root, name);
+        RecipeMetrics.SEARCH.stop(start);
+        if (node == null) {
+            RecipeMetrics.SEARCH.miss();
             return null;
         }
-        if (root.recipe.getName().equalsIgnoreCase(name)) {
-            return root;
+        return node.recipe;
+    }
+
+    // search for callers that prefer Optional; a miss returns the shared empty instance
+    public Optional<Recipe> lookup(String name) {
+        return Optional.ofNullable(search(name));
+    }
+
+    private static RecipeNode findNode(RecipeNode root, String name) {
+        RecipeNode current = root;
+        while (current != null) {
+            int cmp = compareFolded(name, current.key);
+            if (cmp == 0) {
+                return current;
+            }
+            current = cmp < 0 ? current.left : current.right;
+        }
+        return null;
+    }
+
+    // Registers a secondary index and feeds it every recipe already in the tree in name order,
+    // all under the write lock so the index never misses a concurrent insert or delete
+    public void addListener(RecipeIndexListener listener) {
+        writer.lock();
+        try {
+            for (RecipeNode node : nodesInOrder(root)) {
+                listener.recipeInserted(node.id, node.recipe);
+            }
+            listeners.add(listener);
+        } finally {
+            writer.unlock();
         }
-        if (name.compareToIgnoreCase(root.recipe.getName()) < 0) {
-            return searchRecursive(root.left, name);
+    }
+
+    public void removeListener(RecipeIndexListener listener) {
+        listeners.remove(listener);
+    }
+
+    public Recipe recipeById(int id) {
+        RecipeNode current = root; // reads the ids published with it
+        Recipe[] byId = recipesById;
+        return current != null && id >= 0 && id < byId.length ? byId[id] : null;
+    }
+
+    public long deletions() {
+        return deletions;
+    }
+
+    // True when this exact recipe object is still in the tree, not just one with the same name
+    public boolean contains(Recipe recipe) {
+        RecipeNode node = recipe == null ? null : findNode(root, recipe.getName());
+        return node != null && node.recipe == recipe;
+    }
+
+    // Returns the id of the named recipe, or -1 when it is not in the tree
+    public int idOf(String name) {
+        RecipeNode node = findNode(root, name);
+        return node == null ? -1 : node.id;
+    }
+
+    private int allocateId(Recipe recipe) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
         } else {
-            return searchRecursive(root.right, name);
+            id = nextId++;
+            if (id == recipesById.length) {
+                recipesById = Arrays.copyOf(recipesById, id * 2);
+            }
         }
+        recipesById[id] = recipe;
+        return id;
     }
 
-    public static void displayAllRecipes() {
-        recipes.clear(); // Clear any old data
-        displayAllRecipesRecursive(root); // Collect updated recipes
+    private void releaseId(int id) {
+        recipesById[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    // Recipe at the given position in name order (0-based), or null when out of range
+    public Recipe select(int rank) {
+        return snapshot().select(rank);
+    }
+
+    // Up to count recipes in name order starting at position from: O(log n + count)
+    public List<Recipe> page(int from, int count) {
+        return snapshot().page(from, count);
+    }
+
+    // Number of recipes whose name sorts before the given one (ignoring case): O(log n)
+    public int rank(String name) {
+        return snapshot().rank(name);
+    }
+
+    // Up to limit recipes whose names fall in [from, to) in name order (ignoring case); a null
+    // bound leaves that end open
+    public List<Recipe> range(String from, String to, int limit) {
+        return snapshot().range(from, to, limit);
+    }
+
+    // Cursor-style paging: up to count recipes that sort after the given name, or from the start
+    // when it is null. Passing the last name of one page resumes from there in O(log n + count),
+    // and stays correct when recipes are added or removed between pages.
+    public List<Recipe> pageAfter(String lastName, int count) {
+        return snapshot().pageAfter(lastName, count);
+    }
 
+    public void displayAllRecipes() {
         SwingUtilities.invokeLater(() -> {
             JFrame recipeFrame = new JFrame("All Recipes");
             recipeFrame.setSize(800, 400);
@@ -183,22 +770,8 @@ class RecipeBST {
             titleLabel.setFont(new Font("Arial", Font.BOLD, 24));
             recipeFrame.add(titleLabel, BorderLayout.NORTH);
 
-            // Column names
-            String[] columnNames = { "Name", "Cuisine", "Ingredients", "Time", "Servings", "Popularity" };
-
-            // Prepare data for table
-            String[][] data = new String[recipes.size()][6];
-            for (int i = 0; i < recipes.size(); i++) {
-                Recipe r = recipes.get(i); // <-- Change recipes from List<String> to List<Recipe>
-                data[i][0] = r.getName();
-                data[i][1] = r.getCuisine();
-                data[i][2] = String.join(", ", r.getIngredients());
-                data[i][3] = r.getCookingTime() + " mins";
-                data[i][4] = String.valueOf(r.getServings());
-                data[i][5] = String.valueOf(r.getPopularity());
-            }
-
-            JTable table = new JTable(data, columnNames);
+            // Rows are fetched page by page from the tree as they scroll into view
+            JTable table = new JTable(new RecipeTableModel(this));
             table.setFont(new Font("Arial", Font.PLAIN, 14));
             table.setRowHeight(24);
             JScrollPane scrollPane = new JScrollPane(table);
@@ -214,486 +787,8478 @@ class RecipeBST {
         });
     }
 
-    public static void displayAllRecipesRecursive(RecipeNode node) {
-        if (node == null)
-            return;
-        displayAllRecipesRecursive(node.left);
-        recipes.add(node.recipe); // Add full Recipe object
-        displayAllRecipesRecursive(node.right);
+    // Recipes in name order as a stream over the current version; recipes().parallel() splits
+    // the work at subtree boundaries
+    public Stream<Recipe> recipes() {
+        return snapshot().recipes();
     }
 
-    // Delete a recipe by name
-    public void delete(String name) {
-        root = deleteRecursive(root, name);
+    @Override
+    public Spliterator<Recipe> spliterator() {
+        return snapshot().spliterator();
     }
 
-    private RecipeNode deleteRecursive(RecipeNode root, String name) {
-        if (root == null) {
-            System.out.println("Recipe not found.");
-            return null;
+    // Iterates the version current when it was created, unaffected by later writes
+    @Override
+    public Iterator<Recipe> iterator() {
+        return snapshot().iterator();
+    }
+
+    // In-order walk with an explicit stack into a fresh list owned by the caller
+    public List<Recipe> inOrder() {
+        return snapshot().inOrder();
+    }
+
+    // Delete a recipe by name; returns false when there is no such recipe or the name is blank
+    public boolean delete(String name) {
+        if (name == null || name.isBlank()) {
+            RecipeMetrics.DELETE.error();
+            return false;
+        }
+        long start = RecipeMetrics.start();
+        int removedId;
+        writer.lock();
+        try {
+            removedId = removeNode(name);
+        } finally {
+            writer.unlock();
+            RecipeMetrics.DELETE.stop(start);
+        }
+        if (removedId < 0) {
+            RecipeMetrics.DELETE.miss();
+            return false;
         }
+        return true;
+    }
 
-        if (name.compareToIgnoreCase(root.recipe.getName()) < 0) {
-            root.left = deleteRecursive(root.left, name);
-        } else if (name.compareToIgnoreCase(root.recipe.getName()) > 0) {
-            root.right = deleteRecursive(root.right, name);
+    // Publishes a root without the named recipe, tells the listeners and returns the removed
+    // recipe's id, or -1 when no recipe has this name
+    private int removeNode(String name) {
+        int depth = 0;
+        RecipeNode current = root;
+        while (current != null) {
+            int cmp = compareFolded(name, current.key);
+            if (cmp == 0) {
+                break;
+            }
+            path[depth] = current;
+            wentLeft[depth++] = cmp < 0;
+            current = cmp < 0 ? current.left : current.right;
+        }
+        if (current == null) {
+            clearPath(depth);
+            return -1;
+        }
+        RecipeNode replacement;
+        if (current.left != null && current.right != null) {
+            // Node with two children: the in-order successor (smallest in the right subtree)
+            // takes its place, over a copy of the right subtree with the successor unlinked
+            int bottom = depth;
+            RecipeNode successor = current.right;
+            while (successor.left != null) {
+                path[bottom++] = successor;
+                successor = successor.left;
+            }
+            RecipeNode right = successor.right;
+            for (int i = bottom - 1; i >= depth; i--) {
+                right = balanced(path[i], right, path[i].right);
+                path[i] = null;
+            }
+            replacement = balanced(successor, current.left, right);
         } else {
             // Node with only one child or no child
-            if (root.left == null) {
-                return root.right;
-            } else if (root.right == null) {
-                return root.left;
-            }
-
-            // Node with two children: Get the in-order successor (smallest in the right
-            // subtree)
-            root.recipe = findMin(root.right).recipe;
-            root.right = deleteRecursive(root.right, root.recipe.getName());
+            replacement = current.left != null ? current.left : current.right;
         }
-        return root;
+        root = copyPath(depth, replacement);
+        deleted(current.id);
+        return current.id;
     }
 
-    private RecipeNode findMin(RecipeNode root) {
-        while (root.left != null) {
-            root = root.left;
+    // Copies the recorded path bottom-up over the new subtree, rotating where a copy went out of
+    // balance, and returns the new root. Nodes off the path are shared with the old version.
+    private RecipeNode copyPath(int depth, RecipeNode subtree) {
+        for (int i = depth - 1; i >= 0; i--) {
+            RecipeNode node = path[i];
+            subtree = wentLeft[i] ? balanced(node, subtree, node.right) : balanced(node, node.left, subtree);
+            path[i] = null;
         }
-        return root;
+        return subtree;
     }
 
-}
+    private void clearPath(int depth) {
+        Arrays.fill(path, 0, depth, null);
+    }
 
-class Stack {
-    private List<Recipe> stack = new ArrayList<>();
+    private static int height(RecipeNode node) {
+        return node == null ? 0 : node.height;
+    }
 
-    public void push(Recipe recipe) {
-        try {
-            if (recipe == null) {
-                throw new IllegalArgumentException("Cannot push a null recipe");
-            }
-            stack.add(recipe);
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
-        }
+    private static int size(RecipeNode node) {
+        return node == null ? 0 : node.size;
     }
 
-    public void pop() {
-        try {
-            if (stack.isEmpty()) {
-                throw new NoSuchElementException("Stack is empty, cannot pop");
+    // A new node holding entry's recipe over the given children, with the single or double
+    // rotation an AVL insert or delete needs when the children's heights differ by two. Every
+    // node it returns is fresh; the inputs are left untouched.
+    private static RecipeNode balanced(RecipeNode entry, RecipeNode left, RecipeNode right) {
+        int balance = height(left) - height(right);
+        if (balance > 1) {
+            if (height(left.left) < height(left.right)) {
+                RecipeNode pivot = left.right;
+                return new RecipeNode(pivot, new RecipeNode(left, left.left, pivot.left),
+                        new RecipeNode(entry, pivot.right, right));
             }
-            stack.remove(stack.size() - 1);
-            // NoSuchElementException is inbuilt function if required values is not found
-        } catch (NoSuchElementException e) {
-            System.err.println(e.getMessage());
+            return new RecipeNode(left, left.left, new RecipeNode(entry, left.right, right));
         }
-    }
-
-    public void display() {
-        if (stack.isEmpty()) {
-            System.out.println("No recently viewed recipes.");
-        } else {
-            System.out.println("Recently Viewed Recipes (most recent first):");
-            for (int i = stack.size() - 1; i >= 0; i--) {
-                System.out.println(stack.get(i));
+        if (balance < -1) {
+            if (height(right.right) < height(right.left)) {
+                RecipeNode pivot = right.left;
+                return new RecipeNode(pivot, new RecipeNode(entry, left, pivot.left),
+                        new RecipeNode(right, pivot.right, right.right));
             }
+            return new RecipeNode(right, new RecipeNode(entry, left, right.left), right.right);
         }
+        return new RecipeNode(entry, left, right);
     }
-}
 
-class CircularQueue {
-    private Recipe[] queue;
-    private int front, rear, size;
+    // One immutable version of the catalog. Every read here sees the same recipes, whatever
+    // the writers do meanwhile, and none of them takes a lock.
+    static final class Snapshot implements Iterable<Recipe> {
+        private final RecipeNode root;
 
-    public CircularQueue(int capacity) {
-        try {
-            if (capacity <= 0) {
-                throw new IllegalArgumentException("Queue capacity must be positive");
+        private Snapshot(RecipeNode root) {
+            this.root = root;
+        }
+
+        public int size() {
+            return RecipeBST.size(root);
+        }
+
+        public int height() {
+            return RecipeBST.height(root);
+        }
+
+        public Recipe search(String name) {
+            RecipeNode node = name == null ? null : findNode(root, name);
+            return node == null ? null : node.recipe;
+        }
+
+        public Recipe select(int rank) {
+            RecipeNode node = root;
+            while (node != null) {
+                int leftSize = RecipeBST.size(node.left);
+                if (rank < leftSize) {
+                    node = node.left;
+                } else if (rank == leftSize) {
+                    return node.recipe;
+                } else {
+                    rank -= leftSize + 1;
+                    node = node.right;
+                }
             }
-            queue = new Recipe[capacity];
-            front = rear = -1;
-            size = 0;
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+            return null;
         }
-    }
 
-    public void enqueue(Recipe recipe) {
-        try {
-            if (recipe == null) {
-                throw new IllegalArgumentException("Cannot enqueue a null recipe");
+        public List<Recipe> page(int from, int count) {
+            long start = RecipeMetrics.start();
+            int size = size();
+            List<Recipe> page = new ArrayList<>(Math.max(0, Math.min(count, size - from)));
+            if (from < 0 || from >= size || count <= 0) {
+                return page;
             }
-            if (size == queue.length) {
-                throw new IllegalStateException("Queue is full.");
+            // Descend to position from, keeping the ancestors still to be visited in order
+            RecipeNode[] stack = new RecipeNode[MAX_HEIGHT];
+            int top = 0;
+            RecipeNode node = root;
+            int rank = from;
+            while (node != null) {
+                int leftSize = RecipeBST.size(node.left);
+                if (rank < leftSize) {
+                    stack[top++] = node;
+                    node = node.left;
+                } else if (rank == leftSize) {
+                    stack[top++] = node;
+                    break;
+                } else {
+                    rank -= leftSize + 1;
+                    node = node.right;
+                }
             }
-            rear = (rear + 1) % queue.length;
-            queue[rear] = recipe;
-            if (front == -1) {
-                front = rear;
+            while (top > 0 && page.size() < count) {
+                node = stack[--top];
+                page.add(node.recipe);
+                for (node = node.right; node != null; node = node.left) {
+                    stack[top++] = node;
+                }
             }
-            size++;
-        } catch (IllegalArgumentException | IllegalStateException e) {
-            System.err.println(e.getMessage());
+            RecipeMetrics.TRAVERSE.stop(start);
+            return page;
         }
-    }
 
-    public void dequeue() {
-        try {
-            if (size == 0) {
-                throw new IllegalStateException("Queue is empty.");
+        public int rank(String name) {
+            if (name == null) {
+                throw new IllegalArgumentException("Name cannot be null");
             }
-            front = (front + 1) % queue.length;
-            size--;
-        } catch (IllegalStateException e) {
-            System.err.println(e.getMessage());
+            String key = foldKey(name);
+            int rank = 0;
+            RecipeNode node = root;
+            while (node != null) {
+                if (key.compareTo(node.key) <= 0) {
+                    node = node.left;
+                } else {
+                    rank += RecipeBST.size(node.left) + 1;
+                    node = node.right;
+                }
+            }
+            return rank;
         }
-    }
 
-    public void display() {
-        if (size == 0) {
-            System.out.println("Queue is empty.");
-            return;
+        public List<Recipe> range(String from, String to, int limit) {
+            return scan(from == null ? null : foldKey(from), true, to == null ? null : foldKey(to), limit);
         }
-        System.out.println("Meal Planning Queue:");
-        int i = front;
-        do {
-            System.out.println(queue[i]);
-            i = (i + 1) % queue.length;
-        } while (i != (rear + 1) % queue.length);
-    }
-}
 
-class RecipeSort {
-    private static final Recipe[] List = null;
+        public List<Recipe> pageAfter(String lastName, int count) {
+            return scan(lastName == null ? null : foldKey(lastName), false, null, count);
+        }
 
-    public static void bubbleSortByIngredients(List<Recipe> recipes) {
-        try {
-            if (recipes == null || recipes.isEmpty()) {
-                throw new IllegalArgumentException("Recipe list cannot be null or empty");
+        private List<Recipe> scan(String fromKey, boolean inclusive, String toKey, int limit) {
+            long start = RecipeMetrics.start();
+            List<Recipe> recipes = new ArrayList<>();
+            if (limit <= 0) {
+                return recipes;
+            }
+            // Keep the ancestors at or after fromKey, the nearest on top
+            RecipeNode[] stack = new RecipeNode[MAX_HEIGHT];
+            int top = 0;
+            RecipeNode node = root;
+            while (node != null) {
+                int cmp = fromKey == null ? -1 : fromKey.compareTo(node.key);
+                if (cmp < 0 || (cmp == 0 && inclusive)) {
+                    stack[top++] = node;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
             }
-            int n = recipes.size();
-            for (int i = 0; i < n - 1; i++) {
-                for (int j = 0; j < n - i - 1; j++) {
-                    if (recipes.get(j).getIngredients().size() > recipes.get(j + 1).getIngredients().size()) {
+            while (top > 0 && recipes.size() < limit) {
+                node = stack[--top];
+                if (toKey != null && node.key.compareTo(toKey) >= 0) {
+                    break;
+                }
+                recipes.add(node.recipe);
+                for (node = node.right; node != null; node = node.left) {
+                    stack[top++] = node;
+                }
+            }
+            RecipeMetrics.TRAVERSE.stop(start);
+            return recipes;
+        }
 
-                        Recipe temp = List[j];
-                        recipes.set(j, recipes.get(j + 1)); // Set recipe at index j to recipe at j+1
-                        recipes.set(j + 1, recipes.get(j)); // Set recipe at index j+1 to recipe at j
-                    }
+        public List<Recipe> inOrder() {
+            long start = RecipeMetrics.start();
+            List<Recipe> recipes = new ArrayList<>(size());
+            RecipeNode[] stack = new RecipeNode[MAX_HEIGHT];
+            int top = 0;
+            RecipeNode node = root;
+            while (node != null || top > 0) {
+                while (node != null) {
+                    stack[top++] = node;
+                    node = node.left;
                 }
+                node = stack[--top];
+                recipes.add(node.recipe); // Add full Recipe object
+                node = node.right;
             }
-        } catch (IllegalArgumentException e) {
+            RecipeMetrics.TRAVERSE.stop(start);
+            return recipes;
+        }
 
-            System.err.println(e.getMessage());
+        public Stream<Recipe> recipes() {
+            return StreamSupport.stream(spliterator(), false);
+        }
 
+        @Override
+        public Spliterator<Recipe> spliterator() {
+            return new RecipeSpliterator(root, 0, size());
         }
-    }
 
-    public static void insertionSortByPopularity(List<Recipe> recipes) {
-        try {
-            if (recipes == null || recipes.isEmpty()) {
-                throw new IllegalArgumentException("Recipe list cannot be null or empty");
-            }
-            for (int i = 1; i < recipes.size(); i++) {
-                Recipe key = recipes.get(i);
-                int j = i - 1;
-                while (j >= 0 && recipes.get(j).getPopularity() < key.getPopularity()) {
-                    recipes.set(j + 1, recipes.get(j));
-                    j = j - 1;
-                }
-                recipes.set(j + 1, key);
-            }
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+        @Override
+        public Iterator<Recipe> iterator() {
+            return new RecipeIterator(root);
         }
     }
 
-    public static void quickSortByCuisine(List<Recipe> recipes, int low, int high) {
-        try {
-            if (recipes == null || recipes.isEmpty()) {
-                throw new IllegalArgumentException("Recipe list cannot be null or empty");
+    // In-order walk of one version with an explicit stack
+    private static final class RecipeIterator implements Iterator<Recipe> {
+        private final RecipeNode[] stack = new RecipeNode[MAX_HEIGHT];
+        private int top;
+
+        RecipeIterator(RecipeNode root) {
+            for (RecipeNode node = root; node != null; node = node.left) {
+                stack[top++] = node;
             }
-            if (low < high) {
-                int pi = partitionByCuisine(recipes, low, high);
-                quickSortByCuisine(recipes, low, pi - 1);
-                quickSortByCuisine(recipes, pi + 1, high);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return top > 0;
+        }
+
+        @Override
+        public Recipe next() {
+            if (top == 0) {
+                throw new NoSuchElementException();
             }
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+            RecipeNode node = stack[--top];
+            for (RecipeNode child = node.right; child != null; child = child.left) {
+                stack[top++] = child;
+            }
+            return node.recipe;
         }
     }
 
-    private static int partitionByCuisine(List<Recipe> recipes, int low, int high) {
-        String pivot = recipes.get(high).getCuisine();
-        int i = (low - 1);
-        for (int j = low; j < high; j++) {
-            if (recipes.get(j).getCuisine().compareTo(pivot) < 0) {
-                i++;
-                Collections.swap(recipes, i, j);
+    // Covers the recipes ranked [next, fence) of one version. Splits at the root of the smallest
+    // subtree holding the rest of the range, so both halves line up with subtrees and stay
+    // within the AVL balance of each other. The version never changes, so neither can the size.
+    private static final class RecipeSpliterator implements Spliterator<Recipe> {
+        private final RecipeNode root;
+        private int next;
+        private final int fence;
+        private RecipeNode[] stack; // set once traversal starts; ancestors still to visit
+        private int top;
+
+        RecipeSpliterator(RecipeNode root, int next, int fence) {
+            this.root = root;
+            this.next = next;
+            this.fence = fence;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Recipe> action) {
+            if (next >= fence) {
+                return false;
             }
+            action.accept(advance());
+            return true;
         }
-        Collections.swap(recipes, i + 1, high);
-        return i + 1;
-    }
 
-    public static void printRecipes(List<Recipe> recipes) {
-        try {
-            if (recipes == null || recipes.isEmpty()) {
-                throw new IllegalArgumentException("Recipe list cannot be null or empty");
+        @Override
+        public void forEachRemaining(Consumer<? super Recipe> action) {
+            while (next < fence) {
+                action.accept(advance());
             }
-            // Print table header for better clarity
-            System.out.printf("| %-20s | %-15s | %-30s | %-15s | %-8s | %-10s |\n", "Name", "Cuisine", "Ingredients",
-                    "Cooking Time", "Servings", "Popularity");
-            System.out.println("--------------------------------------------------------------");
-            for (Recipe recipe : recipes) {
-                System.out.println(recipe);
+        }
+
+        private Recipe advance() {
+            if (stack == null) {
+                // Descend to rank next, keeping the ancestors still to be visited in order
+                stack = new RecipeNode[MAX_HEIGHT];
+                RecipeNode node = root;
+                int rank = next;
+                while (node != null) {
+                    int leftSize = size(node.left);
+                    if (rank <= leftSize) {
+                        stack[top++] = node;
+                        if (rank == leftSize) {
+                            break;
+                        }
+                        node = node.left;
+                    } else {
+                        rank -= leftSize + 1;
+                        node = node.right;
+                    }
+                }
             }
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
+            RecipeNode node = stack[--top];
+            for (RecipeNode child = node.right; child != null; child = child.left) {
+                stack[top++] = child;
+            }
+            next++;
+            return node.recipe;
+        }
+
+        @Override
+        public Spliterator<Recipe> trySplit() {
+            if (stack != null || fence - next < 2) {
+                return null;
+            }
+            // Root of the smallest subtree holding ranks (next, fence): every rank of the
+            // prefix [next, split) sorts before it and the suffix starts with it
+            int low = next + 1;
+            int high = fence - 1;
+            int offset = 0;
+            RecipeNode node = root;
+            while (true) {
+                int rank = offset + size(node.left);
+                if (high < rank) {
+                    node = node.left;
+                } else if (low > rank) {
+                    offset = rank + 1;
+                    node = node.right;
+                } else {
+                    RecipeSpliterator prefix = new RecipeSpliterator(root, next, rank);
+                    next = rank;
+                    return prefix;
+                }
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return fence - next;
+        }
 
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED | IMMUTABLE;
+        }
+
+        @Override
+        public Comparator<? super Recipe> getComparator() {
+            return NAME_ORDER;
         }
     }
 }
 
-class FavoritesManager {
-    private LinkedList<Recipe> favoriteRecipes;
-    private RecipeBST recipeBST;
+// Secondary indexes implement this to stay in step with RecipeBST. Callbacks run under the
+// tree's write lock, so they must be quick and must not call back into the tree.
+interface RecipeIndexListener {
+    void recipeInserted(int id, Recipe recipe);
 
-    public FavoritesManager(RecipeBST recipeBST) {
-        try {
-            if (recipeBST == null) {
-                throw new IllegalArgumentException("RecipeBST cannot be null");
+    void recipeDeleted(int id, Recipe recipe);
+}
+
+// Compressed set of recipe ids in the style of a roaring bitmap: ids are split into 16-bit
+// chunks, and each chunk is a sorted char[] while sparse or a 1024-word bitmap once dense.
+class PostingSet {
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int count;
+
+    public PostingSet() {
+    }
+
+    public boolean add(int id) {
+        char high = (char) (id >>> 16);
+        int index = indexOf(high);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, high, new ArrayContainer());
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        containers[index] = container.add((char) id);
+        return containers[index].cardinality() != before;
+    }
+
+    public boolean remove(int id) {
+        int index = indexOf((char) (id >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        Container container = containers[index];
+        int before = container.cardinality();
+        container = container.remove((char) id);
+        if (container.cardinality() == 0) {
+            removeContainer(index);
+        } else {
+            containers[index] = container;
+        }
+        return container.cardinality() != before;
+    }
+
+    public boolean contains(int id) {
+        int index = indexOf((char) (id >>> 16));
+        return index >= 0 && containers[index].contains((char) id);
+    }
+
+    public int cardinality() {
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += containers[i].cardinality();
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // Visits ids in ascending order
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < count; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    public int[] toArray() {
+        int[] ids = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            n = containers[i].copyTo(keys[i] << 16, ids, n);
+        }
+        return ids;
+    }
+
+    public PostingSet copy() {
+        PostingSet copy = new PostingSet();
+        copy.keys = Arrays.copyOf(keys, Math.max(count, 4));
+        copy.containers = new Container[copy.keys.length];
+        for (int i = 0; i < count; i++) {
+            copy.containers[i] = containers[i].copy();
+        }
+        copy.count = count;
+        return copy;
+    }
+
+    public static PostingSet and(PostingSet a, PostingSet b) {
+        PostingSet result = new PostingSet();
+        int i = 0, j = 0;
+        while (i < a.count && j < b.count) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                result.appendIfNotEmpty(a.keys[i], a.containers[i].and(b.containers[j]));
+                i++;
+                j++;
             }
-            this.favoriteRecipes = new LinkedList<>();
-            this.recipeBST = recipeBST;
-        } catch (IllegalArgumentException e) {
-            System.err.println(e.getMessage());
         }
+        return result;
     }
 
-    public void addFavoriteRecipeByName(String recipeName) {
-        try {
-            if (recipeName == null || recipeName.trim().isEmpty()) {
-                throw new IllegalArgumentException("Recipe name cannot be null or empty");
+    public static PostingSet or(PostingSet a, PostingSet b) {
+        PostingSet result = new PostingSet();
+        int i = 0, j = 0;
+        while (i < a.count || j < b.count) {
+            if (j == b.count || (i < a.count && a.keys[i] < b.keys[j])) {
+                result.appendIfNotEmpty(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.count || a.keys[i] > b.keys[j]) {
+                result.appendIfNotEmpty(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.appendIfNotEmpty(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public static PostingSet andNot(PostingSet a, PostingSet b) {
+        PostingSet result = new PostingSet();
+        int j = 0;
+        for (int i = 0; i < a.count; i++) {
+            while (j < b.count && b.keys[j] < a.keys[i]) {
+                j++;
             }
-            Recipe foundRecipe = recipeBST.search(recipeName);
-            if (foundRecipe != null) {
-                favoriteRecipes.add(foundRecipe);
-                System.out.println("Added to favorites: " + foundRecipe.getName());
+            if (j < b.count && b.keys[j] == a.keys[i]) {
+                result.appendIfNotEmpty(a.keys[i], a.containers[i].andNot(b.containers[j]));
             } else {
-                throw new NoSuchElementException("Recipe not found in BST");
+                result.appendIfNotEmpty(a.keys[i], a.containers[i].copy());
             }
-        } catch (IllegalArgumentException | NoSuchElementException e) {
-            System.err.println(e.getMessage());
         }
+        return result;
     }
 
-    public void displayFavoriteRecipes() {
-        if (favoriteRecipes.isEmpty()) {
-            System.out.println("No favorite recipes added.");
-        } else {
-            System.out.println("Favorite Recipes:");
-            for (Recipe recipe : favoriteRecipes) {
-                System.out.println("- " + recipe.getName() + " (" + recipe.getCuisine() + ")");
+    private int indexOf(char high) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < high) {
+                lo = mid + 1;
+            } else if (keys[mid] > high) {
+                hi = mid - 1;
+            } else {
+                return mid;
             }
         }
+        return -(lo + 1);
     }
-}
 
-public class recipe_manager {
-    public static void createAndShowMainMenu() {
-        // Create the main frame
-        JFrame frame = new JFrame("Recipe App");
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setSize(400, 300);
-        frame.setLayout(new BorderLayout());
+    private void insertContainer(int index, char high, Container container) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            containers = Arrays.copyOf(containers, count * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, count - index);
+        System.arraycopy(containers, index, containers, index + 1, count - index);
+        keys[index] = high;
+        containers[index] = container;
+        count++;
+    }
 
-        // Title label
-        JLabel titleLabel = new JLabel("Main Menu", JLabel.CENTER);
-        titleLabel.setFont(new Font("Arial", Font.BOLD, 24));
-        frame.add(titleLabel, BorderLayout.NORTH);
+    private void removeContainer(int index) {
+        System.arraycopy(keys, index + 1, keys, index, count - index - 1);
+        System.arraycopy(containers, index + 1, containers, index, count - index - 1);
+        containers[--count] = null;
+    }
 
-        // Button panel
-        JPanel buttonPanel = new JPanel();
-        buttonPanel.setLayout(new GridLayout(2, 1, 10, 10));
+    // Results of set operations are built in key order, so appending is enough
+    private void appendIfNotEmpty(char high, Container container) {
+        if (container.cardinality() > 0) {
+            insertContainer(count, high, container);
+        }
+    }
 
-        JButton displayRecipesButton = new JButton("Display All Recipes");
-        displayRecipesButton.setFont(new Font("Arial", Font.PLAIN, 18));
-        displayRecipesButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                RecipeBST.displayAllRecipes();
-            }
-        });
+    private abstract static class Container {
+        abstract int cardinality();
 
-        JButton exitButton = new JButton("Exit");
-        exitButton.setFont(new Font("Arial", Font.PLAIN, 18));
-        exitButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                System.exit(0);
-            }
-        });
+        abstract boolean contains(char value);
 
-        buttonPanel.add(displayRecipesButton);
-        buttonPanel.add(exitButton);
+        // add/remove return the container to keep, which changes when it switches representation
+        abstract Container add(char value);
 
-        frame.add(buttonPanel, BorderLayout.CENTER);
-        frame.setVisible(true);
-    }
+        abstract Container remove(char value);
 
-    public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("\n----- RECIPE MANAGER APPLICATION ----");
-        RecipeBST recipeBST = new RecipeBST();
-        Stack recentRecipes = new Stack();
-        CircularQueue mealQueue = new CircularQueue(5);
-        RecipeSort sort = new RecipeSort();
-        FavoritesManager fav = new FavoritesManager(recipeBST);
-        List<Recipe> recipeList = new ArrayList<>();
+        abstract Container and(Container other);
 
-        // Hardcoded 10 recipes initially
-        Recipe[] initialRecipes = {
-                new Recipe("Pasta", "Italian", Arrays.asList("Pasta", "Tomato", "Cheese"), 30, 4, 8),
-                new Recipe("Sushi", "Japanese", Arrays.asList("Rice", "Fish", "Seaweed"), 20, 2, 9),
-                new Recipe("Pizza", "Italian", Arrays.asList("Dough", "Cheese", "Tomato"), 40, 6, 7),
-                new Recipe("Tacos", "Mexican", Arrays.asList("Taco Shell", "Beef", "Cheese"), 15, 2, 6),
-                new Recipe("Burger", "American", Arrays.asList("Bun", "Beef Patty", "Lettuce"), 25, 4, 7),
-                new Recipe("Curry", "Indian", Arrays.asList("Chicken", "Spices", "Rice"), 45, 4, 9),
-                new Recipe("Salad", "Mediterranean", Arrays.asList("Lettuce", "Olives", "Feta"), 10, 2, 6),
-                new Recipe("Pancakes", "American", Arrays.asList("Flour", "Eggs", "Milk"), 20, 4, 8),
-                new Recipe("Ramen", "Japanese", Arrays.asList("Noodles", "Broth", "Egg"), 30, 2, 8),
-                new Recipe("Fried Rice", "Chinese", Arrays.asList("Rice", "Egg", "Vegetables"), 25, 4, 7)
-        };
-        // Add the hardcoded recipes to BST and List
-        for (Recipe recipe : initialRecipes) {
-            recipeBST.insert(recipe);
-            recipeList.add(recipe);
-        }
+        abstract Container or(Container other);
 
-        int choice = 0;
-        do {
-            System.out.println("\n\n--------------------------------------------------");
-            System.out.println("Menu:");
-            System.out.println("1. Add Recipe");
-            System.out.println("2. Display All Recipes");
-            System.out.println("3. Search Recipe by Name");
-            System.out.println("4. Add Recipe to Meal Planning Queue");
-            System.out.println("5. Display Meal Planning Queue");
-            System.out.println("6. Display Recently Viewed Recipes");
-            System.out.println("7. Sort Recipes");
-            System.out.println("8. Add Recipe to Favourites");
-            System.out.println("9. Display Favourites");
-            System.out.println("10. Delete a Recipe");
-            System.out.println("11. Exit");
-            System.out.println("--------------------------------------------------");
+        abstract Container andNot(Container other);
 
-            try {
-                System.out.print("Enter your choice: ");
-                choice = scanner.nextInt();
-                scanner.nextLine(); // Consume newline character
+        abstract void forEach(int base, IntConsumer action);
 
-                switch (choice) {
-                    case 1:
-                        // Add a recipe to BST and List
-                        try {
-                            System.out.print("Enter recipe name: ");
-                            String name = scanner.nextLine();
-                            System.out.print("Enter cuisine: ");
-                            String cuisine = scanner.nextLine();
+        abstract int copyTo(int base, int[] target, int offset);
 
-                            int cookingTime = 0;
-                            while (true) {
-                                try {
-                                    System.out.print("Enter cooking time (in minutes): ");
-                                    cookingTime = scanner.nextInt();
-                                    scanner.nextLine(); // Consume newline
-                                    break;
-                                } catch (InputMismatchException e) {
-                                    System.out.println("Invalid input! Please enter an integer for cooking time.");
-                                    scanner.nextLine(); // Clear invalid input
-                                }
-                            }
+        abstract Container copy();
+    }
 
-                            int servings = 0;
-                            while (true) {
-                                try {
-                                    System.out.print("Enter servings: ");
-                                    servings = scanner.nextInt();
-                                    scanner.nextLine(); // Consume newline
-                                    break;
-                                } catch (InputMismatchException e) {
-                                    System.out.println("Invalid input! Please enter an integer for servings.");
-                                    scanner.nextLine(); // Clear invalid input
-                                }
-                            }
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int size;
 
-                            int popularity = 0;
-                            while (true) {
-                                try {
-                                    System.out.print("Enter popularity (1-10): ");
-                                    popularity = scanner.nextInt();
-                                    scanner.nextLine(); // Consume newline
-                                    if (popularity < 1 || popularity > 10) {
-                                        System.out.println("Popularity must be between 1 and 10.");
-                                    } else {
-                                        break;
-                                    }
-                                } catch (InputMismatchException e) {
-                                    System.out.println("Invalid input! Please enter an integer for popularity.");
-                                    scanner.nextLine(); // Clear invalid input
-                                }
-                            }
+        ArrayContainer() {
+            values = new char[4];
+        }
 
-                            System.out.print("Enter ingredients (comma separated): ");
-                            String ingredientsLine = scanner.nextLine();
-                            List<String> ingredients = Arrays.asList(ingredientsLine.split(","));
-                            Recipe newRecipe = new Recipe(name, cuisine, ingredients, cookingTime, servings,
-                                    popularity);
-                            recipeBST.insert(newRecipe);
-                            recipeList.add(newRecipe);
-                            System.out.println("Recipe Added successfully.");
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while adding the recipe: " + e.getMessage());
-                        }
-                        break;
+        ArrayContainer(char[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
 
-                    case 2:
-                        try {
-                            System.out.println("All Recipes:");
-                            System.out.println(String.format("| %-20s | %-15s | %-30s | %-15s | %-8s | %-10s |", "Name",
-                                    "Cuisine", "Ingredients", "Cooking Time", "Servings", "Popularity"));
-                            System.out.println(
-                                    "----------------------------------------------------------------------------------------------------------------------------");
-                            recipeBST.displayAllRecipes();
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while displaying recipes: " + e.getMessage());
-                        }
-                        break;
+        int cardinality() {
+            return size;
+        }
 
-                    case 3:
-                        try {
-                            System.out.print("Enter the recipe name to search: ");
-                            String searchName = scanner.nextLine();
-                            Recipe foundRecipe = recipeBST.search(searchName);
-                            if (foundRecipe != null) {
-                                System.out.println("Found: " + foundRecipe);
-                                recentRecipes.push(foundRecipe);
-                            } else {
-                                System.out.println("Recipe not found.");
-                            }
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while searching for the recipe: " + e.getMessage());
-                        }
-                        break;
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
 
-                    case 4:
-                        try {
-                            System.out.print("Enter the recipe name to add to meal planning queue: ");
-                            String queueName = scanner.nextLine();
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (size == ARRAY_LIMIT) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(size * 2, ARRAY_LIMIT));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return this;
+        }
+
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, size - index - 1);
+                size--;
+            }
+            return this;
+        }
+
+        Container and(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.and(this);
+            }
+            ArrayContainer that = (ArrayContainer) other;
+            char[] out = new char[Math.min(size, that.size)];
+            int n = 0, i = 0, j = 0;
+            while (i < size && j < that.size) {
+                if (values[i] < that.values[j]) {
+                    i++;
+                } else if (values[i] > that.values[j]) {
+                    j++;
+                } else {
+                    out[n++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayContainer(out, n);
+        }
+
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer that = (ArrayContainer) other;
+            if (size + that.size > ARRAY_LIMIT) {
+                return toBitmap().or(that);
+            }
+            char[] out = new char[size + that.size];
+            int n = 0, i = 0, j = 0;
+            while (i < size || j < that.size) {
+                if (j == that.size || (i < size && values[i] < that.values[j])) {
+                    out[n++] = values[i++];
+                } else if (i == size || values[i] > that.values[j]) {
+                    out[n++] = that.values[j++];
+                } else {
+                    out[n++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayContainer(out, n);
+        }
+
+        Container andNot(Container other) {
+            char[] out = new char[size];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (!other.contains(values[i])) {
+                    out[n++] = values[i];
+                }
+            }
+            return new ArrayContainer(out, n);
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < size; i++) {
+                action.accept(base | values[i]);
+            }
+        }
+
+        int copyTo(int base, int[] target, int offset) {
+            for (int i = 0; i < size; i++) {
+                target[offset++] = base | values[i];
+            }
+            return offset;
+        }
+
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(size, 4)), size);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.cardinality = size;
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words = new long[BITMAP_WORDS];
+        int cardinality;
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        Container add(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        Container remove(char value) {
+            long bit = 1L << value;
+            if ((words[value >>> 6] & bit) != 0) {
+                words[value >>> 6] &= ~bit;
+                cardinality--;
+                if (cardinality <= ARRAY_LIMIT / 2) {
+                    return toArray();
+                }
+            }
+            return this;
+        }
+
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer that = (ArrayContainer) other;
+                char[] out = new char[that.size];
+                int n = 0;
+                for (int i = 0; i < that.size; i++) {
+                    if (contains(that.values[i])) {
+                        out[n++] = that.values[i];
+                    }
+                }
+                return new ArrayContainer(out, n);
+            }
+            BitmapContainer result = new BitmapContainer();
+            long[] those = ((BitmapContainer) other).words;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                result.words[i] = words[i] & those[i];
+            }
+            return result.recount();
+        }
+
+        Container or(Container other) {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, BITMAP_WORDS);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer that = (ArrayContainer) other;
+                for (int i = 0; i < that.size; i++) {
+                    result.words[that.values[i] >>> 6] |= 1L << that.values[i];
+                }
+            } else {
+                long[] those = ((BitmapContainer) other).words;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.words[i] |= those[i];
+                }
+            }
+            return result.recount();
+        }
+
+        Container andNot(Container other) {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(words, 0, result.words, 0, BITMAP_WORDS);
+            if (other instanceof ArrayContainer) {
+                ArrayContainer that = (ArrayContainer) other;
+                for (int i = 0; i < that.size; i++) {
+                    result.words[that.values[i] >>> 6] &= ~(1L << that.values[i]);
+                }
+            } else {
+                long[] those = ((BitmapContainer) other).words;
+                for (int i = 0; i < BITMAP_WORDS; i++) {
+                    result.words[i] &= ~those[i];
+                }
+            }
+            return result.recount();
+        }
+
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        int copyTo(int base, int[] target, int offset) {
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    target[offset++] = base | (i << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return offset;
+        }
+
+        Container copy() {
+            BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, BITMAP_WORDS);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        // Recomputes the cardinality after a bulk word operation and shrinks sparse results
+        private Container recount() {
+            int total = 0;
+            for (long word : words) {
+                total += Long.bitCount(word);
+            }
+            cardinality = total;
+            return total <= ARRAY_LIMIT ? toArray() : this;
+        }
+
+        private ArrayContainer toArray() {
+            char[] values = new char[Math.max(cardinality, 4)];
+            int n = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+    }
+}
+
+// Inverted index from normalized ingredient to the posting set of recipe ids that use it.
+// Queries combine posting sets, so their cost follows the postings touched, not the catalog.
+class IngredientIndex implements RecipeIndexListener {
+    private static final PostingSet EMPTY = new PostingSet();
+
+    private final RecipeBST recipeBST;
+    private final Map<String, PostingSet> postings = new HashMap<>();
+    private final PostingSet allRecipes = new PostingSet();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public IngredientIndex(RecipeBST recipeBST) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        this.recipeBST = recipeBST;
+        recipeBST.addListener(this);
+    }
+
+    // "  Cheese" and "cheese" are the same ingredient
+    static String normalize(String ingredient) {
+        return RecipeBST.foldKey(ingredient.trim());
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            for (String ingredient : recipe.getIngredients()) {
+                String key = normalize(ingredient);
+                if (!key.isEmpty()) {
+                    postings.computeIfAbsent(key, k -> new PostingSet()).add(id);
+                }
+            }
+            allRecipes.add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            for (String ingredient : recipe.getIngredients()) {
+                String key = normalize(ingredient);
+                PostingSet set = postings.get(key);
+                if (set != null && set.remove(id) && set.isEmpty()) {
+                    postings.remove(key);
+                }
+            }
+            allRecipes.remove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Number of recipes using the ingredient
+    public int frequency(String ingredient) {
+        lock.readLock().lock();
+        try {
+            PostingSet set = postings.get(normalize(ingredient));
+            return set == null ? 0 : set.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Runs the action on the posting sets of the ingredients, in the same order and null where an
+    // ingredient has none, under the read lock so none of them changes while it runs
+    public <T> T withPostings(List<String> ingredients, Function<PostingSet[], T> action) {
+        lock.readLock().lock();
+        try {
+            PostingSet[] sets = new PostingSet[ingredients.size()];
+            for (int i = 0; i < sets.length; i++) {
+                sets[i] = postings.get(normalize(ingredients.get(i)));
+            }
+            return action.apply(sets);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Feeds the ids of every recipe using the ingredient to the action, in ascending order
+    public void forEachRecipeWith(String ingredient, IntConsumer action) {
+        lock.readLock().lock();
+        try {
+            PostingSet set = postings.get(normalize(ingredient));
+            if (set != null) {
+                set.forEach(action);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ids of recipes containing every ingredient in allOf, at least one in anyOf (when given)
+    // and none in noneOf. Empty or null collections are ignored.
+    public PostingSet query(Collection<String> allOf, Collection<String> anyOf, Collection<String> noneOf) {
+        lock.readLock().lock();
+        try {
+            PostingSet result = null;
+            if (allOf != null && !allOf.isEmpty()) {
+                // Intersect the rarest postings first so intermediate results stay small
+                List<PostingSet> sets = new ArrayList<>(allOf.size());
+                for (String ingredient : allOf) {
+                    sets.add(postings.getOrDefault(normalize(ingredient), EMPTY));
+                }
+                sets.sort(Comparator.comparingInt(PostingSet::cardinality));
+                result = sets.get(0).copy();
+                for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+                    result = PostingSet.and(result, sets.get(i));
+                }
+            }
+            if (anyOf != null && !anyOf.isEmpty()) {
+                PostingSet union = new PostingSet();
+                for (String ingredient : anyOf) {
+                    PostingSet set = postings.get(normalize(ingredient));
+                    if (set != null) {
+                        union = PostingSet.or(union, set);
+                    }
+                }
+                result = result == null ? union : PostingSet.and(result, union);
+            }
+            if (result == null) {
+                result = allRecipes.copy();
+            }
+            if (noneOf != null) {
+                for (String ingredient : noneOf) {
+                    PostingSet set = postings.get(normalize(ingredient));
+                    if (set != null && !result.isEmpty()) {
+                        result = PostingSet.andNot(result, set);
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ids are resolved under the read lock: a deleted recipe leaves the postings under the write
+    // lock before the tree frees its id, so no id here can have been reused for another recipe
+    public List<Recipe> findRecipes(Collection<String> allOf, Collection<String> anyOf, Collection<String> noneOf) {
+        lock.readLock().lock();
+        try {
+            PostingSet ids = query(allOf, anyOf, noneOf);
+            List<Recipe> recipes = new ArrayList<>(ids.cardinality());
+            ids.forEach(id -> {
+                Recipe recipe = recipeBST.recipeById(id);
+                if (recipe != null) {
+                    recipes.add(recipe);
+                }
+            });
+            return recipes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// "What can I cook with my pantry": ranks recipes by the fraction of their ingredients on hand,
+// breaking ties by popularity. Only recipes sharing at least one ingredient with the pantry are
+// ever scored, and scoring stays on primitive arrays with a bounded min-heap of the best K.
+// Postings are counted rarest first. A recipe that none of the first postings reached can match
+// at most the r ingredients left, so with t ingredients it covers at most min(r, t) / t; once the
+// K-th best so far beats that at the popularity cap, larger recipes met only in the commonest
+// postings, which dominate the cost, are passed over instead of being counted and scored.
+class PantryMatcher implements RecipeIndexListener {
+    private final RecipeBST recipeBST;
+    private final IngredientIndex ingredientIndex;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Per recipe id: number of distinct ingredients (0 = no recipe) and popularity
+    private int[] ingredientCounts = new int[16];
+    private int[] popularity = new int[16];
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public PantryMatcher(RecipeBST recipeBST, IngredientIndex ingredientIndex) {
+        if (recipeBST == null || ingredientIndex == null) {
+            throw new IllegalArgumentException("RecipeBST and IngredientIndex cannot be null");
+        }
+        this.recipeBST = recipeBST;
+        this.ingredientIndex = ingredientIndex;
+        recipeBST.addListener(this);
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        Set<String> distinct = new HashSet<>();
+        for (String ingredient : recipe.getIngredients()) {
+            String key = IngredientIndex.normalize(ingredient);
+            if (!key.isEmpty()) {
+                distinct.add(key);
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            if (id >= ingredientCounts.length) {
+                int capacity = Math.max(id + 1, ingredientCounts.length * 2);
+                ingredientCounts = Arrays.copyOf(ingredientCounts, capacity);
+                popularity = Arrays.copyOf(popularity, capacity);
+            }
+            ingredientCounts[id] = distinct.size();
+            popularity[id] = recipe.getPopularity();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            ingredientCounts[id] = 0;
+            popularity[id] = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Best k recipes for the pantry, best first
+    public List<Recipe> topMatches(Collection<String> pantry, int k) {
+        if (pantry == null || pantry.isEmpty() || k <= 0) {
+            return new ArrayList<>();
+        }
+        Scratch s = scratch.get();
+        Set<String> keys = new HashSet<>();
+        for (String ingredient : pantry) {
+            String key = IngredientIndex.normalize(ingredient);
+            if (!key.isEmpty()) {
+                keys.add(key);
+            }
+        }
+        // The read lock is held from counting to resolving: the tree frees a deleted recipe's id
+        // only after our listener has dropped it under the write lock, so no id counted here can
+        // be reused for another recipe before it is scored and resolved
+        lock.readLock().lock();
+        try {
+            ingredientIndex.withPostings(new ArrayList<>(keys), sets -> {
+                count(sets, k, s);
+                return null;
+            });
+
+            // Pop the heap worst-first and fill the result from the back
+            Recipe[] ranked = new Recipe[s.heapSize];
+            for (int i = s.heapSize - 1; i >= 0; i--) {
+                ranked[i] = recipeBST.recipeById(s.heapIds[0]);
+                s.popTop();
+            }
+            List<Recipe> result = new ArrayList<>(ranked.length);
+            for (Recipe recipe : ranked) {
+                if (recipe != null) {
+                    result.add(recipe);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+            s.reset();
+        }
+    }
+
+    // Counts hits from the postings, rarest first, and leaves the best k in the heap. When the last
+    // one or two postings far outweigh all before them, the recipes seen so far are ranked on the
+    // hits counted up to there, which can only rise, and countRest finishes the count.
+    private void count(PostingSet[] found, int k, Scratch s) {
+        PostingSet[] sets = Arrays.stream(found).filter(Objects::nonNull)
+                .sorted(Comparator.comparingInt(PostingSet::cardinality)).toArray(PostingSet[]::new);
+        long behind = 0;
+        int split = sets.length;
+        for (int j = 0; j < sets.length; j++) {
+            if (sets.length - j <= 2 && j > 0 && sets[j].cardinality() > 4 * behind) {
+                split = j;
+                break;
+            }
+            behind += sets[j].cardinality();
+        }
+        for (int j = 0; j < sets.length; j++) {
+            if (j == split && s.touchedCount >= k) {
+                score(k, s);
+                if (s.heapSize == k) {
+                    countRest(sets, j, s);
+                    break;
+                }
+            }
+            sets[j].forEach(s);
+        }
+        score(Math.min(k, s.touchedCount), s);
+    }
+
+    // A recipe none of the postings before sets[from] reached matches at most the r postings left,
+    // so with t ingredients it covers at most min(r, t) / t. Recipes already seen get the rest of
+    // their hits; a new one is only counted if t is small enough for that bound to beat the k-th
+    // best so far at the popularity cap. The rest could not have made the final k.
+    private void countRest(PostingSet[] sets, int from, Scratch s) {
+        int remaining = sets.length - from;
+        int maxTotal = 0;
+        while (compare(Math.min(remaining, maxTotal + 1), maxTotal + 1, Recipe.MAX_POPULARITY,
+                s.heapHits[0], s.heapTotals[0], s.heapPopularity[0]) > 0) {
+            maxTotal++;
+        }
+        int limit = maxTotal;
+        int[] totals = ingredientCounts;
+        if (s.counts.length < totals.length) {
+            s.counts = Arrays.copyOf(s.counts, totals.length);
+        }
+        int[] counts = s.counts;
+        IntConsumer rest = id -> {
+            if (id >= totals.length) {
+                return; // inserted after the postings were read
+            }
+            if (counts[id] > 0) {
+                counts[id]++;
+            } else if (totals[id] != 0 && totals[id] <= limit) {
+                s.accept(id);
+            }
+        };
+        for (int j = from; j < sets.length; j++) {
+            sets[j].forEach(rest);
+        }
+    }
+
+    // Rebuilds the heap of the best limit touched recipes from their counted hits
+    private void score(int limit, Scratch s) {
+        s.heapSize = 0;
+        s.ensureHeap(limit);
+        for (int i = 0; i < s.touchedCount; i++) {
+            int id = s.touched[i];
+            int total = id < ingredientCounts.length ? ingredientCounts[id] : 0;
+            if (total == 0) {
+                continue; // deleted, or inserted after the postings were read
+            }
+            int hits = Math.min(s.counts[id], total);
+            if (s.heapSize < limit) {
+                s.push(id, hits, total, popularity[id]);
+            } else if (compare(hits, total, popularity[id], s.heapHits[0], s.heapTotals[0], s.heapPopularity[0]) > 0) {
+                s.replaceTop(id, hits, total, popularity[id]);
+            }
+        }
+    }
+
+    // Orders by coverage hits/total without dividing, then by popularity
+    static int compare(int hitsA, int totalA, int popularityA, int hitsB, int totalB, int popularityB) {
+        int byCoverage = Long.compare((long) hitsA * totalB, (long) hitsB * totalA);
+        return byCoverage != 0 ? byCoverage : Integer.compare(popularityA, popularityB);
+    }
+
+    // Per-thread hit counters and heap arrays, reused across queries so scoring never allocates
+    private static final class Scratch implements IntConsumer {
+        int[] counts = new int[1024];
+        int[] touched = new int[256];
+        int touchedCount;
+
+        int[] heapIds = new int[16];
+        int[] heapHits = new int[16];
+        int[] heapTotals = new int[16];
+        int[] heapPopularity = new int[16];
+        int heapSize;
+
+        @Override
+        public void accept(int id) {
+            if (id >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+            }
+            if (counts[id]++ == 0) {
+                if (touchedCount == touched.length) {
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                }
+                touched[touchedCount++] = id;
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                counts[touched[i]] = 0;
+            }
+            touchedCount = 0;
+        }
+
+        void ensureHeap(int k) {
+            if (heapIds.length < k) {
+                heapIds = new int[k];
+                heapHits = new int[k];
+                heapTotals = new int[k];
+                heapPopularity = new int[k];
+            }
+        }
+
+        void push(int id, int hits, int total, int popularity) {
+            int i = heapSize++;
+            set(i, id, hits, total, popularity);
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (less(parent, i)) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        void replaceTop(int id, int hits, int total, int popularity) {
+            set(0, id, hits, total, popularity);
+            siftDown();
+        }
+
+        void popTop() {
+            heapSize--;
+            if (heapSize > 0) {
+                swap(0, heapSize);
+                siftDown();
+            }
+        }
+
+        private void siftDown() {
+            int i = 0;
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < heapSize && less(left, smallest)) {
+                    smallest = left;
+                }
+                if (right < heapSize && less(right, smallest)) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private boolean less(int a, int b) {
+            return compare(heapHits[a], heapTotals[a], heapPopularity[a], heapHits[b], heapTotals[b],
+                    heapPopularity[b]) < 0;
+        }
+
+        private void set(int i, int id, int hits, int total, int popularity) {
+            heapIds[i] = id;
+            heapHits[i] = hits;
+            heapTotals[i] = total;
+            heapPopularity[i] = popularity;
+        }
+
+        private void swap(int a, int b) {
+            int id = heapIds[a], hits = heapHits[a], total = heapTotals[a], popularity = heapPopularity[a];
+            set(a, heapIds[b], heapHits[b], heapTotals[b], heapPopularity[b]);
+            set(b, id, hits, total, popularity);
+        }
+    }
+}
+
+// Shares one instance per distinct string across threads. Once maxSize values are held, new
+// values pass through unshared so a high-cardinality column cannot grow the pool unbounded.
+class StringInterner {
+    private final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public StringInterner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String intern(String value) {
+        String shared = pool.get(value);
+        if (shared != null) {
+            return shared;
+        }
+        if (pool.size() >= maxSize) {
+            return value;
+        }
+        shared = pool.putIfAbsent(value, value);
+        return shared != null ? shared : value;
+    }
+
+    public int size() {
+        return pool.size();
+    }
+}
+
+// Line-level codecs for catalog files. CSV needs a header naming the columns; ingredients are
+// separated by ';' inside their field. JSON Lines holds one flat object per line, e.g.
+// {"name":"Pasta","cuisine":"Italian","ingredients":["Pasta","Tomato"],"cookingTime":30,"servings":4,"popularity":8}
+// Both throw IllegalArgumentException describing the first problem in a row.
+class RecipeCodec {
+    static final String[] CSV_COLUMNS = { "name", "cuisine", "ingredients", "cookingTime", "servings",
+            "popularity" };
+
+    // Position of each CSV_COLUMNS entry in the header row
+    static int[] csvLayout(String header) {
+        List<String> names = splitCsv(header);
+        int[] layout = new int[CSV_COLUMNS.length];
+        for (int c = 0; c < CSV_COLUMNS.length; c++) {
+            layout[c] = -1;
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).trim().equalsIgnoreCase(CSV_COLUMNS[c])) {
+                    layout[c] = i;
+                }
+            }
+            if (layout[c] < 0) {
+                throw new IllegalArgumentException("CSV header is missing column " + CSV_COLUMNS[c]);
+            }
+        }
+        return layout;
+    }
+
+    static Recipe parseCsv(String line, int[] layout, StringInterner interner) {
+        List<String> fields = splitCsv(line);
+        String[] values = new String[CSV_COLUMNS.length];
+        for (int c = 0; c < values.length; c++) {
+            if (layout[c] >= fields.size()) {
+                throw new IllegalArgumentException("Missing field " + CSV_COLUMNS[c]);
+            }
+            values[c] = fields.get(layout[c]).trim();
+        }
+        List<String> ingredients = new ArrayList<>();
+        String list = values[2];
+        for (int start = 0; start <= list.length();) {
+            int end = list.indexOf(';', start);
+            if (end < 0) {
+                end = list.length();
+            }
+            String ingredient = list.substring(start, end).trim();
+            if (!ingredient.isEmpty()) {
+                ingredients.add(interner.intern(ingredient));
+            }
+            start = end + 1;
+        }
+        return build(values[0], interner.intern(values[1]), ingredients, parseInt(values[3], "cookingTime"),
+                parseInt(values[4], "servings"), parseInt(values[5], "popularity"));
+    }
+
+    // Splits one CSV line; quoted fields may contain commas and "" for a literal quote
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(8);
+        if (line.indexOf('"') < 0) {
+            // Fast path: no quoting, so fields are plain substrings
+            int start = 0;
+            for (int end; (end = line.indexOf(',', start)) >= 0; start = end + 1) {
+                fields.add(line.substring(start, end));
+            }
+            fields.add(line.substring(start));
+            return fields;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static Recipe parseJson(String line, StringInterner interner) {
+        JsonCursor in = new JsonCursor(line);
+        String name = null, cuisine = null;
+        List<String> ingredients = null;
+        int cookingTime = 0, servings = 0, popularity = 0;
+        in.expect('{');
+        if (!in.tryConsume('}')) {
+            do {
+                String key = in.readString();
+                in.expect(':');
+                switch (key) {
+                    case "name":
+                        name = in.readString();
+                        break;
+                    case "cuisine":
+                        cuisine = interner.intern(in.readString());
+                        break;
+                    case "ingredients":
+                        ingredients = in.readStringArray();
+                        for (int i = 0; i < ingredients.size(); i++) {
+                            ingredients.set(i, interner.intern(ingredients.get(i)));
+                        }
+                        break;
+                    case "cookingTime":
+                        cookingTime = in.readInt();
+                        break;
+                    case "servings":
+                        servings = in.readInt();
+                        break;
+                    case "popularity":
+                        popularity = in.readInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            } while (in.tryConsume(','));
+            in.expect('}');
+        }
+        in.expectEnd();
+        return build(name, cuisine, ingredients, cookingTime, servings, popularity);
+    }
+
+    private static Recipe build(String name, String cuisine, List<String> ingredients, int cookingTime,
+            int servings, int popularity) {
+        RecipeError error = Recipe.validate(name, cuisine, ingredients, popularity);
+        if (error != null) {
+            throw new InvalidRecipeException(error);
+        }
+        return new Recipe(name, cuisine, ingredients, cookingTime, servings, popularity);
+    }
+
+    private static int parseInt(String value, String column) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + column + ": " + value);
+        }
+    }
+
+    // Minimal reader for the flat objects above: strings, integers, string arrays, true/false/null
+    static final class JsonCursor {
+        private final String text;
+        private int pos;
+
+        JsonCursor(String text) {
+            this.text = text;
+        }
+
+        void expect(char c) {
+            skipWhitespace();
+            if (pos >= text.length() || text.charAt(pos) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at offset " + pos);
+            }
+            pos++;
+        }
+
+        boolean tryConsume(char c) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expectEnd() {
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException("Unexpected content at offset " + pos);
+            }
+        }
+
+        String readString() {
+            expect('"');
+            StringBuilder out = null;
+            int start = pos;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return out == null ? text.substring(start, pos - 1) : out.toString();
+                }
+                if (c == '\\') {
+                    if (out == null) {
+                        out = new StringBuilder(text.substring(start, pos - 1));
+                    }
+                    if (pos >= text.length()) {
+                        break;
+                    }
+                    char e = text.charAt(pos++);
+                    switch (e) {
+                        case 'n':
+                            out.append('\n');
+                            break;
+                        case 't':
+                            out.append('\t');
+                            break;
+                        case 'r':
+                            out.append('\r');
+                            break;
+                        case 'b':
+                            out.append('\b');
+                            break;
+                        case 'f':
+                            out.append('\f');
+                            break;
+                        case 'u':
+                            if (pos + 4 > text.length()) {
+                                throw new IllegalArgumentException("Bad unicode escape at offset " + pos);
+                            }
+                            out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default:
+                            out.append(e);
+                            break;
+                    }
+                } else if (out != null) {
+                    out.append(c);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        int readInt() {
+            skipWhitespace();
+            int start = pos;
+            if (pos < text.length() && text.charAt(pos) == '-') {
+                pos++;
+            }
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                pos++;
+            }
+            try {
+                return Integer.parseInt(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected an integer at offset " + start);
+            }
+        }
+
+        List<String> readStringArray() {
+            expect('[');
+            List<String> values = new ArrayList<>();
+            if (!tryConsume(']')) {
+                do {
+                    values.add(readString());
+                } while (tryConsume(','));
+                expect(']');
+            }
+            return values;
+        }
+
+        void skipValue() {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw new IllegalArgumentException("Missing value");
+            }
+            char c = text.charAt(pos);
+            if (c == '"') {
+                readString();
+            } else if (c == '[') {
+                readStringArray();
+            } else {
+                while (pos < text.length() && ",}]".indexOf(text.charAt(pos)) < 0) {
+                    pos++;
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
+
+// Streams a CSV (.csv) or JSON Lines (anything else) catalog into a RecipeBST in bounded memory:
+// one thread reads batches of lines, a worker pool parses them, and the calling thread inserts
+// the parsed batches in file order. Rows that fail to parse or validate are written to the
+// reject file as "line<TAB>reason<TAB>row" instead of stopping the import.
+class RecipeImporter {
+    static final int BATCH_LINES = 2048;
+    private static final long PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final RecipeBST recipeBST;
+    private final Path rejectFile;
+    private final int workers;
+    // Cuisines and ingredients repeat across rows, so each distinct value is kept once
+    private final StringInterner interner = new StringInterner(1 << 20);
+    private final AtomicLong linesRead = new AtomicLong();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLongArray rejectedBy = new AtomicLongArray(RecipeError.values().length);
+    private volatile long startNanos;
+    private volatile boolean reportProgress;
+    private volatile IOException readFailure;
+
+    public RecipeImporter(RecipeBST recipeBST, Path rejectFile, int workers) {
+        if (recipeBST == null || rejectFile == null || workers <= 0) {
+            throw new IllegalArgumentException("RecipeImporter needs a RecipeBST, a reject file and workers > 0");
+        }
+        this.recipeBST = recipeBST;
+        this.rejectFile = rejectFile;
+        this.workers = workers;
+    }
+
+    // Prints a progress line to System.out every few seconds while importing
+    public RecipeImporter withProgress(boolean reportProgress) {
+        this.reportProgress = reportProgress;
+        return this;
+    }
+
+    public long linesRead() {
+        return linesRead.get();
+    }
+
+    public long imported() {
+        return imported.get();
+    }
+
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public long rejected(RecipeError error) {
+        return rejectedBy.get(error.ordinal());
+    }
+
+    // Recipes imported per second since the current import started
+    public double throughput() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : imported.get() * 1e9 / elapsed;
+    }
+
+    public void importFile(Path source) throws IOException {
+        boolean csv = source.getFileName().toString().toLowerCase().endsWith(".csv");
+        startNanos = System.nanoTime();
+        ExecutorService parsers = Executors.newFixedThreadPool(workers);
+        // Futures are queued in file order; the bound keeps at most this many batches in memory
+        BlockingQueue<Future<ParsedBatch>> pending = new ArrayBlockingQueue<>(workers * 4);
+        Future<ParsedBatch> endOfFile = CompletableFuture.completedFuture(null);
+        Thread reader = new Thread(() -> readBatches(source, csv, parsers, pending, endOfFile), "recipe-import-reader");
+        long lastProgress = startNanos;
+        try (BufferedWriter rejects = Files.newBufferedWriter(rejectFile, StandardCharsets.UTF_8)) {
+            reader.start();
+            while (true) {
+                Future<ParsedBatch> next = pending.take();
+                if (next == endOfFile) {
+                    break;
+                }
+                ParsedBatch batch = next.get();
+                int inserted = recipeBST.insertAll(batch.recipes);
+                imported.addAndGet(inserted);
+                duplicates.addAndGet(batch.recipes.size() - inserted);
+                for (String reject : batch.rejects) {
+                    rejects.write(reject);
+                    rejects.newLine();
+                }
+                rejected.addAndGet(batch.rejects.size());
+                for (int e = 0; e < batch.rejectedBy.length; e++) {
+                    rejectedBy.addAndGet(e, batch.rejectedBy[e]);
+                }
+                long now = System.nanoTime();
+                if (reportProgress && now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    System.out.printf("Imported %,d recipes (%,d rejected) at %,.0f recipes/s%n", imported.get(),
+                            rejected.get(), throughput());
+                }
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // However the loop ended, the reader must not stay blocked on a full queue: it is not
+            // a daemon, so it would keep the JVM alive. After a normal finish it has already exited.
+            reader.interrupt();
+            pending.clear();
+            parsers.shutdownNow();
+        }
+        if (readFailure != null) {
+            throw readFailure;
+        }
+    }
+
+    private void readBatches(Path source, boolean csv, ExecutorService parsers,
+            BlockingQueue<Future<ParsedBatch>> pending, Future<ParsedBatch> endOfFile) {
+        try (BufferedReader in = new BufferedReader(Files.newBufferedReader(source, StandardCharsets.UTF_8),
+                1 << 20)) {
+            int[] layout = null;
+            long lineNumber = 0;
+            if (csv) {
+                String header = in.readLine();
+                if (header == null) {
+                    pending.put(endOfFile);
+                    return;
+                }
+                lineNumber++;
+                layout = RecipeCodec.csvLayout(header);
+            }
+            final int[] csvLayout = layout;
+            List<String> lines = new ArrayList<>(BATCH_LINES);
+            String line;
+            long firstLine = lineNumber + 1;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                linesRead.incrementAndGet();
+                lines.add(line);
+                if (lines.size() == BATCH_LINES) {
+                    List<String> batch = lines;
+                    long first = firstLine;
+                    pending.put(parsers.submit(() -> parse(batch, first, csvLayout)));
+                    lines = new ArrayList<>(BATCH_LINES);
+                    firstLine = lineNumber + 1;
+                }
+            }
+            if (!lines.isEmpty()) {
+                List<String> batch = lines;
+                long first = firstLine;
+                pending.put(parsers.submit(() -> parse(batch, first, csvLayout)));
+            }
+        } catch (IOException e) {
+            readFailure = e;
+        } catch (IllegalArgumentException e) {
+            readFailure = new IOException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            pending.put(endOfFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ParsedBatch parse(List<String> lines, long firstLine, int[] csvLayout) {
+        ParsedBatch batch = new ParsedBatch(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                batch.recipes.add(csvLayout != null ? RecipeCodec.parseCsv(line, csvLayout, interner)
+                        : RecipeCodec.parseJson(line, interner));
+            } catch (InvalidRecipeException e) {
+                batch.reject(firstLine + i, e.error, e.getMessage(), line);
+            } catch (IllegalArgumentException e) {
+                batch.reject(firstLine + i, RecipeError.MALFORMED_ROW, e.getMessage(), line);
+            }
+        }
+        return batch;
+    }
+
+    private static final class ParsedBatch {
+        final List<Recipe> recipes;
+        final List<String> rejects = new ArrayList<>();
+        final int[] rejectedBy = new int[RecipeError.values().length];
+
+        ParsedBatch(int lines) {
+            recipes = new ArrayList<>(lines);
+        }
+
+        void reject(long lineNumber, RecipeError error, String reason, String line) {
+            rejects.add(lineNumber + "\t" + reason + "\t" + line);
+            rejectedBy[error.ordinal()]++;
+        }
+    }
+}
+
+// Versioned binary snapshot of a catalog. All integers are big-endian.
+//
+//   header      magic "RCPS", version, recipe count, dictionary size, ingredient ref count,
+//               sequence (long, the last mutation the snapshot includes), then the absolute
+//               offset of every section below (longs)
+//   dictionary  int[dictionarySize + 1] byte offsets, then UTF-8 bytes of every distinct
+//               name, cuisine and ingredient
+//   keys        int[count + 1] char offsets, then the case-folded names as UTF-16 chars,
+//               in ascending order: the record order is the sorted index itself
+//   columns     int[count] each: name id, cuisine id, cooking time, servings, popularity
+//   ingredients int[count + 1] offsets into int[refCount] dictionary ids
+class RecipeSnapshot {
+    static final int MAGIC = 0x52435053;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4 * 5 + 8 + 8 * 7;
+
+    // Writes to a temporary file next to the target and renames it, so a crash mid-write
+    // never leaves a truncated snapshot behind. Refuses to replace a snapshot taken at a later
+    // sequence, whose log segments may already be gone.
+    public static void write(List<Recipe> sortedRecipes, long sequence, Path target) throws IOException {
+        int n = sortedRecipes.size();
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> dictionary = new ArrayList<>();
+        int[] nameIds = new int[n], cuisineIds = new int[n];
+        int[] ingredientOffsets = new int[n + 1];
+        int refCount = 0;
+        for (Recipe recipe : sortedRecipes) {
+            refCount += recipe.getIngredients().size();
+        }
+        int[] ingredientIds = new int[refCount];
+        String[] keys = new String[n];
+        int keyChars = 0;
+        for (int i = 0; i < n; i++) {
+            Recipe recipe = sortedRecipes.get(i);
+            keys[i] = RecipeBST.foldKey(recipe.getName());
+            keyChars += keys[i].length();
+            // Names are unique in the index, so they skip the dedup lookup
+            nameIds[i] = dictionary.size();
+            dictionary.add(recipe.getName().getBytes(StandardCharsets.UTF_8));
+            cuisineIds[i] = dictionaryId(recipe.getCuisine(), ids, dictionary);
+            int offset = ingredientOffsets[i];
+            for (String ingredient : recipe.getIngredients()) {
+                ingredientIds[offset++] = dictionaryId(ingredient, ids, dictionary);
+            }
+            ingredientOffsets[i + 1] = offset;
+        }
+        long dictionaryBytes = 0;
+        for (byte[] bytes : dictionary) {
+            dictionaryBytes += bytes.length;
+        }
+
+        long dictionaryOffsetsPos = HEADER_BYTES;
+        long dictionaryDataPos = dictionaryOffsetsPos + 4L * (dictionary.size() + 1);
+        long keyOffsetsPos = dictionaryDataPos + dictionaryBytes;
+        long keyDataPos = keyOffsetsPos + 4L * (n + 1);
+        long columnsPos = keyDataPos + 2L * keyChars;
+        long ingredientOffsetsPos = columnsPos + 4L * 5 * n;
+        long ingredientIdsPos = ingredientOffsetsPos + 4L * (n + 1);
+        if (ingredientIdsPos + 4L * refCount > Integer.MAX_VALUE) {
+            throw new IOException("Catalog too large for a single mapped snapshot");
+        }
+
+        // A temporary file of its own, so concurrent writers never share one
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName() + ".", ".tmp");
+        try (BlockWriter out = new BlockWriter(FileChannel.open(temp, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(dictionary.size());
+            out.writeInt(refCount);
+            out.writeLong(sequence);
+            for (long pos : new long[] { dictionaryOffsetsPos, dictionaryDataPos, keyOffsetsPos, keyDataPos,
+                    columnsPos, ingredientOffsetsPos, ingredientIdsPos }) {
+                out.writeLong(pos);
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : dictionary) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : dictionary) {
+                out.write(bytes);
+            }
+            offset = 0;
+            out.writeInt(offset);
+            for (String key : keys) {
+                offset += key.length();
+                out.writeInt(offset);
+            }
+            for (String key : keys) {
+                out.writeChars(key);
+            }
+            for (int id : nameIds) {
+                out.writeInt(id);
+            }
+            for (int id : cuisineIds) {
+                out.writeInt(id);
+            }
+            for (Recipe recipe : sortedRecipes) {
+                out.writeInt(recipe.getCookingTime());
+            }
+            for (Recipe recipe : sortedRecipes) {
+                out.writeInt(recipe.getServings());
+            }
+            for (Recipe recipe : sortedRecipes) {
+                out.writeInt(recipe.getPopularity());
+            }
+            for (int value : ingredientOffsets) {
+                out.writeInt(value);
+            }
+            for (int id : ingredientIds) {
+                out.writeInt(id);
+            }
+            out.force();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        if (Files.exists(target) && sequenceOf(target) > sequence) {
+            Files.deleteIfExists(temp);
+            throw new IOException("Snapshot " + target + " is newer than sequence " + sequence);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Log sequence a snapshot file covers, read from its header, or -1 when the file is not a
+    // snapshot (an empty placeholder, say) and holds nothing worth keeping
+    static long sequenceOf(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is in or the file ends
+            }
+            if (header.position() < HEADER_BYTES || header.getInt(0) != MAGIC) {
+                return -1;
+            }
+            return header.getLong(20);
+        }
+    }
+
+    // Big-endian writes into a reusable block that is handed to the channel whenever it fills
+    static final class BlockWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+
+        BlockWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void writeInt(int value) throws IOException {
+            ensure(4);
+            block.putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensure(8);
+            block.putLong(value);
+        }
+
+        void writeChars(String value) throws IOException {
+            for (int i = 0; i < value.length(); i++) {
+                ensure(2);
+                block.putChar(value.charAt(i));
+            }
+        }
+
+        void write(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length;) {
+                ensure(1);
+                int chunk = Math.min(block.remaining(), bytes.length - offset);
+                block.put(bytes, offset, chunk);
+                offset += chunk;
+            }
+        }
+
+        void force() throws IOException {
+            flush();
+            channel.force(false);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (block.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            block.flip();
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            block.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static int dictionaryId(String value, Map<String, Integer> ids, List<byte[]> dictionary) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = dictionary.size();
+            ids.put(value, id);
+            dictionary.add(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+}
+
+// Read-only view of a snapshot through a memory map. Opening only checks the header; search
+// binary-searches the mapped keys and builds a Recipe for the one record it returns, so a
+// restarted process answers lookups before any record has been restored into the heap.
+class MappedRecipeCatalog {
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long sequence;
+    private final int dictionaryOffsetsPos, dictionaryDataPos, keyOffsetsPos, keyDataPos, columnsPos,
+            ingredientOffsetsPos, ingredientIdsPos;
+    // Dictionary strings decoded so far; cuisines and ingredients repeat, so each decodes once.
+    // Racing threads at worst decode the same string twice.
+    private final String[] decoded;
+
+    private MappedRecipeCatalog(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < RecipeSnapshot.HEADER_BYTES || buffer.getInt(0) != RecipeSnapshot.MAGIC) {
+            throw new IOException("Not a recipe snapshot");
+        }
+        int version = buffer.getInt(4);
+        if (version != RecipeSnapshot.VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        count = buffer.getInt(8);
+        decoded = new String[buffer.getInt(12)];
+        sequence = buffer.getLong(20);
+        dictionaryOffsetsPos = (int) buffer.getLong(28);
+        dictionaryDataPos = (int) buffer.getLong(36);
+        keyOffsetsPos = (int) buffer.getLong(44);
+        keyDataPos = (int) buffer.getLong(52);
+        columnsPos = (int) buffer.getLong(60);
+        ingredientOffsetsPos = (int) buffer.getLong(68);
+        ingredientIdsPos = (int) buffer.getLong(76);
+    }
+
+    public static MappedRecipeCatalog open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            return new MappedRecipeCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long sequence() {
+        return sequence;
+    }
+
+    public Recipe search(String name) {
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+        int index = indexOf(RecipeBST.foldKey(name));
+        return index < 0 ? null : recipeAt(index);
+    }
+
+    // Position of the key in sorted order, or -1 when absent
+    public int indexOf(String key) {
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareKey(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Recipe at a position in name order
+    public Recipe recipeAt(int index) {
+        int from = buffer.getInt(ingredientOffsetsPos + 4 * index);
+        int to = buffer.getInt(ingredientOffsetsPos + 4 * (index + 1));
+        List<String> ingredients = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ingredients.add(string(buffer.getInt(ingredientIdsPos + 4 * i)));
+        }
+        return new Recipe(string(column(0, index)), string(column(1, index)), ingredients, column(2, index),
+                column(3, index), column(4, index));
+    }
+
+    public void forEach(Consumer<Recipe> action) {
+        for (int i = 0; i < count; i++) {
+            action.accept(recipeAt(i));
+        }
+    }
+
+    private int column(int column, int index) {
+        return buffer.getInt(columnsPos + 4 * (column * count + index));
+    }
+
+    // Compares the stored key at index with the probe, char by char, straight from the map
+    private int compareKey(int index, String key) {
+        int from = buffer.getInt(keyOffsetsPos + 4 * index);
+        int length = buffer.getInt(keyOffsetsPos + 4 * (index + 1)) - from;
+        int base = keyDataPos + 2 * from;
+        int limit = Math.min(length, key.length());
+        for (int i = 0; i < limit; i++) {
+            char stored = buffer.getChar(base + 2 * i);
+            char probe = key.charAt(i);
+            if (stored != probe) {
+                return stored - probe;
+            }
+        }
+        return length - key.length();
+    }
+
+    private String string(int id) {
+        String value = decoded[id];
+        if (value == null) {
+            int from = buffer.getInt(dictionaryOffsetsPos + 4 * id);
+            int to = buffer.getInt(dictionaryOffsetsPos + 4 * (id + 1));
+            byte[] bytes = new byte[to - from];
+            buffer.get(dictionaryDataPos + from, bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            decoded[id] = value;
+        }
+        return value;
+    }
+}
+
+// Append-only log of catalog mutations, split into numbered segment files "<base>.<n>".
+// Each record is [int length][int crc32][type][long sequence][fields]. Appends go into an
+// in-memory buffer; a flusher thread writes the buffer out once per commit window and, when
+// fsync is on, forces it to disk, so concurrent writers share one fsync (group commit).
+class RecipeWriteAheadLog implements AutoCloseable {
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    // Anything claiming to be larger is a corrupt length field
+    private static final int MAX_RECORD_BYTES = 1 << 26;
+
+    private final Path base;
+    private final long commitWindowMillis;
+    private final boolean fsync;
+    private final Object monitor = new Object();
+    private final Thread flusher;
+    // Guarded by monitor
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private FileChannel segment;
+    private long segmentNumber;
+    private long lastSequence;
+    private long durableSequence;
+    private int recordStart;
+    private boolean closed;
+    private IOException failure;
+
+    public RecipeWriteAheadLog(Path base, long lastSequence, long commitWindowMillis, boolean fsync)
+            throws IOException {
+        this.base = base;
+        this.commitWindowMillis = commitWindowMillis;
+        this.fsync = fsync;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        List<Long> existing = segmentNumbers(base);
+        // Never append after a possibly torn tail: every process starts a fresh segment
+        segmentNumber = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        segment = openSegment(segmentNumber);
+        flusher = new Thread(this::flushLoop, "recipe-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public long appendInsert(Recipe recipe) throws IOException {
+        synchronized (monitor) {
+            long sequence = begin(INSERT);
+            boolean written = false;
+            try {
+                putString(recipe.getName());
+                putString(recipe.getCuisine());
+                ensure(4);
+                pending.putInt(recipe.getIngredients().size());
+                for (String ingredient : recipe.getIngredients()) {
+                    putString(ingredient);
+                }
+                ensure(12);
+                pending.putInt(recipe.getCookingTime());
+                pending.putInt(recipe.getServings());
+                pending.putInt(recipe.getPopularity());
+                end();
+                written = true;
+            } finally {
+                if (!written) {
+                    abort();
+                }
+            }
+            return sequence;
+        }
+    }
+
+    public long appendDelete(String name) throws IOException {
+        synchronized (monitor) {
+            long sequence = begin(DELETE);
+            boolean written = false;
+            try {
+                putString(name);
+                end();
+                written = true;
+            } finally {
+                if (!written) {
+                    abort();
+                }
+            }
+            return sequence;
+        }
+    }
+
+    // Blocks until the record with this sequence is written (and forced, when fsync is on)
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (monitor) {
+            while (durableSequence < sequence && failure == null && !closed) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    public long lastSequence() {
+        synchronized (monitor) {
+            return lastSequence;
+        }
+    }
+
+    public long durableSequence() {
+        synchronized (monitor) {
+            return durableSequence;
+        }
+    }
+
+    // True once a write or force has failed; the log then refuses every append
+    public boolean failed() {
+        synchronized (monitor) {
+            return failure != null;
+        }
+    }
+
+    // Flushes what is pending and switches appends to a new segment. Returns the number of the
+    // segment that was closed; everything up to lastSequence() at this point lives in it or earlier.
+    public long rollSegment() throws IOException {
+        synchronized (monitor) {
+            flushPending();
+            segment.close();
+            long closedSegment = segmentNumber;
+            segment = openSegment(++segmentNumber);
+            return closedSegment;
+        }
+    }
+
+    // Removes segments whose records are all covered by a snapshot
+    public void deleteSegmentsThrough(long lastCovered) throws IOException {
+        for (long number : segmentNumbers(base)) {
+            if (number <= lastCovered) {
+                Files.deleteIfExists(segmentPath(base, number));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (monitor) {
+            if (closed) {
+                return;
+            }
+            try {
+                flushPending();
+            } finally {
+                closed = true;
+                segment.close();
+                monitor.notifyAll();
+            }
+        }
+        flusher.interrupt();
+    }
+
+    // Applies every record with a sequence above afterSequence, in log order, and returns the
+    // last sequence applied. A record cut short at the end of a segment is a torn tail from a
+    // crash and ends that segment; the next process started a new segment that continues from
+    // the last whole record. Corruption anywhere else, or a jump in the sequence, would replay
+    // writes on top of a gap, so it fails instead.
+    public static long replay(Path base, long afterSequence, RecipeBST recipeBST) throws IOException {
+        return replay(base, afterSequence, recipeBST::insert, name -> {
+            if (recipeBST.idOf(name) >= 0) {
+                recipeBST.delete(name);
+            }
+        });
+    }
+
+    // The same walk over the log, handing each record to the matching callback
+    public static long replay(Path base, long afterSequence, Consumer<Recipe> inserts, Consumer<String> deletes)
+            throws IOException {
+        long last = afterSequence;
+        for (long number : segmentNumbers(base)) {
+            Path path = segmentPath(base, number);
+            long size = Files.size(path);
+            long position = 0;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                while (position < size) {
+                    if (size - position < 8) {
+                        break; // torn tail inside the record header
+                    }
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length < 9 || length > MAX_RECORD_BYTES) {
+                        throw new IOException("Corrupt record length in " + path + " at offset " + position);
+                    }
+                    if (position + 8 + length > size) {
+                        break; // torn tail inside the record body
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    CRC32 check = new CRC32();
+                    check.update(body);
+                    if ((int) check.getValue() != crc) {
+                        if (position + 8 + length == size) {
+                            break; // the last record was only partly written
+                        }
+                        throw new IOException("Corrupt record in " + path + " at offset " + position);
+                    }
+                    position += 8 + length;
+                    ByteBuffer record = ByteBuffer.wrap(body);
+                    byte type = record.get();
+                    long sequence = record.getLong();
+                    if (sequence <= last) {
+                        continue;
+                    }
+                    if (sequence != last + 1) {
+                        throw new IOException("Log records " + (last + 1) + " to " + (sequence - 1)
+                                + " are missing before " + path + " at offset " + (position - 8 - length));
+                    }
+                    if (type == INSERT) {
+                        String name = getString(record);
+                        String cuisine = getString(record);
+                        int count = record.getInt();
+                        List<String> ingredients = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            ingredients.add(getString(record));
+                        }
+                        inserts.accept(new Recipe(name, cuisine, ingredients, record.getInt(), record.getInt(),
+                                record.getInt()));
+                    } else if (type == DELETE) {
+                        deletes.accept(getString(record));
+                    }
+                    last = sequence;
+                }
+            }
+        }
+        return last;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (monitor) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    flushPending();
+                } catch (IOException e) {
+                    failure = e;
+                    monitor.notifyAll();
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(commitWindowMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Caller holds monitor
+    private void flushPending() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        while (pending.hasRemaining()) {
+            segment.write(pending);
+        }
+        pending.clear();
+        if (fsync) {
+            segment.force(false);
+        }
+        durableSequence = lastSequence;
+        monitor.notifyAll();
+    }
+
+    private long begin(byte type) throws IOException {
+        if (closed || failure != null) {
+            throw failure != null ? failure : new IOException("Log is closed");
+        }
+        ensure(17);
+        recordStart = pending.position();
+        pending.position(recordStart + 8); // length and crc are filled in by end()
+        pending.put(type);
+        pending.putLong(++lastSequence);
+        return lastSequence;
+    }
+
+    // Drops the record begin() started, so a failed encode leaves no partial record and no
+    // skipped sequence
+    private void abort() {
+        pending.position(recordStart);
+        lastSequence--;
+    }
+
+    private void end() {
+        int bodyStart = recordStart + 8;
+        int length = pending.position() - bodyStart;
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), bodyStart, length);
+        pending.putInt(recordStart, length);
+        pending.putInt(recordStart + 4, (int) crc.getValue());
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        pending.putInt(bytes.length);
+        pending.put(bytes);
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Grows the pending buffer, keeping the partially written record in place
+    private void ensure(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(base, number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    static Path segmentPath(Path base, long number) {
+        return base.resolveSibling(base.getFileName() + "." + String.format("%08d", number));
+    }
+
+    static List<Long> segmentNumbers(Path base) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        Path dir = base.toAbsolutePath().getParent();
+        String prefix = base.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (suffix.matches("\\d{8}")) {
+                    numbers.add(Long.parseLong(suffix));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
+
+// RecipeBST plus snapshot and write-ahead log. A mutation is logged and applied under one
+// mutex, so the log order matches the tree, and the caller returns once its record is
+// durable. Opening maps the snapshot and reads the log, but the records are restored into the
+// tree on a background thread, started by startRestore or the first call that needs the tree:
+// until it is done, search answers from the mapped keys and the log, and writes and
+// compactions wait. Readers can see a change before its record is durable; if the log then fails, it
+// refuses further appends and every change it had not made durable is undone, newest first,
+// so the tree goes back to what a restart would recover. compact() snapshots the tree and
+// drops the log segments the snapshot covers.
+class DurableRecipeCatalog implements AutoCloseable {
+    private final RecipeBST recipeBST;
+    private final Path snapshotPath;
+    private final RecipeWriteAheadLog log;
+    private final Object mutex = new Object();
+    // Changes applied to the tree whose records may not be durable yet, oldest first, each with
+    // the change that reverts it. Guarded by mutex.
+    private final ArrayDeque<Pending> undurable = new ArrayDeque<>();
+    // One compaction at a time, so snapshots replace each other in sequence order
+    private final ReentrantLock compaction = new ReentrantLock();
+    private final boolean recovered;
+    private ScheduledExecutorService compactor;
+    // Until the restore finishes: the mapped snapshot, and each name the log changed (folded)
+    // with its recipe after the log, null when deleted. Fixed once opened, since writes wait.
+    private volatile MappedRecipeCatalog cold;
+    private final Map<String, Recipe> logged = new HashMap<>();
+    private final CountDownLatch restore = new CountDownLatch(1);
+    private final AtomicBoolean restoreStarted = new AtomicBoolean();
+    private volatile Throwable restoreFailure;
+
+    // Maps the snapshot (if any), reads the log after it and opens a new segment; the records
+    // reach recipeBST once the restore runs. Listeners added before then hear every recipe as
+    // it is restored, without blocking on a tree that is being filled.
+    public DurableRecipeCatalog(RecipeBST recipeBST, Path snapshotPath, Path logPath, long commitWindowMillis,
+            boolean fsync) throws IOException {
+        this.recipeBST = recipeBST;
+        this.snapshotPath = snapshotPath;
+        MappedRecipeCatalog catalog = Files.exists(snapshotPath) ? MappedRecipeCatalog.open(snapshotPath) : null;
+        long sequence = catalog == null ? 0 : catalog.sequence();
+        cold = catalog;
+        // An insert of a name that already exists replays as a no-op, as it was when logged
+        long replayed = RecipeWriteAheadLog.replay(logPath, sequence, recipe -> {
+            if (coldSearch(recipe.getName()) == null) {
+                logged.put(RecipeBST.foldKey(recipe.getName()), recipe);
+            }
+        }, name -> logged.put(RecipeBST.foldKey(name), null));
+        this.recovered = catalog != null || replayed > sequence;
+        this.log = new RecipeWriteAheadLog(logPath, replayed, commitWindowMillis, fsync);
+        if (!recovered) {
+            cold = null;
+            restoreStarted.set(true);
+            restore.countDown();
+        }
+    }
+
+    // Starts restoring the recovered recipes into the tree on a background thread, once
+    public void startRestore() {
+        if (restoreStarted.compareAndSet(false, true)) {
+            Thread restorer = new Thread(this::restore, "recipe-restore");
+            restorer.setDaemon(true);
+            restorer.start();
+        }
+    }
+
+    // One insertAll of the snapshot records the log left alone plus the logged recipes, then
+    // the logged deletes
+    private void restore() {
+        try {
+            MappedRecipeCatalog catalog = cold;
+            List<Recipe> recipes = new ArrayList<>((catalog == null ? 0 : catalog.size()) + logged.size());
+            if (catalog != null) {
+                catalog.forEach(recipe -> {
+                    if (!logged.containsKey(RecipeBST.foldKey(recipe.getName()))) {
+                        recipes.add(recipe);
+                    }
+                });
+            }
+            List<String> deleted = new ArrayList<>();
+            for (Map.Entry<String, Recipe> entry : logged.entrySet()) {
+                if (entry.getValue() != null) {
+                    recipes.add(entry.getValue());
+                } else {
+                    deleted.add(entry.getKey());
+                }
+            }
+            recipeBST.insertAll(recipes);
+            recipeBST.deleteAll(deleted);
+            cold = null;
+        } catch (RuntimeException | Error e) {
+            restoreFailure = e;
+        } finally {
+            restore.countDown();
+        }
+    }
+
+    // True when a snapshot or log records were found on startup
+    public boolean recovered() {
+        return recovered;
+    }
+
+    // True once every recovered recipe is in the tree and its listeners
+    public boolean restored() {
+        return restore.getCount() == 0 && restoreFailure == null;
+    }
+
+    public void awaitRestored() throws IOException {
+        startRestore();
+        try {
+            restore.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while restoring the catalog", e);
+        }
+        if (restoreFailure != null) {
+            throw new IOException("Could not restore the catalog from " + snapshotPath, restoreFailure);
+        }
+    }
+
+    // The named recipe, answered from the tree once restored and from the mapped snapshot and
+    // the log before that
+    public Recipe search(String name) {
+        return cold == null && restore.getCount() == 0 ? recipeBST.search(name) : coldSearch(name);
+    }
+
+    private Recipe coldSearch(String name) {
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+        String key = RecipeBST.foldKey(name);
+        if (logged.containsKey(key)) {
+            return logged.get(key);
+        }
+        MappedRecipeCatalog catalog = cold;
+        return catalog == null ? recipeBST.search(name) : catalog.search(name);
+    }
+
+    // Returns false when the name was already taken; the record is logged either way and
+    // replays as the same no-op
+    public boolean insert(Recipe recipe) throws IOException {
+        if (recipe == null) {
+            throw new IllegalArgumentException("Cannot insert a null recipe");
+        }
+        awaitRestored();
+        long sequence;
+        boolean added;
+        synchronized (mutex) {
+            sequence = log.appendInsert(recipe);
+            added = recipeBST.insert(recipe);
+            if (added) {
+                track(sequence, () -> {
+                    if (recipeBST.contains(recipe)) {
+                        recipeBST.delete(recipe.getName());
+                    }
+                });
+            }
+        }
+        awaitDurable(sequence);
+        return added;
+    }
+
+    // Returns false when there is no such recipe; deleting a name that is not in the catalog
+    // is not logged
+    public boolean delete(String name) throws IOException {
+        awaitRestored();
+        long sequence = -1;
+        boolean removed;
+        synchronized (mutex) {
+            Recipe existing = name == null || name.isBlank() ? null : recipeBST.search(name);
+            if (existing != null) {
+                sequence = log.appendDelete(name);
+            }
+            removed = recipeBST.delete(name);
+            if (removed && existing != null) {
+                track(sequence, () -> recipeBST.insert(existing));
+            }
+        }
+        if (sequence >= 0) {
+            awaitDurable(sequence);
+        }
+        return removed;
+    }
+
+    // Caller holds mutex. Records the change and forgets the ones the log has made durable.
+    private void track(long sequence, Runnable undo) {
+        long durable = log.durableSequence();
+        while (!undurable.isEmpty() && undurable.peekFirst().sequence <= durable) {
+            undurable.pollFirst();
+        }
+        undurable.addLast(new Pending(sequence, undo));
+    }
+
+    // When the log has failed, the first writer to notice undoes every change past the durable
+    // sequence, newest first; the log takes no appends after failing, so nothing races it
+    private void awaitDurable(long sequence) throws IOException {
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            if (log.failed()) {
+                synchronized (mutex) {
+                    long durable = log.durableSequence();
+                    while (!undurable.isEmpty() && undurable.peekLast().sequence > durable) {
+                        undurable.pollLast().undo.run();
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    public void compact() throws IOException {
+        awaitRestored();
+        compaction.lock();
+        try {
+            RecipeBST.Snapshot version;
+            long sequence;
+            long closedSegment;
+            synchronized (mutex) {
+                closedSegment = log.rollSegment();
+                version = recipeBST.snapshot(); // O(1); writers carry on while it is written out
+                sequence = log.lastSequence();
+            }
+            RecipeSnapshot.write(version.inOrder(), sequence, snapshotPath);
+            log.deleteSegmentsThrough(closedSegment);
+        } finally {
+            compaction.unlock();
+        }
+    }
+
+    // Compacts in the background every period; failures are reported and retried next period
+    public void startCompaction(long period, TimeUnit unit) {
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "recipe-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Log compaction failed: " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        log.close();
+    }
+
+    private static final class Pending {
+        final long sequence;
+        final Runnable undo;
+
+        Pending(long sequence, Runnable undo) {
+            this.sequence = sequence;
+            this.undo = undo;
+        }
+    }
+}
+
+// Two-way mapping between strings and dense int ids, so a repeated value is stored once and
+// referenced by a 4-byte id
+class StringDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] values = new String[16];
+    private int size;
+
+    // Id of the value, adding it when new
+    public int intern(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = size;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    // Id of the value, or -1 when it was never interned
+    public int find(String value) {
+        Integer id = ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public String get(int id) {
+        return values[id];
+    }
+
+    public int size() {
+        return size;
+    }
+}
+
+// Compact alternative to holding Recipe objects: cuisines and ingredients are interned into
+// dictionaries, ingredient lists are int[] of dictionary ids, names share one char pool, and
+// the numeric fields are parallel int columns indexed by slot. Name lookup goes through an
+// open-addressing table of slots, so no per-recipe map entry or boxed key exists.
+// get() builds a Recipe on demand whose ingredient list is a view over the id array.
+class CompactRecipeStore {
+    private final StringDictionary cuisines = new StringDictionary();
+    private final StringDictionary ingredients = new StringDictionary();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private char[] namePool = new char[1 << 12];
+    private int namePoolUsed;
+    private int namePoolGarbage;
+
+    // Per-slot columns; a slot with nameLengths == -1 is free
+    private int[] nameOffsets = new int[16];
+    private int[] nameLengths = new int[16];
+    private int[] nameHashes = new int[16];
+    private int[] cuisineIds = new int[16];
+    private int[] cookingTimes = new int[16];
+    private int[] servings = new int[16];
+    private int[] popularity = new int[16];
+    private int[][] ingredientIds = new int[16][];
+    private int slotCount;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int size;
+
+    // Open addressing over slot + 1 (0 = empty, -1 = deleted), linear probing
+    private int[] table = new int[32];
+    private int tableUsed;
+
+    // Returns the slot of the new recipe, or -1 when the name is already stored
+    public int add(Recipe recipe) {
+        if (recipe == null) {
+            throw new IllegalArgumentException("Cannot add a null recipe");
+        }
+        String key = RecipeBST.foldKey(recipe.getName());
+        lock.writeLock().lock();
+        try {
+            int hash = key.hashCode();
+            if (findSlot(key, hash) >= 0) {
+                return -1;
+            }
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : newSlot();
+            String name = recipe.getName();
+            ensureNamePool(name.length());
+            name.getChars(0, name.length(), namePool, namePoolUsed);
+            nameOffsets[slot] = namePoolUsed;
+            nameLengths[slot] = name.length();
+            namePoolUsed += name.length();
+            nameHashes[slot] = hash;
+            cuisineIds[slot] = cuisines.intern(recipe.getCuisine());
+            cookingTimes[slot] = recipe.getCookingTime();
+            servings[slot] = recipe.getServings();
+            popularity[slot] = recipe.getPopularity();
+            List<String> list = recipe.getIngredients();
+            int[] ids = new int[list.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = ingredients.intern(list.get(i));
+            }
+            ingredientIds[slot] = ids;
+            insertIntoTable(slot, hash);
+            size++;
+            return slot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Recipe search(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        String key = RecipeBST.foldKey(name);
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(key, key.hashCode());
+            return slot < 0 ? null : materialize(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Recipe get(int slot) {
+        lock.readLock().lock();
+        try {
+            return slot >= 0 && slot < slotCount && nameLengths[slot] >= 0 ? materialize(slot) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(String name) {
+        if (name == null) {
+            return false;
+        }
+        String key = RecipeBST.foldKey(name);
+        lock.writeLock().lock();
+        try {
+            int hash = key.hashCode();
+            int mask = table.length - 1;
+            for (int i = hash & mask;; i = (i + 1) & mask) {
+                int entry = table[i];
+                if (entry == 0) {
+                    return false;
+                }
+                if (entry > 0 && matches(entry - 1, key, hash)) {
+                    int slot = entry - 1;
+                    table[i] = -1;
+                    namePoolGarbage += nameLengths[slot];
+                    nameLengths[slot] = -1;
+                    ingredientIds[slot] = null;
+                    if (freeCount == freeSlots.length) {
+                        freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                    }
+                    freeSlots[freeCount++] = slot;
+                    size--;
+                    if (namePoolGarbage > namePoolUsed / 2) {
+                        compactNamePool();
+                    }
+                    return true;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void forEach(Consumer<Recipe> action) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (nameLengths[slot] >= 0) {
+                    action.accept(materialize(slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Recipe materialize(int slot) {
+        String name = new String(namePool, nameOffsets[slot], nameLengths[slot]);
+        return new Recipe(name, cuisines.get(cuisineIds[slot]), new IngredientView(ingredientIds[slot], ingredients),
+                cookingTimes[slot], servings[slot], popularity[slot]);
+    }
+
+    private int findSlot(String key, int hash) {
+        int mask = table.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int entry = table[i];
+            if (entry == 0) {
+                return -1;
+            }
+            if (entry > 0 && matches(entry - 1, key, hash)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    // Compares the pooled name, folded char by char, against an already folded key
+    private boolean matches(int slot, String key, int hash) {
+        if (nameHashes[slot] != hash || nameLengths[slot] != key.length()) {
+            return false;
+        }
+        int offset = nameOffsets[slot];
+        for (int i = 0; i < key.length(); i++) {
+            char c = namePool[offset + i];
+            if (Character.toLowerCase(Character.toUpperCase(c)) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertIntoTable(int slot, int hash) {
+        if ((tableUsed + 1) * 2 > table.length) {
+            rehash(table.length * ((size + 1) * 2 > table.length ? 2 : 1));
+        }
+        int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] > 0) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == 0) {
+            tableUsed++;
+        }
+        table[i] = slot + 1;
+    }
+
+    // Rebuilds the table without tombstones
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        tableUsed = 0;
+        int mask = capacity - 1;
+        for (int entry : old) {
+            if (entry > 0) {
+                int i = nameHashes[entry - 1] & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = entry;
+                tableUsed++;
+            }
+        }
+    }
+
+    private int newSlot() {
+        if (slotCount == nameOffsets.length) {
+            int capacity = slotCount * 2;
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            nameHashes = Arrays.copyOf(nameHashes, capacity);
+            cuisineIds = Arrays.copyOf(cuisineIds, capacity);
+            cookingTimes = Arrays.copyOf(cookingTimes, capacity);
+            servings = Arrays.copyOf(servings, capacity);
+            popularity = Arrays.copyOf(popularity, capacity);
+            ingredientIds = Arrays.copyOf(ingredientIds, capacity);
+        }
+        return slotCount++;
+    }
+
+    private void ensureNamePool(int chars) {
+        if (namePoolUsed + chars > namePool.length) {
+            namePool = Arrays.copyOf(namePool, Math.max(namePool.length * 2, namePoolUsed + chars));
+        }
+    }
+
+    // Copies live names into a fresh pool once deleted names take up half of it
+    private void compactNamePool() {
+        char[] pool = new char[Math.max(namePoolUsed - namePoolGarbage, 1 << 12)];
+        int used = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (nameLengths[slot] >= 0) {
+                System.arraycopy(namePool, nameOffsets[slot], pool, used, nameLengths[slot]);
+                nameOffsets[slot] = used;
+                used += nameLengths[slot];
+            }
+        }
+        namePool = pool;
+        namePoolUsed = used;
+        namePoolGarbage = 0;
+    }
+
+    // Read-only List<String> over an ingredient id array
+    static final class IngredientView extends AbstractList<String> {
+        private final int[] ids;
+        private final StringDictionary dictionary;
+
+        IngredientView(int[] ids, StringDictionary dictionary) {
+            this.ids = ids;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public String get(int index) {
+            return dictionary.get(ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+}
+
+// Recipe storage for catalogs too large to hold as objects. Records and the AVL name index
+// live in direct ByteBuffers outside the Java heap, so the collector never traces or copies
+// them; the heap holds only the page references and the cuisine/ingredient dictionaries.
+// search() and traversal build a Recipe on demand from the record, with its ingredient list a
+// view over dictionary ids, and the caller's copy is garbage as soon as it is dropped.
+class OffHeapRecipeStore implements Iterable<Recipe>, AutoCloseable {
+    private static final int MAX_HEIGHT = 64;
+    private static final int RECORD_PAGE_SHIFT = 24; // 16 MiB pages of records
+    private static final int RECORD_PAGE_BYTES = 1 << RECORD_PAGE_SHIFT;
+    private static final int NODE_PAGE_SHIFT = 16; // 65,536 nodes per page
+    private static final int NODE_BYTES = 24;
+    private static final int ITERATOR_PAGE = 256;
+
+    // Record: name length, cuisine id, cooking time, servings, popularity, ingredient count,
+    // then the name's chars and the ingredient ids
+    private static final int NAME_LENGTH = 0;
+    private static final int CUISINE = 4;
+    private static final int COOKING_TIME = 8;
+    private static final int SERVINGS = 12;
+    private static final int POPULARITY = 16;
+    private static final int INGREDIENT_COUNT = 20;
+    private static final int RECORD_HEADER = 24;
+
+    // Node: record address (page << RECORD_PAGE_SHIFT | offset), left, right, height, size.
+    // Node 0 is never allocated and stands for null.
+    private static final int RECORD = 0;
+    private static final int LEFT = 8;
+    private static final int RIGHT = 12;
+    private static final int HEIGHT = 16;
+    private static final int SIZE = 20;
+
+    private final StringDictionary cuisines = new StringDictionary();
+    private final StringDictionary ingredients = new StringDictionary();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ByteBuffer[] recordPages = new ByteBuffer[4];
+    private int recordPageCount;
+    private int recordPageUsed = RECORD_PAGE_BYTES; // forces a page on the first write
+    private long liveRecordBytes;
+    private long garbageRecordBytes;
+
+    private ByteBuffer[] nodePages = new ByteBuffer[4];
+    private int nodeCount = 1;
+    private int freeNodes; // chained through LEFT
+    private int root;
+    private boolean closed;
+
+    // Returns false when a recipe with the same name (ignoring case) is already stored
+    public boolean insert(Recipe recipe) {
+        if (recipe == null) {
+            return false;
+        }
+        String key = RecipeBST.foldKey(recipe.getName());
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (find(key) != 0) {
+                return false;
+            }
+            root = insert(root, key, writeRecord(recipe));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Recipe search(String name) {
+        if (name == null || name.isBlank()) {
+            return null;
+        }
+        String key = RecipeBST.foldKey(name);
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int node = find(key);
+            return node == 0 ? null : materialize(getLong(node, RECORD));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(String name) {
+        if (name == null || name.isBlank()) {
+            return false;
+        }
+        String key = RecipeBST.foldKey(name);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (find(key) == 0) {
+                return false;
+            }
+            root = delete(root, key);
+            if (garbageRecordBytes > liveRecordBytes && garbageRecordBytes > RECORD_PAGE_BYTES) {
+                compactRecords();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return root == 0 ? 0 : getInt(root, SIZE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int height() {
+        lock.readLock().lock();
+        try {
+            return height(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Bytes of direct memory held for records and nodes
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            long nodePageCount = (nodeCount + (1 << NODE_PAGE_SHIFT) - 1) >>> NODE_PAGE_SHIFT;
+            return (long) recordPageCount * RECORD_PAGE_BYTES + nodePageCount * (NODE_BYTES << NODE_PAGE_SHIFT);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to count recipes in name order strictly after lastName (from the first when null)
+    public List<Recipe> pageAfter(String lastName, int count) {
+        List<Recipe> recipes = new ArrayList<>();
+        if (count <= 0) {
+            return recipes;
+        }
+        String fromKey = lastName == null ? null : RecipeBST.foldKey(lastName);
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            // Keep the ancestors after fromKey, the nearest on top
+            int[] stack = new int[MAX_HEIGHT];
+            int top = 0;
+            int node = root;
+            while (node != 0) {
+                if (fromKey == null || compare(fromKey, getLong(node, RECORD)) < 0) {
+                    stack[top++] = node;
+                    node = getInt(node, LEFT);
+                } else {
+                    node = getInt(node, RIGHT);
+                }
+            }
+            while (top > 0 && recipes.size() < count) {
+                node = stack[--top];
+                recipes.add(materialize(getLong(node, RECORD)));
+                for (node = getInt(node, RIGHT); node != 0; node = getInt(node, LEFT)) {
+                    stack[top++] = node;
+                }
+            }
+            return recipes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Recipe> inOrder() {
+        List<Recipe> recipes = new ArrayList<>();
+        forEach(recipes::add);
+        return recipes;
+    }
+
+    @Override
+    public void forEach(Consumer<? super Recipe> action) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int[] stack = new int[MAX_HEIGHT];
+            int top = 0;
+            int node = root;
+            while (node != 0 || top > 0) {
+                for (; node != 0; node = getInt(node, LEFT)) {
+                    stack[top++] = node;
+                }
+                node = stack[--top];
+                action.accept(materialize(getLong(node, RECORD)));
+                node = getInt(node, RIGHT);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lazy, in name order, a page at a time. Each page is read under the lock and the next
+    // starts after the last name returned, so writes between pages are seen without failing.
+    @Override
+    public Iterator<Recipe> iterator() {
+        return new Iterator<Recipe>() {
+            private List<Recipe> page = pageAfter(null, ITERATOR_PAGE);
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                if (index == page.size() && page.size() == ITERATOR_PAGE) {
+                    page = pageAfter(page.get(ITERATOR_PAGE - 1).getName(), ITERATOR_PAGE);
+                    index = 0;
+                }
+                return index < page.size();
+            }
+
+            @Override
+            public Recipe next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.get(index++);
+            }
+        };
+    }
+
+    // Drops every page; the direct memory is returned once the buffers are collected
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            recordPages = new ByteBuffer[0];
+            nodePages = new ByteBuffer[0];
+            recordPageCount = 0;
+            nodeCount = 1;
+            root = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Off-heap recipe store is closed");
+        }
+    }
+
+    private int find(String key) {
+        int node = root;
+        while (node != 0) {
+            int cmp = compare(key, getLong(node, RECORD));
+            if (cmp == 0) {
+                return node;
+            }
+            node = getInt(node, cmp < 0 ? LEFT : RIGHT);
+        }
+        return 0;
+    }
+
+    private int insert(int node, String key, long record) {
+        if (node == 0) {
+            return newNode(record);
+        }
+        if (compare(key, getLong(node, RECORD)) < 0) {
+            putInt(node, LEFT, insert(getInt(node, LEFT), key, record));
+        } else {
+            putInt(node, RIGHT, insert(getInt(node, RIGHT), key, record));
+        }
+        return rebalance(node);
+    }
+
+    // The key is known to be present
+    private int delete(int node, String key) {
+        int cmp = compare(key, getLong(node, RECORD));
+        if (cmp < 0) {
+            putInt(node, LEFT, delete(getInt(node, LEFT), key));
+            return rebalance(node);
+        }
+        if (cmp > 0) {
+            putInt(node, RIGHT, delete(getInt(node, RIGHT), key));
+            return rebalance(node);
+        }
+        long record = getLong(node, RECORD);
+        int length = recordLength(record);
+        liveRecordBytes -= length;
+        garbageRecordBytes += length;
+        int left = getInt(node, LEFT);
+        int right = getInt(node, RIGHT);
+        if (left == 0 || right == 0) {
+            freeNode(node);
+            return left != 0 ? left : right;
+        }
+        // Two children: take over the successor's record and unlink the successor instead
+        int successor = right;
+        while (getInt(successor, LEFT) != 0) {
+            successor = getInt(successor, LEFT);
+        }
+        putLong(node, RECORD, getLong(successor, RECORD));
+        putInt(node, RIGHT, deleteMin(right));
+        return rebalance(node);
+    }
+
+    private int deleteMin(int node) {
+        int left = getInt(node, LEFT);
+        if (left == 0) {
+            int right = getInt(node, RIGHT);
+            freeNode(node);
+            return right;
+        }
+        putInt(node, LEFT, deleteMin(left));
+        return rebalance(node);
+    }
+
+    private int rebalance(int node) {
+        update(node);
+        int balance = height(getInt(node, LEFT)) - height(getInt(node, RIGHT));
+        if (balance > 1) {
+            int left = getInt(node, LEFT);
+            if (height(getInt(left, LEFT)) < height(getInt(left, RIGHT))) {
+                putInt(node, LEFT, rotateLeft(left));
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            int right = getInt(node, RIGHT);
+            if (height(getInt(right, RIGHT)) < height(getInt(right, LEFT))) {
+                putInt(node, RIGHT, rotateRight(right));
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private int rotateRight(int node) {
+        int left = getInt(node, LEFT);
+        putInt(node, LEFT, getInt(left, RIGHT));
+        putInt(left, RIGHT, node);
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private int rotateLeft(int node) {
+        int right = getInt(node, RIGHT);
+        putInt(node, RIGHT, getInt(right, LEFT));
+        putInt(right, LEFT, node);
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private void update(int node) {
+        int left = getInt(node, LEFT);
+        int right = getInt(node, RIGHT);
+        putInt(node, HEIGHT, Math.max(height(left), height(right)) + 1);
+        putInt(node, SIZE, (left == 0 ? 0 : getInt(left, SIZE)) + (right == 0 ? 0 : getInt(right, SIZE)) + 1);
+    }
+
+    private int height(int node) {
+        return node == 0 ? 0 : getInt(node, HEIGHT);
+    }
+
+    private int newNode(long record) {
+        int node;
+        if (freeNodes != 0) {
+            node = freeNodes;
+            freeNodes = getInt(node, LEFT);
+        } else {
+            node = nodeCount++;
+            int page = node >>> NODE_PAGE_SHIFT;
+            if (page == nodePages.length) {
+                nodePages = Arrays.copyOf(nodePages, page * 2);
+            }
+            if (nodePages[page] == null) {
+                nodePages[page] = allocate(NODE_BYTES << NODE_PAGE_SHIFT);
+            }
+        }
+        putLong(node, RECORD, record);
+        putInt(node, LEFT, 0);
+        putInt(node, RIGHT, 0);
+        putInt(node, HEIGHT, 1);
+        putInt(node, SIZE, 1);
+        return node;
+    }
+
+    private void freeNode(int node) {
+        putInt(node, LEFT, freeNodes);
+        freeNodes = node;
+    }
+
+    private long writeRecord(Recipe recipe) {
+        String name = recipe.getName();
+        List<String> list = recipe.getIngredients();
+        int length = RECORD_HEADER + name.length() * 2 + list.size() * 4;
+        if (length > RECORD_PAGE_BYTES) {
+            throw new IllegalArgumentException("Recipe is too large for the off-heap store: " + name);
+        }
+        long record = allocateRecord(length);
+        ByteBuffer page = recordPages[(int) (record >>> RECORD_PAGE_SHIFT)];
+        int offset = (int) record & (RECORD_PAGE_BYTES - 1);
+        page.putInt(offset + NAME_LENGTH, name.length());
+        page.putInt(offset + CUISINE, cuisines.intern(recipe.getCuisine()));
+        page.putInt(offset + COOKING_TIME, recipe.getCookingTime());
+        page.putInt(offset + SERVINGS, recipe.getServings());
+        page.putInt(offset + POPULARITY, recipe.getPopularity());
+        page.putInt(offset + INGREDIENT_COUNT, list.size());
+        int at = offset + RECORD_HEADER;
+        for (int i = 0; i < name.length(); i++, at += 2) {
+            page.putChar(at, name.charAt(i));
+        }
+        for (String ingredient : list) {
+            page.putInt(at, ingredients.intern(ingredient));
+            at += 4;
+        }
+        liveRecordBytes += length;
+        return record;
+    }
+
+    // Records never straddle pages; the tail of a page too short for the next one is left unused
+    private long allocateRecord(int length) {
+        if (recordPageUsed + length > RECORD_PAGE_BYTES) {
+            if (recordPageCount == recordPages.length) {
+                recordPages = Arrays.copyOf(recordPages, recordPageCount * 2);
+            }
+            recordPages[recordPageCount++] = allocate(RECORD_PAGE_BYTES);
+            recordPageUsed = 0;
+        }
+        long record = ((long) (recordPageCount - 1) << RECORD_PAGE_SHIFT) | recordPageUsed;
+        recordPageUsed += length;
+        return record;
+    }
+
+    private int recordLength(long record) {
+        ByteBuffer page = recordPages[(int) (record >>> RECORD_PAGE_SHIFT)];
+        int offset = (int) record & (RECORD_PAGE_BYTES - 1);
+        return RECORD_HEADER + page.getInt(offset + NAME_LENGTH) * 2 + page.getInt(offset + INGREDIENT_COUNT) * 4;
+    }
+
+    // Copies the live records, in name order, into fresh pages once deleted ones outweigh them
+    private void compactRecords() {
+        ByteBuffer[] old = recordPages;
+        recordPages = new ByteBuffer[Math.max(4, recordPages.length)];
+        recordPageCount = 0;
+        recordPageUsed = RECORD_PAGE_BYTES;
+        int[] stack = new int[MAX_HEIGHT];
+        int top = 0;
+        int node = root;
+        while (node != 0 || top > 0) {
+            for (; node != 0; node = getInt(node, LEFT)) {
+                stack[top++] = node;
+            }
+            node = stack[--top];
+            long from = getLong(node, RECORD);
+            ByteBuffer source = old[(int) (from >>> RECORD_PAGE_SHIFT)];
+            int offset = (int) from & (RECORD_PAGE_BYTES - 1);
+            int length = RECORD_HEADER + source.getInt(offset + NAME_LENGTH) * 2
+                    + source.getInt(offset + INGREDIENT_COUNT) * 4;
+            long to = allocateRecord(length);
+            ByteBuffer target = recordPages[(int) (to >>> RECORD_PAGE_SHIFT)];
+            target.put((int) to & (RECORD_PAGE_BYTES - 1), source, offset, length);
+            putLong(node, RECORD, to);
+            node = getInt(node, RIGHT);
+        }
+        garbageRecordBytes = 0;
+    }
+
+    // Same order as key.compareTo(foldKey(name)) without building the folded name
+    private int compare(String key, long record) {
+        ByteBuffer page = recordPages[(int) (record >>> RECORD_PAGE_SHIFT)];
+        int offset = (int) record & (RECORD_PAGE_BYTES - 1);
+        int length = page.getInt(offset + NAME_LENGTH);
+        int limit = Math.min(key.length(), length);
+        int at = offset + RECORD_HEADER;
+        for (int i = 0; i < limit; i++, at += 2) {
+            char c = RecipeBST.fold(page.getChar(at));
+            if (key.charAt(i) != c) {
+                return key.charAt(i) - c;
+            }
+        }
+        return key.length() - length;
+    }
+
+    private Recipe materialize(long record) {
+        ByteBuffer page = recordPages[(int) (record >>> RECORD_PAGE_SHIFT)];
+        int offset = (int) record & (RECORD_PAGE_BYTES - 1);
+        char[] name = new char[page.getInt(offset + NAME_LENGTH)];
+        int at = offset + RECORD_HEADER;
+        for (int i = 0; i < name.length; i++, at += 2) {
+            name[i] = page.getChar(at);
+        }
+        int[] ids = new int[page.getInt(offset + INGREDIENT_COUNT)];
+        for (int i = 0; i < ids.length; i++, at += 4) {
+            ids[i] = page.getInt(at);
+        }
+        return new Recipe(new String(name), cuisines.get(page.getInt(offset + CUISINE)),
+                new CompactRecipeStore.IngredientView(ids, ingredients), page.getInt(offset + COOKING_TIME),
+                page.getInt(offset + SERVINGS), page.getInt(offset + POPULARITY));
+    }
+
+    private int getInt(int node, int field) {
+        return nodePages[node >>> NODE_PAGE_SHIFT].getInt(nodeOffset(node) + field);
+    }
+
+    private long getLong(int node, int field) {
+        return nodePages[node >>> NODE_PAGE_SHIFT].getLong(nodeOffset(node) + field);
+    }
+
+    private void putInt(int node, int field, int value) {
+        nodePages[node >>> NODE_PAGE_SHIFT].putInt(nodeOffset(node) + field, value);
+    }
+
+    private void putLong(int node, int field, long value) {
+        nodePages[node >>> NODE_PAGE_SHIFT].putLong(nodeOffset(node) + field, value);
+    }
+
+    private static int nodeOffset(int node) {
+        return (node & ((1 << NODE_PAGE_SHIFT) - 1)) * NODE_BYTES;
+    }
+
+    private static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
+
+// Table model that reads rows straight from a RecipeBST snapshot by rank. Nothing is copied up
+// front: JTable only asks for visible rows, each page of rows is fetched and formatted by a
+// SwingWorker off the EDT, and a small LRU of pages bounds memory however far the user scrolls.
+// Every page comes from the same version of the catalog until refresh, so rows never shift or
+// repeat while the console keeps changing the tree.
+class RecipeTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final int PAGE_SIZE = 128;
+    private static final int MAX_PAGES = 32;
+    private static final String[] COLUMNS = { "Name", "Cuisine", "Ingredients", "Time", "Servings", "Popularity" };
+    private static final String LOADING = "...";
+    private static final String UNAVAILABLE = "(unavailable)";
+
+    private final RecipeBST recipeBST;
+    private RecipeBST.Snapshot snapshot;
+    private int rowCount;
+    // Accessed on the EDT only
+    private final Map<Integer, String[][]> pages = new LinkedHashMap<Integer, String[][]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final Set<Integer> loading = new HashSet<>();
+    // Pages whose load failed; not retried on every repaint, only after the next refresh
+    private final Set<Integer> failed = new HashSet<>();
+    private int generation;
+
+    public RecipeTableModel(RecipeBST recipeBST) {
+        this.recipeBST = recipeBST;
+        this.snapshot = recipeBST.snapshot();
+        this.rowCount = snapshot.size();
+    }
+
+    // Drops cached pages and moves to the tree's current version; call on the EDT after changes
+    public void refresh() {
+        generation++;
+        pages.clear();
+        loading.clear();
+        failed.clear();
+        snapshot = recipeBST.snapshot();
+        rowCount = snapshot.size();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int pageNumber = row / PAGE_SIZE;
+        String[][] page = pages.get(pageNumber);
+        if (page == null) {
+            if (failed.contains(pageNumber)) {
+                return UNAVAILABLE;
+            }
+            load(pageNumber);
+            return LOADING;
+        }
+        int offset = row - pageNumber * PAGE_SIZE;
+        return offset < page.length ? page[offset][column] : "";
+    }
+
+    private void load(int pageNumber) {
+        if (!loading.add(pageNumber)) {
+            return;
+        }
+        int requestedGeneration = generation;
+        RecipeBST.Snapshot version = snapshot;
+        new SwingWorker<String[][], Void>() {
+            @Override
+            protected String[][] doInBackground() {
+                List<Recipe> recipes = version.page(pageNumber * PAGE_SIZE, PAGE_SIZE);
+                String[][] rows = new String[recipes.size()][];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = format(recipes.get(i));
+                }
+                return rows;
+            }
+
+            @Override
+            protected void done() {
+                if (requestedGeneration != generation) {
+                    return; // refreshed while loading
+                }
+                loading.remove(pageNumber);
+                try {
+                    pages.put(pageNumber, get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                    System.err.println("Could not load recipes: " + cause);
+                    failed.add(pageNumber);
+                }
+                int first = pageNumber * PAGE_SIZE;
+                int last = Math.min(first + PAGE_SIZE, rowCount) - 1;
+                if (first <= last) {
+                    fireTableRowsUpdated(first, last);
+                }
+            }
+        }.execute();
+    }
+
+    static String[] format(Recipe r) {
+        return new String[] { r.getName(), r.getCuisine(), String.join(", ", r.getIngredients()),
+                r.getCookingTime() + " mins", String.valueOf(r.getServings()), String.valueOf(r.getPopularity()) };
+    }
+}
+
+// Type-ahead over recipe names. The folded names live sorted in one char array, which works as
+// an implicit trie: every prefix owns a contiguous run of positions. Completion binary-searches
+// that run and pulls the most popular entries out of a max segment tree over popularity. Fuzzy
+// lookup walks the implicit trie while stepping a Levenshtein automaton (one DP row per trie
+// level) and abandons any branch the automaton can no longer accept.
+// Inserts and deletes go to a small delta that is merged in by the next query once it
+// outgrows REBUILD_THRESHOLD, so a bulk load costs a single rebuild.
+class RecipeNameIndex implements RecipeIndexListener {
+    static final int MAX_EDITS = 2;
+    private static final int REBUILD_THRESHOLD = 1024;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Sorted base: the key at position i is keyChars[keyStart[i] .. keyStart[i + 1])
+    private char[] keyChars = new char[0];
+    private int[] keyStart = new int[1];
+    private Recipe[] recipes = new Recipe[0]; // null once deleted
+    private int[] score = new int[0]; // popularity, or Integer.MIN_VALUE once deleted
+    private int[] best = new int[0]; // segment tree of positions holding the best score below each node
+    private int deleted;
+    // Recent inserts that are not merged into the base yet, by folded name
+    private final Map<String, Recipe> added = new HashMap<>();
+    private volatile boolean stale;
+    private List<Recipe> replayed; // set while addListener replays the tree
+
+    public RecipeNameIndex(RecipeBST recipeBST) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        lock.writeLock().lock();
+        try {
+            // The replay arrives in name order, so it becomes the base without any sorting
+            replayed = new ArrayList<>(recipeBST.size());
+            recipeBST.addListener(this);
+            int chars = 0;
+            for (Recipe recipe : replayed) {
+                chars += recipe.getName().length();
+            }
+            keyChars = new char[chars];
+            keyStart = new int[replayed.size() + 1];
+            recipes = replayed.toArray(new Recipe[0]);
+            score = new int[recipes.length];
+            for (int i = 0; i < recipes.length; i++) {
+                String key = RecipeBST.foldKey(recipes[i].getName());
+                if (keyStart[i] + key.length() > keyChars.length) {
+                    keyChars = Arrays.copyOf(keyChars, keyStart[i] + key.length() + chars / 8);
+                }
+                key.getChars(0, key.length(), keyChars, keyStart[i]);
+                keyStart[i + 1] = keyStart[i] + key.length();
+                score[i] = recipes[i].getPopularity();
+            }
+            replayed = null;
+            rebuild();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            if (replayed != null) {
+                replayed.add(recipe);
+                return;
+            }
+            added.put(RecipeBST.foldKey(recipe.getName()), recipe);
+            checkStale();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            String key = RecipeBST.foldKey(recipe.getName());
+            if (added.remove(key) == null) {
+                int position = find(key);
+                if (position >= 0 && recipes[position] != null) {
+                    recipes[position] = null;
+                    score[position] = Integer.MIN_VALUE;
+                    updateBest(position);
+                    deleted++;
+                }
+            }
+            checkStale();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return recipes.length - deleted + added.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Recipes whose name starts with the prefix (ignoring case), most popular first
+    public List<Recipe> complete(String prefix, int limit) {
+        if (prefix == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        String key = RecipeBST.foldKey(prefix);
+        compactIfStale();
+        lock.readLock().lock();
+        try {
+            List<Recipe> results = new ArrayList<>();
+            int lo = lowerBound(key);
+            int hi = prefixEnd(lo, key);
+            // Best-first over the segment tree: take the top of a range, then split around it
+            PriorityQueue<int[]> ranges = new PriorityQueue<>((a, b) -> better(a[2], b[2]) == a[2] ? -1 : 1);
+            if (lo < hi) {
+                ranges.add(new int[] { lo, hi, bestIn(lo, hi) });
+            }
+            while (results.size() < limit && !ranges.isEmpty()) {
+                int[] range = ranges.poll();
+                int position = range[2];
+                if (recipes[position] == null) {
+                    continue; // only deleted entries are left in this range
+                }
+                results.add(recipes[position]);
+                if (range[0] < position) {
+                    ranges.add(new int[] { range[0], position, bestIn(range[0], position) });
+                }
+                if (position + 1 < range[1]) {
+                    ranges.add(new int[] { position + 1, range[1], bestIn(position + 1, range[1]) });
+                }
+            }
+            for (Map.Entry<String, Recipe> entry : added.entrySet()) {
+                if (entry.getKey().startsWith(key)) {
+                    results.add(entry.getValue());
+                }
+            }
+            results.sort(BY_POPULARITY);
+            return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Recipes whose whole name is within maxEdits insertions, deletions or substitutions of the
+    // query (ignoring case), closest first and then most popular
+    public List<Recipe> fuzzy(String query, int maxEdits, int limit) {
+        if (maxEdits < 0 || maxEdits > MAX_EDITS) {
+            throw new IllegalArgumentException("maxEdits must be between 0 and " + MAX_EDITS);
+        }
+        if (query == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        String key = RecipeBST.foldKey(query);
+        compactIfStale();
+        lock.readLock().lock();
+        try {
+            List<List<Recipe>> byDistance = newBuckets(maxEdits);
+            // No key deeper than the query plus maxEdits can be accepted, which bounds the rows
+            int[][] rows = new int[key.length() + maxEdits + 2][key.length() + 1];
+            for (int j = 0; j <= key.length(); j++) {
+                rows[0][j] = j;
+            }
+            walk(key, maxEdits, 0, recipes.length, 0, rows, byDistance);
+            for (Map.Entry<String, Recipe> entry : added.entrySet()) {
+                int distance = distance(key, entry.getKey(), maxEdits);
+                if (distance <= maxEdits) {
+                    byDistance.get(distance).add(entry.getValue());
+                }
+            }
+            List<Recipe> results = new ArrayList<>();
+            for (List<Recipe> bucket : byDistance) {
+                bucket.sort(BY_POPULARITY);
+                for (int i = 0; i < bucket.size() && results.size() < limit; i++) {
+                    results.add(bucket.get(i));
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // What a search box shows while typing: completions first, then near misses for typos
+    public List<Recipe> suggest(String text, int limit) {
+        List<Recipe> results = complete(text, limit);
+        if (text != null && results.size() < limit) {
+            int maxEdits = text.length() < 5 ? 1 : MAX_EDITS;
+            for (Recipe recipe : fuzzy(text, maxEdits, limit)) {
+                if (results.size() == limit) {
+                    break;
+                }
+                if (!results.contains(recipe)) {
+                    results.add(recipe);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static final Comparator<Recipe> BY_POPULARITY = Comparator.comparingInt(Recipe::getPopularity)
+            .reversed().thenComparing(recipe -> RecipeBST.foldKey(recipe.getName()));
+
+    private static List<List<Recipe>> newBuckets(int maxEdits) {
+        List<List<Recipe>> buckets = new ArrayList<>(maxEdits + 1);
+        for (int i = 0; i <= maxEdits; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        return buckets;
+    }
+
+    // Positions lo..hi share their first `depth` characters; rows[depth] is the automaton state
+    // after reading them. The key equal to the shared prefix, if any, sorts first.
+    private void walk(String query, int maxEdits, int lo, int hi, int depth, int[][] rows,
+            List<List<Recipe>> byDistance) {
+        int[] row = rows[depth];
+        int m = query.length();
+        if (lo < hi && keyStart[lo + 1] - keyStart[lo] == depth) {
+            if (row[m] <= maxEdits && recipes[lo] != null) {
+                byDistance.get(row[m]).add(recipes[lo]);
+            }
+            lo++;
+        }
+        int[] next = rows[depth + 1];
+        while (lo < hi) {
+            char c = keyChars[keyStart[lo] + depth];
+            int end = childEnd(lo, hi, depth, c);
+            next[0] = depth + 1;
+            int min = next[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = query.charAt(j - 1) == c ? 0 : 1;
+                int value = Math.min(Math.min(next[j - 1], row[j]) + 1, row[j - 1] + cost);
+                next[j] = value;
+                min = Math.min(min, value);
+            }
+            if (min <= maxEdits) {
+                walk(query, maxEdits, lo, end, depth + 1, rows, byDistance);
+            }
+            lo = end;
+        }
+    }
+
+    // Edit distance between a and b, or maxEdits + 1 once it is certain to exceed maxEdits
+    static int distance(String a, String b, int maxEdits) {
+        if (Math.abs(a.length() - b.length()) > maxEdits) {
+            return maxEdits + 1;
+        }
+        int[] previous = new int[a.length() + 1];
+        int[] current = new int[a.length() + 1];
+        for (int j = 0; j <= a.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= b.length(); i++) {
+            current[0] = i;
+            int min = i;
+            for (int j = 1; j <= a.length(); j++) {
+                int cost = a.charAt(j - 1) == b.charAt(i - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost);
+                min = Math.min(min, current[j]);
+            }
+            if (min > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[a.length()], maxEdits + 1);
+    }
+
+    private void checkStale() {
+        stale = added.size() > REBUILD_THRESHOLD || deleted > Math.max(REBUILD_THRESHOLD, recipes.length / 4);
+    }
+
+    private void compactIfStale() {
+        if (stale) {
+            lock.writeLock().lock();
+            try {
+                if (stale) {
+                    rebuild();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Merges the live base entries with the delta into fresh arrays
+    private void rebuild() {
+        int count = recipes.length - deleted + added.size();
+        int chars = 0;
+        for (int i = 0; i < recipes.length; i++) {
+            if (recipes[i] != null) {
+                chars += keyStart[i + 1] - keyStart[i];
+            }
+        }
+        String[] addedKeys = added.keySet().toArray(new String[0]);
+        Arrays.parallelSort(addedKeys);
+        for (String key : addedKeys) {
+            chars += key.length();
+        }
+        char[] newChars = new char[chars];
+        int[] newStart = new int[count + 1];
+        Recipe[] newRecipes = new Recipe[count];
+        int[] newScore = new int[count];
+        int next = 0;
+        int n = 0;
+        int offset = 0;
+        for (int i = 0; i <= recipes.length; i++) {
+            while (next < addedKeys.length && (i == recipes.length || compareKey(i, addedKeys[next]) > 0)) {
+                String key = addedKeys[next++];
+                Recipe recipe = added.get(key);
+                key.getChars(0, key.length(), newChars, offset);
+                offset += key.length();
+                newRecipes[n] = recipe;
+                newScore[n] = recipe.getPopularity();
+                newStart[++n] = offset;
+            }
+            if (i < recipes.length && recipes[i] != null) {
+                int length = keyStart[i + 1] - keyStart[i];
+                System.arraycopy(keyChars, keyStart[i], newChars, offset, length);
+                offset += length;
+                newRecipes[n] = recipes[i];
+                newScore[n] = score[i];
+                newStart[++n] = offset;
+            }
+        }
+        keyChars = newChars;
+        keyStart = newStart;
+        recipes = newRecipes;
+        score = newScore;
+        best = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            best[count + i] = i;
+        }
+        for (int i = count - 1; i > 0; i--) {
+            best[i] = better(best[2 * i], best[2 * i + 1]);
+        }
+        deleted = 0;
+        added.clear();
+        stale = false;
+    }
+
+    // Higher popularity wins, then the alphabetically first name
+    private int better(int a, int b) {
+        if (a < 0) {
+            return b;
+        }
+        if (b < 0) {
+            return a;
+        }
+        if (score[a] != score[b]) {
+            return score[a] > score[b] ? a : b;
+        }
+        return Math.min(a, b);
+    }
+
+    private int bestIn(int lo, int hi) {
+        int n = recipes.length;
+        int result = -1;
+        for (lo += n, hi += n; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                result = better(result, best[lo++]);
+            }
+            if ((hi & 1) == 1) {
+                result = better(result, best[--hi]);
+            }
+        }
+        return result;
+    }
+
+    private void updateBest(int position) {
+        int n = recipes.length;
+        for (int i = (position + n) >> 1; i > 0; i >>= 1) {
+            best[i] = better(best[2 * i], best[2 * i + 1]);
+        }
+    }
+
+    private int compareKey(int position, String key) {
+        int start = keyStart[position];
+        int length = keyStart[position + 1] - start;
+        int common = Math.min(length, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = keyChars[start + i];
+            if (c != key.charAt(i)) {
+                return c - key.charAt(i);
+            }
+        }
+        return length - key.length();
+    }
+
+    private int find(String key) {
+        int position = lowerBound(key);
+        return position < recipes.length && compareKey(position, key) == 0 ? position : -1;
+    }
+
+    // First position whose key is not less than the given key
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = recipes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // First position from lo on whose key does not start with the prefix
+    private int prefixEnd(int lo, String prefix) {
+        int hi = recipes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (startsWith(mid, prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean startsWith(int position, String prefix) {
+        int start = keyStart[position];
+        if (keyStart[position + 1] - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (keyChars[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Positions lo..hi all have a character at depth and are sorted by it; finds the end of the
+    // run whose character is c
+    private int childEnd(int lo, int hi, int depth, char c) {
+        lo++;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyChars[keyStart[mid] + depth] <= c) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
+
+// Ordered secondary index on one numeric recipe field (cooking time, popularity, ...): each
+// distinct value maps to the posting set of recipe ids holding it. A range of values is a union
+// of postings and an ordering by the field is a walk over the values, so queries like "under 20
+// minutes, most popular first" read only the buckets they need instead of sorting a copy.
+class RecipeFieldIndex implements RecipeIndexListener {
+    private final RecipeBST recipeBST;
+    private final RecipeField field;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, PostingSet> postings = new TreeMap<>();
+    private int size;
+
+    public RecipeFieldIndex(RecipeBST recipeBST, RecipeField field) {
+        if (recipeBST == null || field == null) {
+            throw new IllegalArgumentException("RecipeBST and field cannot be null");
+        }
+        if (field.isText()) {
+            throw new IllegalArgumentException("Only numeric fields can be indexed: " + field);
+        }
+        this.recipeBST = recipeBST;
+        this.field = field;
+        recipeBST.addListener(this);
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            if (postings.computeIfAbsent(field.intValue(recipe), value -> new PostingSet()).add(id)) {
+                size++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            int value = field.intValue(recipe);
+            PostingSet set = postings.get(value);
+            if (set != null && set.remove(id)) {
+                size--;
+                if (set.isEmpty()) {
+                    postings.remove(value);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public RecipeField field() {
+        return field;
+    }
+
+    // Ids of recipes whose field value lies in [min, max]
+    public PostingSet between(int min, int max) {
+        lock.readLock().lock();
+        try {
+            PostingSet result = new PostingSet();
+            if (min <= max) {
+                for (PostingSet set : postings.subMap(min, true, max, true).values()) {
+                    result = PostingSet.or(result, set);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int count(int min, int max) {
+        lock.readLock().lock();
+        try {
+            int count = 0;
+            if (min <= max) {
+                for (PostingSet set : postings.subMap(min, true, max, true).values()) {
+                    count += set.cardinality();
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit recipes ordered by this field, restricted to the ids in filter (all recipes when
+    // it is null). Ties keep id order. Only the buckets needed to fill the limit are read.
+    public List<Recipe> ordered(PostingSet filter, boolean descending, int limit) {
+        lock.readLock().lock();
+        try {
+            int[] ids = new int[Math.max(0, Math.min(limit, size))];
+            int found = 0;
+            Collection<PostingSet> buckets = descending ? postings.descendingMap().values() : postings.values();
+            for (PostingSet set : buckets) {
+                if (found == ids.length) {
+                    break;
+                }
+                int[] bucket = (filter == null ? set : PostingSet.and(set, filter)).toArray();
+                int take = Math.min(bucket.length, ids.length - found);
+                System.arraycopy(bucket, 0, ids, found, take);
+                found += take;
+            }
+            // Resolved under the read lock, like IngredientIndex.findRecipes, so no id has been
+            // freed and reused for another recipe in between
+            List<Recipe> recipes = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                Recipe recipe = recipeBST.recipeById(ids[i]);
+                if (recipe != null) {
+                    recipes.add(recipe);
+                }
+            }
+            return recipes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+// What one user builds up while browsing: recently viewed recipes (a bounded ring, newest first,
+// without repeats), favorites (an open-addressing identity set) and a personal meal queue. Only
+// the recent ring is allocated up front, so a browsing-only session costs under 200 bytes.
+// Not thread-safe on its own; UserSessionStore only touches it under the owning shard's lock.
+final class UserSession {
+    private final Recipe[] recent;
+    private int recentHead;
+    private int recentCount;
+    private Recipe[] favorites;
+    private int favoriteCount;
+    private Recipe[] meals;
+    private int mealHead;
+    private int mealCount;
+    long lastAccess;
+    long checkedDeletions; // RecipeBST.deletions() when the recipes held here were last re-checked
+
+    UserSession(int recentCapacity, long now, long deletions) {
+        recent = new Recipe[recentCapacity];
+        lastAccess = now;
+        checkedDeletions = deletions;
+    }
+
+    // Puts the recipe at the front, moving it there if it was already in the ring. The ring is
+    // bounded, so finding and shifting it is constant work.
+    void viewed(Recipe recipe) {
+        int capacity = recent.length;
+        int position = 0;
+        while (position < recentCount && recent[(recentHead + position) % capacity] != recipe) {
+            position++;
+        }
+        if (position == recentCount) {
+            // New entry: step the head back, overwriting the oldest entry once the ring is full
+            recentHead = (recentHead + capacity - 1) % capacity;
+            recent[recentHead] = recipe;
+            recentCount = Math.min(recentCount + 1, capacity);
+            return;
+        }
+        for (int i = position; i > 0; i--) {
+            recent[(recentHead + i) % capacity] = recent[(recentHead + i - 1) % capacity];
+        }
+        recent[recentHead] = recipe;
+    }
+
+    List<Recipe> recentlyViewed() {
+        List<Recipe> recipes = new ArrayList<>(recentCount);
+        for (int i = 0; i < recentCount; i++) {
+            recipes.add(recent[(recentHead + i) % recent.length]);
+        }
+        return recipes;
+    }
+
+    boolean addFavorite(Recipe recipe) {
+        if (favorites == null) {
+            favorites = new Recipe[4];
+        } else if ((favoriteCount + 1) * 3 > favorites.length * 2) {
+            Recipe[] old = favorites;
+            favorites = new Recipe[old.length * 2];
+            for (Recipe favorite : old) {
+                if (favorite != null) {
+                    favorites[slotFor(favorite)] = favorite;
+                }
+            }
+        }
+        int slot = slotFor(recipe);
+        if (favorites[slot] != null) {
+            return false;
+        }
+        favorites[slot] = recipe;
+        favoriteCount++;
+        return true;
+    }
+
+    boolean removeFavorite(Recipe recipe) {
+        if (favorites == null || favorites[slotFor(recipe)] != recipe) {
+            return false;
+        }
+        // Backward-shift deletion keeps every probe run unbroken without tombstones
+        int mask = favorites.length - 1;
+        int hole = slotFor(recipe);
+        for (int i = (hole + 1) & mask; favorites[i] != null; i = (i + 1) & mask) {
+            int home = home(favorites[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                favorites[hole] = favorites[i];
+                hole = i;
+            }
+        }
+        favorites[hole] = null;
+        favoriteCount--;
+        return true;
+    }
+
+    boolean isFavorite(Recipe recipe) {
+        return favorites != null && favorites[slotFor(recipe)] == recipe;
+    }
+
+    List<Recipe> favorites() {
+        List<Recipe> recipes = new ArrayList<>(favoriteCount);
+        if (favorites != null) {
+            for (Recipe favorite : favorites) {
+                if (favorite != null) {
+                    recipes.add(favorite);
+                }
+            }
+        }
+        return recipes;
+    }
+
+    void planMeal(Recipe recipe) {
+        if (meals == null) {
+            meals = new Recipe[4];
+        } else if (mealCount == meals.length) {
+            Recipe[] grown = new Recipe[meals.length * 2];
+            for (int i = 0; i < mealCount; i++) {
+                grown[i] = meals[(mealHead + i) % meals.length];
+            }
+            meals = grown;
+            mealHead = 0;
+        }
+        meals[(mealHead + mealCount) % meals.length] = recipe;
+        mealCount++;
+    }
+
+    Recipe nextMeal() {
+        if (mealCount == 0) {
+            return null;
+        }
+        Recipe recipe = meals[mealHead];
+        meals[mealHead] = null;
+        mealHead = (mealHead + 1) % meals.length;
+        mealCount--;
+        return recipe;
+    }
+
+    List<Recipe> plannedMeals() {
+        List<Recipe> recipes = new ArrayList<>(mealCount);
+        for (int i = 0; i < mealCount; i++) {
+            recipes.add(meals[(mealHead + i) % meals.length]);
+        }
+        return recipes;
+    }
+
+    // Drops every recipe the predicate rejects, keeping the order of recent views and meals
+    void retain(Predicate<Recipe> keep) {
+        List<Recipe> views = recentlyViewed();
+        Arrays.fill(recent, null);
+        recentHead = 0;
+        recentCount = 0;
+        for (Recipe recipe : views) {
+            if (keep.test(recipe)) {
+                recent[recentCount++] = recipe;
+            }
+        }
+        if (favorites != null) {
+            List<Recipe> saved = favorites();
+            Arrays.fill(favorites, null);
+            favoriteCount = 0;
+            for (Recipe recipe : saved) {
+                if (keep.test(recipe)) {
+                    addFavorite(recipe);
+                }
+            }
+        }
+        if (meals != null) {
+            List<Recipe> planned = plannedMeals();
+            Arrays.fill(meals, null);
+            mealHead = 0;
+            mealCount = 0;
+            for (Recipe recipe : planned) {
+                if (keep.test(recipe)) {
+                    meals[mealCount++] = recipe;
+                }
+            }
+        }
+    }
+
+    private int home(Recipe recipe) {
+        int hash = System.identityHashCode(recipe) * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & (favorites.length - 1);
+    }
+
+    // Slot holding the recipe, or the empty slot where it would go
+    private int slotFor(Recipe recipe) {
+        int mask = favorites.length - 1;
+        int slot = home(recipe);
+        while (favorites[slot] != null && favorites[slot] != recipe) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
+
+// Sessions for many users, keyed by user id. Users are spread over lock-striped shards, each an
+// open-addressing table from id to session, so requests for different users rarely contend and
+// there is no boxed key or map entry per user. Sessions idle for too long are evicted by sweeps.
+// Recipes deleted from the catalog are purged from a session the next time it is used.
+class UserSessionStore {
+    private final RecipeBST recipeBST;
+    private final int recentCapacity;
+    private final Shard[] shards;
+    private ScheduledExecutorService evictor;
+
+    public UserSessionStore(RecipeBST recipeBST, int shardCount, int recentCapacity) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        if (shardCount <= 0 || shardCount > 1 << 16 || recentCapacity <= 0) {
+            throw new IllegalArgumentException("Shard count and recent capacity must be positive");
+        }
+        this.recipeBST = recipeBST;
+        this.recentCapacity = recentCapacity;
+        int count = 1;
+        while (count < shardCount) {
+            count <<= 1;
+        }
+        shards = new Shard[count];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    public void viewed(long userId, Recipe recipe) {
+        requireRecipe(recipe);
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            session(shard, userId, true).viewed(recipe);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Most recent first
+    public List<Recipe> recentlyViewed(long userId) {
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            return session == null ? new ArrayList<>() : session.recentlyViewed();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // False when the recipe already was a favorite
+    public boolean addFavorite(long userId, Recipe recipe) {
+        requireRecipe(recipe);
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            return session(shard, userId, true).addFavorite(recipe);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public boolean removeFavorite(long userId, Recipe recipe) {
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            return session != null && recipe != null && session.removeFavorite(recipe);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public boolean isFavorite(long userId, Recipe recipe) {
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            return session != null && recipe != null && session.isFavorite(recipe);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // In name order
+    public List<Recipe> favorites(long userId) {
+        Shard shard = shardOf(userId);
+        List<Recipe> recipes;
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            recipes = session == null ? new ArrayList<>() : session.favorites();
+        } finally {
+            shard.lock.unlock();
+        }
+        recipes.sort(Comparator.comparing(recipe -> RecipeBST.foldKey(recipe.getName())));
+        return recipes;
+    }
+
+    public void planMeal(long userId, Recipe recipe) {
+        requireRecipe(recipe);
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            session(shard, userId, true).planMeal(recipe);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // The user's oldest planned meal, or null when there is none
+    public Recipe nextMeal(long userId) {
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            return session == null ? null : session.nextMeal();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public List<Recipe> plannedMeals(long userId) {
+        Shard shard = shardOf(userId);
+        shard.lock.lock();
+        try {
+            UserSession session = session(shard, userId, false);
+            return session == null ? new ArrayList<>() : session.plannedMeals();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.size;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    // Drops sessions not used within the idle time and returns how many went. Shards are swept
+    // one at a time, so other shards keep serving meanwhile.
+    public int evictIdle(long idleTime, TimeUnit unit) {
+        long cutoff = System.nanoTime() - unit.toNanos(idleTime);
+        int evicted = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                evicted += shard.evictBefore(cutoff);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return evicted;
+    }
+
+    // Sweeps for idle sessions in the background, four times per idle period
+    public void startEviction(long idleTime, TimeUnit unit) {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, unit.toNanos(idleTime) / 4);
+        evictor.scheduleWithFixedDelay(() -> evictIdle(idleTime, unit), period, period, TimeUnit.NANOSECONDS);
+    }
+
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+    }
+
+    private static void requireRecipe(Recipe recipe) {
+        if (recipe == null) {
+            throw new IllegalArgumentException("Recipe cannot be null");
+        }
+    }
+
+    // Looks the user's session up (creating it if asked), first purging recipes deleted from the
+    // catalog since the session was last checked. The shard lock is held; taking the tree's read
+    // lock inside it is safe because the tree never calls back into the store.
+    private UserSession session(Shard shard, long userId, boolean create) {
+        long deletions = recipeBST.deletions();
+        UserSession session = create ? shard.getOrCreate(userId, recentCapacity, deletions) : shard.touch(userId);
+        if (session != null && session.checkedDeletions != deletions) {
+            session.retain(recipeBST::contains);
+            session.checkedDeletions = deletions;
+        }
+        return session;
+    }
+
+    private Shard shardOf(long userId) {
+        return shards[(int) (mix(userId) >>> 40) & (shards.length - 1)];
+    }
+
+    // Murmur3 finalizer, so sequential user ids spread over shards and slots
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        long[] userIds = new long[16];
+        UserSession[] sessions = new UserSession[16];
+        int size;
+
+        UserSession touch(long userId) {
+            int slot = slotOf(userId);
+            UserSession session = sessions[slot];
+            if (session != null) {
+                session.lastAccess = System.nanoTime();
+            }
+            return session;
+        }
+
+        UserSession getOrCreate(long userId, int recentCapacity, long deletions) {
+            UserSession session = touch(userId);
+            if (session != null) {
+                return session;
+            }
+            if ((size + 1) * 4 > sessions.length * 3) {
+                resize(sessions.length * 2);
+            }
+            session = new UserSession(recentCapacity, System.nanoTime(), deletions);
+            int slot = slotOf(userId);
+            userIds[slot] = userId;
+            sessions[slot] = session;
+            size++;
+            return session;
+        }
+
+        // Rebuilds the table without the idle sessions, shrinking it when most of it emptied
+        int evictBefore(long cutoff) {
+            int live = 0;
+            for (UserSession session : sessions) {
+                if (session != null && session.lastAccess - cutoff >= 0) {
+                    live++;
+                }
+            }
+            int evicted = size - live;
+            if (evicted == 0) {
+                return 0;
+            }
+            long[] oldIds = userIds;
+            UserSession[] oldSessions = sessions;
+            int capacity = 16;
+            while (live * 4 > capacity * 3 / 2) {
+                capacity *= 2;
+            }
+            userIds = new long[capacity];
+            sessions = new UserSession[capacity];
+            size = 0;
+            for (int i = 0; i < oldSessions.length; i++) {
+                if (oldSessions[i] != null && oldSessions[i].lastAccess - cutoff >= 0) {
+                    int slot = slotOf(oldIds[i]);
+                    userIds[slot] = oldIds[i];
+                    sessions[slot] = oldSessions[i];
+                    size++;
+                }
+            }
+            return evicted;
+        }
+
+        private void resize(int capacity) {
+            long[] oldIds = userIds;
+            UserSession[] oldSessions = sessions;
+            userIds = new long[capacity];
+            sessions = new UserSession[capacity];
+            for (int i = 0; i < oldSessions.length; i++) {
+                if (oldSessions[i] != null) {
+                    int slot = slotOf(oldIds[i]);
+                    userIds[slot] = oldIds[i];
+                    sessions[slot] = oldSessions[i];
+                }
+            }
+        }
+
+        // Slot holding the user's session, or the empty slot where it would go
+        private int slotOf(long userId) {
+            int mask = sessions.length - 1;
+            int slot = (int) mix(userId) & mask;
+            while (sessions[slot] != null && userIds[slot] != userId) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
+
+// Bounded read-through cache with W-TinyLFU admission. New entries land in a small LRU window;
+// whatever falls out of the window has to beat the main area's LRU victim on estimated frequency
+// (a 4-bit count-min sketch that is halved periodically, so old popularity fades) to stay, which
+// keeps one-off lookups and scans from flushing the hot set. The main area is a segmented LRU:
+// entries hit again while on probation are promoted to the protected segment.
+// Hits are lock-free map reads; the recency/frequency bookkeeping after a hit only happens if
+// the policy lock is free, so readers never queue behind each other (a few accesses go
+// unrecorded under contention, which barely moves the estimates). A null value is cached too,
+// so repeated misses are as cheap as hits. Entries can carry tags, so that a change can drop the
+// entries it affects without visiting the rest.
+class TinyLfuCache<K, V> {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;
+
+    private final int maximumSize;
+    private final int windowMaximum;
+    private final int protectedMaximum;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock policyLock = new ReentrantLock();
+    // Head is the least recently used entry of each segment
+    private final Node<K, V>[] heads;
+    private final Node<K, V>[] tails;
+    private final int[] counts = new int[3];
+    private final FrequencySketch sketch;
+    private final Function<? super K, ? extends Collection<?>> tagger;
+    // Cached entries by tag, guarded by the policy lock
+    private final Map<Object, Set<Node<K, V>>> tagged = new HashMap<>();
+    // Loads in flight per key. Invalidating a key marks its load stale and drops it, so a value
+    // read before the change is not cached after it while later loads start afresh.
+    private final ConcurrentHashMap<K, Load> loads = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public TinyLfuCache(int maximumSize) {
+        this(maximumSize, null);
+    }
+
+    // tagger gives the tags each entry is filed under for invalidateIf; null files none
+    public TinyLfuCache(int maximumSize, Function<? super K, ? extends Collection<?>> tagger) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maximumSize = maximumSize;
+        windowMaximum = Math.max(1, maximumSize / 100);
+        protectedMaximum = (maximumSize - windowMaximum) * 4 / 5;
+        heads = newSegments();
+        tails = newSegments();
+        sketch = new FrequencySketch(maximumSize);
+        this.tagger = tagger;
+    }
+
+    // The cached value for the key, loading and caching it on a miss. The loader runs outside
+    // any lock and may return null, which is cached as a known miss.
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            hits.increment();
+            if (policyLock.tryLock()) {
+                try {
+                    onAccess(node);
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return node.value;
+        }
+        misses.increment();
+        Load load = loads.compute(key, (k, current) -> {
+            Load joined = current == null ? new Load() : current;
+            joined.loaders++;
+            return joined;
+        });
+        V value = loader.apply(key);
+        policyLock.lock();
+        try {
+            if (!load.stale && !data.containsKey(key)) {
+                node = new Node<>(key, value, tagger == null ? Collections.emptyList() : tagger.apply(key));
+                data.put(key, node);
+                for (Object tag : node.tags) {
+                    tagged.computeIfAbsent(tag, t -> new HashSet<>()).add(node);
+                }
+                onInsert(node);
+            }
+            loads.computeIfPresent(key, (k, current) -> current == load && --current.loaders == 0 ? null : current);
+        } finally {
+            policyLock.unlock();
+        }
+        return value;
+    }
+
+    public void invalidate(K key) {
+        policyLock.lock();
+        try {
+            markStale(key);
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                remove(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // Every node is unlinked as well as dropped from the map: a reader may still hold one from an
+    // earlier lookup, and onAccess must see it as REMOVED rather than relink it into a segment
+    public void invalidateAll() {
+        policyLock.lock();
+        try {
+            for (Load load : loads.values()) {
+                load.stale = true;
+            }
+            loads.clear();
+            data.clear();
+            tagged.clear();
+            for (int segment = WINDOW; segment <= PROTECTED; segment++) {
+                while (heads[segment] != null) {
+                    unlink(heads[segment]);
+                }
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    // Drops the entries filed under any of the tags whose keys match, and marks their loads in
+    // flight stale; entries under other tags are not looked at
+    public void invalidateIf(Collection<?> tags, Predicate<? super K> affected) {
+        policyLock.lock();
+        try {
+            for (Iterator<Map.Entry<K, Load>> it = loads.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<K, Load> load = it.next();
+                if (affected.test(load.getKey())) {
+                    load.getValue().stale = true;
+                    it.remove();
+                }
+            }
+            List<Node<K, V>> matched = new ArrayList<>();
+            for (Object tag : tags) {
+                Set<Node<K, V>> nodes = tagged.get(tag);
+                if (nodes != null) {
+                    for (Node<K, V> node : nodes) {
+                        if (affected.test(node.key)) {
+                            matched.add(node);
+                        }
+                    }
+                }
+            }
+            for (Node<K, V> node : matched) {
+                remove(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size %d/%d, hits %d, misses %d, evictions %d, hit rate %.1f%%", size(), maximumSize,
+                hitCount(), missCount(), evictionCount(), hitRate() * 100);
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.segment == REMOVED) {
+            return; // evicted or invalidated since the map lookup
+        }
+        sketch.increment(node.key);
+        if (node.segment == PROBATION) {
+            unlink(node);
+            append(node, PROTECTED);
+            if (counts[PROTECTED] > protectedMaximum) {
+                Node<K, V> demoted = heads[PROTECTED];
+                unlink(demoted);
+                append(demoted, PROBATION);
+            }
+        } else {
+            int segment = node.segment;
+            unlink(node);
+            append(node, segment);
+        }
+    }
+
+    private void onInsert(Node<K, V> node) {
+        sketch.increment(node.key);
+        append(node, WINDOW);
+        while (counts[WINDOW] > windowMaximum) {
+            Node<K, V> candidate = heads[WINDOW];
+            unlink(candidate);
+            append(candidate, PROBATION);
+            if (data.size() <= maximumSize) {
+                continue;
+            }
+            Node<K, V> victim = heads[PROBATION] != candidate ? heads[PROBATION] : heads[PROTECTED];
+            // Admission: the newcomer only displaces the victim if it has been asked for more often
+            if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                victim = candidate;
+            }
+            remove(victim);
+            evictions.increment();
+        }
+    }
+
+    private void markStale(K key) {
+        Load load = loads.remove(key);
+        if (load != null) {
+            load.stale = true;
+        }
+    }
+
+    // Drops the node from the map, its segment and its tags
+    private void remove(Node<K, V> node) {
+        if (!data.remove(node.key, node)) {
+            return; // already dropped, as a node matched under two tags is
+        }
+        unlink(node);
+        for (Object tag : node.tags) {
+            Set<Node<K, V>> nodes = tagged.get(tag);
+            nodes.remove(node);
+            if (nodes.isEmpty()) {
+                tagged.remove(tag);
+            }
+        }
+    }
+
+    private void append(Node<K, V> node, int segment) {
+        node.segment = segment;
+        node.previous = tails[segment];
+        node.next = null;
+        if (tails[segment] == null) {
+            heads[segment] = node;
+        } else {
+            tails[segment].next = node;
+        }
+        tails[segment] = node;
+        counts[segment]++;
+    }
+
+    private void unlink(Node<K, V> node) {
+        int segment = node.segment;
+        if (segment == REMOVED) {
+            return;
+        }
+        if (node.previous == null) {
+            heads[segment] = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+        if (node.next == null) {
+            tails[segment] = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+        node.previous = node.next = null;
+        node.segment = REMOVED;
+        counts[segment]--;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newSegments() {
+        return (Node<K, V>[]) new Node<?, ?>[3];
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final Collection<?> tags;
+        // Guarded by the policy lock
+        int segment = REMOVED;
+        Node<K, V> previous;
+        Node<K, V> next;
+
+        Node(K key, V value, Collection<?> tags) {
+            this.key = key;
+            this.value = value;
+            this.tags = tags;
+        }
+    }
+
+    private static final class Load {
+        // Counted inside the map's compute calls
+        int loaders;
+        // Set and read under the policy lock
+        boolean stale;
+    }
+
+    // Count-min sketch of 4-bit counters, sixteen to a long, with four hashed counters per key.
+    // After 10 * maximumSize increments every counter is halved.
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L };
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int length = Integer.highestOneBit(Math.max(2, Math.min(maximumSize, 1 << 26)) - 1) << 1;
+            table = new long[length];
+            sampleSize = 10 * Math.max(maximumSize, 1 << 4);
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long h = (hash + SEEDS[i]) * SEEDS[i];
+                h += h >>> 32;
+                int index = (int) h & (table.length - 1);
+                int shift = (int) (h >>> 58) & 0x3c;
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long h = (hash + SEEDS[i]) * SEEDS[i];
+                h += h >>> 32;
+                int index = (int) h & (table.length - 1);
+                int shift = (int) (h >>> 58) & 0x3c;
+                frequency = Math.min(frequency, (int) (table[index] >>> shift) & 15);
+            }
+            return frequency;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
+
+// Caches in front of the hot read paths: name lookups (misses included) and the ingredient and
+// pantry queries. It listens to the tree, so an insert or delete drops the affected name and
+// the cached queries that the recipe matches, the only ones whose answers can have changed.
+// Queries are filed under ingredients a matching recipe must use, so a change only tests the
+// queries filed under its own ingredients, plus the few that any recipe could match.
+class CachedRecipeLookups implements RecipeIndexListener {
+    private final RecipeBST recipeBST;
+    private final IngredientIndex ingredientIndex;
+    private final PantryMatcher pantryMatcher;
+    private final TinyLfuCache<String, Recipe> names;
+    private final TinyLfuCache<QueryKey, List<Recipe>> queries;
+
+    public CachedRecipeLookups(RecipeBST recipeBST, IngredientIndex ingredientIndex, PantryMatcher pantryMatcher,
+            int maximumSize) {
+        if (recipeBST == null || ingredientIndex == null || pantryMatcher == null) {
+            throw new IllegalArgumentException("RecipeBST, IngredientIndex and PantryMatcher cannot be null");
+        }
+        this.recipeBST = recipeBST;
+        this.ingredientIndex = ingredientIndex;
+        this.pantryMatcher = pantryMatcher;
+        names = new TinyLfuCache<>(maximumSize);
+        queries = new TinyLfuCache<>(Math.max(1, maximumSize / 4), QueryKey::tags);
+        recipeBST.addListener(this);
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        names.invalidate(RecipeBST.foldKey(recipe.getName()));
+        invalidateQueries(recipe);
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        names.invalidate(RecipeBST.foldKey(recipe.getName()));
+        invalidateQueries(recipe);
+    }
+
+    private void invalidateQueries(Recipe recipe) {
+        if (queries.size() == 0) {
+            return;
+        }
+        Set<String> ingredients = normalized(recipe.getIngredients());
+        ingredients.remove("");
+        List<Object> tags = new ArrayList<>(ingredients);
+        tags.add(QueryKey.ANY_RECIPE);
+        queries.invalidateIf(tags, key -> key.matches(ingredients));
+    }
+
+    // Same answer as RecipeBST.find, keyed by the folded name so differently cased lookups share
+    // one entry
+    public Recipe search(String name) {
+        if (name == null) {
+            return null;
+        }
+        return names.get(RecipeBST.foldKey(name), recipeBST::search);
+    }
+
+    public List<Recipe> findRecipes(Collection<String> allOf, Collection<String> anyOf, Collection<String> noneOf) {
+        QueryKey key = new QueryKey(false, normalized(allOf), normalized(anyOf), normalized(noneOf), 0);
+        return queries.get(key, k -> Collections.unmodifiableList(ingredientIndex.findRecipes(allOf, anyOf, noneOf)));
+    }
+
+    public List<Recipe> topMatches(Collection<String> pantry, int k) {
+        QueryKey key = new QueryKey(true, normalized(pantry), Collections.emptySet(), Collections.emptySet(), k);
+        return queries.get(key, ignored -> Collections.unmodifiableList(pantryMatcher.topMatches(pantry, k)));
+    }
+
+    public TinyLfuCache<String, Recipe> nameCache() {
+        return names;
+    }
+
+    public TinyLfuCache<?, List<Recipe>> queryCache() {
+        return queries;
+    }
+
+    // Ingredient lists that normalize to the same set give the same answer
+    private static Set<String> normalized(Collection<String> ingredients) {
+        Set<String> set = new TreeSet<>();
+        if (ingredients != null) {
+            for (String ingredient : ingredients) {
+                set.add(IngredientIndex.normalize(ingredient));
+            }
+        }
+        return set;
+    }
+
+    // An ingredient query with normalized sets, or a pantry query (pantry in allOf) with its k
+    private static final class QueryKey {
+        // Tag of the queries a recipe can match whatever its ingredients
+        static final Object ANY_RECIPE = new Object();
+
+        final boolean pantry;
+        final Set<String> allOf;
+        final Set<String> anyOf;
+        final Set<String> noneOf;
+        final int k;
+
+        QueryKey(boolean pantry, Set<String> allOf, Set<String> anyOf, Set<String> noneOf, int k) {
+            this.pantry = pantry;
+            this.allOf = allOf;
+            this.anyOf = anyOf;
+            this.noneOf = noneOf;
+            this.k = k;
+        }
+
+        // Whether a recipe with these ingredients is, or would be, part of this query's answer.
+        // A recipe that is not leaves the answer unchanged when it is added or removed: ingredient
+        // queries list only matching recipes, and the pantry ranks only recipes sharing one.
+        boolean matches(Set<String> ingredients) {
+            if (pantry) {
+                return !Collections.disjoint(allOf, ingredients);
+            }
+            return ingredients.containsAll(allOf)
+                    && (anyOf.isEmpty() || !Collections.disjoint(anyOf, ingredients))
+                    && Collections.disjoint(noneOf, ingredients);
+        }
+
+        // Ingredients such that every recipe this query matches uses one of them: the pantry, one
+        // required ingredient, or else the alternatives
+        Collection<?> tags() {
+            if (pantry) {
+                return allOf;
+            }
+            if (!allOf.isEmpty()) {
+                return Collections.singletonList(allOf.iterator().next());
+            }
+            return anyOf.isEmpty() ? Collections.singletonList(ANY_RECIPE) : anyOf;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return pantry == other.pantry && k == other.k && allOf.equals(other.allOf)
+                    && anyOf.equals(other.anyOf) && noneOf.equals(other.noneOf);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pantry, allOf, anyOf, noneOf, k);
+        }
+    }
+}
+
+// Headless JSON API over the catalog, served by the JDK's built-in HTTP server:
+//   GET    /recipes?after=<name>&limit=<n>              name order, resuming after a name
+//   GET    /recipes?sort=cuisine,-popularity&limit=<n>  any RecipeField order, - for descending
+//   GET    /recipes/<name>                              one recipe, 404 when missing
+//   POST   /recipes                                     add; the body is one JSON Lines recipe
+//   DELETE /recipes/<name>
+//   GET    /search?all=a,b&any=c&none=d&limit=<n>       ingredient query
+//   GET    /pantry?have=a,b,c&limit=<n>                 best matches for a pantry
+//   GET    /users/<id>/favorites, PUT|DELETE /users/<id>/favorites/<name>
+// Each exchange runs on a virtual thread when the JDK has them (21+) and on a bounded pool
+// otherwise. Responses are streamed: recipes are written field by field into the chunked body.
+class RecipeHttpServer implements AutoCloseable {
+    private static final int DEFAULT_LIMIT = 50;
+    private static final int MAX_LIMIT = 1_000;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    static {
+        // A streamed response ends with a separate tiny chunk; with Nagle on, that chunk waits for
+        // the client's delayed ACK and every request takes 40 ms. Read once when the server starts.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final RecipeBST recipeBST;
+    private final DurableRecipeCatalog durable;
+    private final CachedRecipeLookups lookups;
+    private final UserSessionStore sessions;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final StringInterner interner = new StringInterner(10_000);
+    private volatile CatalogAnalytics analytics;
+    private volatile RecipeSimilarity similarity;
+
+    // durable may be null, in which case changes go straight to the tree and are not logged
+    public RecipeHttpServer(RecipeBST recipeBST, DurableRecipeCatalog durable, CachedRecipeLookups lookups,
+            UserSessionStore sessions, int port) throws IOException {
+        if (recipeBST == null || lookups == null || sessions == null) {
+            throw new IllegalArgumentException("RecipeBST, lookups and sessions cannot be null");
+        }
+        this.recipeBST = recipeBST;
+        this.durable = durable;
+        this.lookups = lookups;
+        this.sessions = sessions;
+        server = HttpServer.create(new InetSocketAddress(port), 4_096);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    // One virtual thread per request where available. The factory method is looked up
+    // reflectively so the file still compiles and runs on JDK 17.
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicLong threads = new AtomicLong();
+            return Executors.newFixedThreadPool(Math.max(32, 8 * Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "recipe-http-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Serves GET /stats from the given analytics; without them /stats answers 404
+    public RecipeHttpServer withAnalytics(CatalogAnalytics analytics) {
+        this.analytics = analytics;
+        return this;
+    }
+
+    // Serves GET /recipes/<name>/similar; without it that route answers 404
+    public RecipeHttpServer withSimilarity(RecipeSimilarity similarity) {
+        this.similarity = similarity;
+        return this;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            String resource = path.length > 1 ? path[1] : "";
+            if (durable != null && !durable.restored()) {
+                // Restarted and still restoring: single lookups come from the mapped snapshot, and
+                // everything that needs the tree or its indexes waits for them
+                if (resource.equals("recipes") && path.length == 3 && method.equals("GET")) {
+                    sendRecipe(exchange, durable.search(path[2]), path[2]);
+                } else if (resource.equals("metrics") && method.equals("GET")) {
+                    sendMetrics(exchange);
+                } else {
+                    sendError(exchange, 503, "Catalog is still being restored");
+                }
+                return;
+            }
+            if (resource.equals("recipes") && path.length == 2) {
+                if (method.equals("GET")) {
+                    listRecipes(exchange, query);
+                } else if (method.equals("POST")) {
+                    addRecipe(exchange);
+                } else {
+                    sendError(exchange, 405, "Use GET or POST on /recipes");
+                }
+            } else if (resource.equals("recipes") && path.length == 3) {
+                if (method.equals("GET")) {
+                    getRecipe(exchange, path[2]);
+                } else if (method.equals("DELETE")) {
+                    deleteRecipe(exchange, path[2]);
+                } else {
+                    sendError(exchange, 405, "Use GET or DELETE on /recipes/<name>");
+                }
+            } else if (resource.equals("recipes") && path.length == 4 && path[3].equals("similar")
+                    && method.equals("GET")) {
+                sendSimilar(exchange, path[2], query);
+            } else if (resource.equals("search") && method.equals("GET")) {
+                sendRecipes(exchange, lookups.findRecipes(list(query.get("all")), list(query.get("any")),
+                        list(query.get("none"))), limit(query));
+            } else if (resource.equals("pantry") && method.equals("GET")) {
+                sendRecipes(exchange, lookups.topMatches(list(query.get("have")), limit(query)), MAX_LIMIT);
+            } else if (resource.equals("users") && path.length >= 4 && path[3].equals("favorites")) {
+                favorites(exchange, userId(path[2]), path.length > 4 ? path[4] : null);
+            } else if (resource.equals("stats") && method.equals("GET")) {
+                sendStats(exchange, query);
+            } else if (resource.equals("metrics") && method.equals("GET")) {
+                sendMetrics(exchange);
+            } else {
+                sendError(exchange, 404, "No such endpoint");
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            // Reading the request or writing the response failed: the client went away and
+            // nothing more can be sent. Log failures are answered where they happen.
+        } catch (RuntimeException e) {
+            System.err.println("Request failed: " + e);
+            sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void listRecipes(HttpExchange exchange, Map<String, String> query) throws IOException {
+        int limit = limit(query);
+        String sort = query.get("sort");
+        if (sort == null) {
+            sendRecipes(exchange, recipeBST.pageAfter(query.get("after"), limit), limit);
+            return;
+        }
+        if (query.containsKey("after")) {
+            throw new IllegalArgumentException("after pages in name order and cannot be combined with sort");
+        }
+        RecipeOrder order = null;
+        for (String term : sort.split(",")) {
+            boolean descending = term.startsWith("-");
+            RecipeField field = field(descending ? term.substring(1) : term);
+            if (order == null) {
+                order = descending ? RecipeOrder.byDescending(field) : RecipeOrder.by(field);
+            } else {
+                order = descending ? order.thenDescending(field) : order.then(field);
+            }
+        }
+        sendRecipes(exchange, first(recipeBST.snapshot(), order.thenComparing(RecipeBST.NAME_ORDER), limit), limit);
+    }
+
+    // The limit smallest recipes under the order, sorted, kept in a bounded max-heap in one pass
+    // over the catalog instead of copying and sorting all of it
+    private static List<Recipe> first(Iterable<Recipe> recipes, Comparator<Recipe> order, int limit) {
+        List<Recipe> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+        PriorityQueue<Recipe> heap = new PriorityQueue<>(limit + 1, order.reversed());
+        for (Recipe recipe : recipes) {
+            if (heap.size() < limit) {
+                heap.add(recipe);
+            } else if (order.compare(recipe, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(recipe);
+            }
+        }
+        result.addAll(heap);
+        result.sort(order);
+        return result;
+    }
+
+    private void getRecipe(HttpExchange exchange, String name) throws IOException {
+        sendRecipe(exchange, lookups.search(name), name);
+    }
+
+    private static void sendRecipe(HttpExchange exchange, Recipe recipe, String name) throws IOException {
+        if (recipe == null) {
+            sendError(exchange, 404, "Recipe not found: " + name);
+            return;
+        }
+        try (Writer out = begin(exchange, 200)) {
+            writeRecipe(out, recipe);
+        }
+    }
+
+    private void addRecipe(HttpExchange exchange) throws IOException {
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            sendError(exchange, 413, "Recipe body is larger than " + MAX_BODY_BYTES + " bytes");
+            return;
+        }
+        Recipe recipe = RecipeCodec.parseJson(new String(body, StandardCharsets.UTF_8).trim(), interner);
+        if (recipeBST.search(recipe.getName()) != null) {
+            sendError(exchange, 409, "Recipe already exists: " + recipe.getName());
+            return;
+        }
+        // A concurrent POST of the same name can get in between the check and the insert
+        boolean added;
+        try {
+            added = durable != null ? durable.insert(recipe) : recipeBST.insert(recipe);
+        } catch (IOException e) {
+            System.err.println("Recipe log failed: " + e);
+            sendError(exchange, 503, "Recipe log unavailable, recipe not saved");
+            return;
+        }
+        if (!added) {
+            sendError(exchange, 409, "Recipe already exists: " + recipe.getName());
+            return;
+        }
+        try (Writer out = begin(exchange, 201)) {
+            writeRecipe(out, recipe);
+        }
+    }
+
+    // Recipes sharing the most ingredients with the named one, best first, with their similarity
+    private void sendSimilar(HttpExchange exchange, String name, Map<String, String> query) throws IOException {
+        RecipeSimilarity engine = similarity;
+        if (engine == null) {
+            sendError(exchange, 404, "Recommendations are not enabled");
+            return;
+        }
+        Recipe recipe = lookups.search(name);
+        if (recipe == null) {
+            sendError(exchange, 404, "Recipe not found: " + name);
+            return;
+        }
+        List<RecipeSimilarity.Match> matches = engine.similar(recipe, limit(query));
+        try (Writer out = begin(exchange, 200)) {
+            out.write('[');
+            for (int i = 0; i < matches.size(); i++) {
+                out.write(i > 0 ? ",{\"similarity\":" : "{\"similarity\":");
+                out.write(String.format(Locale.ROOT, "%.3f", matches.get(i).similarity));
+                out.write(",\"recipe\":");
+                writeRecipe(out, matches.get(i).recipe);
+                out.write('}');
+            }
+            out.write(']');
+        }
+    }
+
+    private void deleteRecipe(HttpExchange exchange, String name) throws IOException {
+        boolean removed;
+        try {
+            removed = durable != null ? durable.delete(name) : recipeBST.delete(name);
+        } catch (IOException e) {
+            System.err.println("Recipe log failed: " + e);
+            sendError(exchange, 503, "Recipe log unavailable, recipe not deleted");
+            return;
+        }
+        if (!removed) {
+            sendError(exchange, 404, "Recipe not found: " + name);
+            return;
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void favorites(HttpExchange exchange, long userId, String name) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (name == null) {
+            if (!method.equals("GET")) {
+                sendError(exchange, 405, "Use GET on /users/<id>/favorites");
+                return;
+            }
+            sendRecipes(exchange, sessions.favorites(userId), MAX_LIMIT);
+            return;
+        }
+        Recipe recipe = lookups.search(name);
+        if (recipe == null) {
+            sendError(exchange, 404, "Recipe not found: " + name);
+            return;
+        }
+        if (method.equals("PUT")) {
+            sessions.addFavorite(userId, recipe);
+        } else if (method.equals("DELETE")) {
+            sessions.removeFavorite(userId, recipe);
+        } else {
+            sendError(exchange, 405, "Use PUT or DELETE on /users/<id>/favorites/<name>");
+            return;
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private static RecipeField field(String name) {
+        switch (name) {
+            case "name":
+                return RecipeField.NAME;
+            case "cuisine":
+                return RecipeField.CUISINE;
+            case "ingredients":
+                return RecipeField.INGREDIENT_COUNT;
+            case "cookingTime":
+                return RecipeField.COOKING_TIME;
+            case "servings":
+                return RecipeField.SERVINGS;
+            case "popularity":
+                return RecipeField.POPULARITY;
+            default:
+                throw new IllegalArgumentException("Unknown sort field: " + name);
+        }
+    }
+
+    private static long userId(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("User id must be a number: " + value);
+        }
+    }
+
+    private static int limit(Map<String, String> query) {
+        String value = query.get("limit");
+        if (value == null) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Math.max(0, Math.min(MAX_LIMIT, Integer.parseInt(value)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit must be a number");
+        }
+    }
+
+    private static List<String> list(String value) {
+        return value == null || value.isEmpty() ? null : Arrays.asList(value.split(","));
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static void sendRecipes(HttpExchange exchange, List<Recipe> recipes, int limit) throws IOException {
+        try (Writer out = begin(exchange, 200)) {
+            out.write('[');
+            for (int i = 0; i < recipes.size() && i < limit; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeRecipe(out, recipes.get(i));
+            }
+            out.write(']');
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) {
+        try (Writer out = begin(exchange, status)) {
+            out.write("{\"error\":");
+            writeString(out, message == null ? "" : message);
+            out.write('}');
+        } catch (IOException e) {
+            // Headers already sent or the client is gone
+        }
+    }
+
+    // Cuisine summaries, the most used ingredients (or those most often used with ?with=) and
+    // the popularity histogram, all read from precomputed totals
+    private void sendStats(HttpExchange exchange, Map<String, String> query) throws IOException {
+        CatalogAnalytics stats = analytics;
+        if (stats == null) {
+            sendError(exchange, 404, "Analytics are not enabled");
+            return;
+        }
+        int limit = limit(query);
+        String with = query.get("with");
+        List<CatalogAnalytics.Tally> ingredients = with == null ? stats.topIngredients(limit)
+                : stats.coOccurring(with, limit);
+        try (Writer out = begin(exchange, 200)) {
+            out.write("{\"recipes\":");
+            out.write(Long.toString(stats.recipes()));
+            out.write(",\"cuisines\":[");
+            List<CatalogAnalytics.CuisineSummary> cuisines = stats.cuisines();
+            for (int i = 0; i < cuisines.size(); i++) {
+                CatalogAnalytics.CuisineSummary cuisine = cuisines.get(i);
+                out.write(i > 0 ? ",{\"cuisine\":" : "{\"cuisine\":");
+                writeString(out, cuisine.cuisine);
+                out.write(",\"recipes\":");
+                out.write(Long.toString(cuisine.recipes));
+                out.write(String.format(Locale.ROOT,
+                        ",\"averageCookingTime\":%.2f,\"averageServings\":%.2f,\"averagePopularity\":%.2f}",
+                        cuisine.averageCookingTime, cuisine.averageServings, cuisine.averagePopularity));
+            }
+            out.write(with == null ? "],\"ingredients\":[" : "],\"usedWith\":[");
+            for (int i = 0; i < ingredients.size(); i++) {
+                out.write(i > 0 ? ",{\"name\":" : "{\"name\":");
+                writeString(out, ingredients.get(i).name);
+                out.write(",\"recipes\":");
+                out.write(Long.toString(ingredients.get(i).count));
+                out.write('}');
+            }
+            out.write("],\"popularity\":[");
+            long[] histogram = stats.popularityHistogram();
+            for (int i = 0; i < histogram.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                out.write(Long.toString(histogram[i]));
+            }
+            out.write("]}");
+        }
+    }
+
+    // Prometheus text exposition; all zeros unless the server runs with -Drecipes.metrics=true
+    private static void sendMetrics(HttpExchange exchange) throws IOException {
+        try (Writer out = begin(exchange, 200, "text/plain; version=0.0.4; charset=utf-8")) {
+            RecipeMetrics.writePrometheus(out);
+        }
+    }
+
+    // Starts a chunked JSON response; closing the writer finishes it
+    private static Writer begin(HttpExchange exchange, int status) throws IOException {
+        return begin(exchange, status, "application/json; charset=utf-8");
+    }
+
+    private static Writer begin(HttpExchange exchange, int status, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192);
+    }
+
+    static void writeRecipe(Writer out, Recipe recipe) throws IOException {
+        out.write("{\"name\":");
+        writeString(out, recipe.getName());
+        out.write(",\"cuisine\":");
+        writeString(out, recipe.getCuisine());
+        out.write(",\"ingredients\":[");
+        List<String> ingredients = recipe.getIngredients();
+        for (int i = 0; i < ingredients.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeString(out, ingredients.get(i));
+        }
+        out.write("],\"cookingTime\":");
+        writeInt(out, recipe.getCookingTime());
+        out.write(",\"servings\":");
+        writeInt(out, recipe.getServings());
+        out.write(",\"popularity\":");
+        writeInt(out, recipe.getPopularity());
+        out.write('}');
+    }
+
+    static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write("\\u00");
+                out.write(Character.forDigit(c >> 4, 16));
+                out.write(Character.forDigit(c & 15, 16));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    // Digits straight into the writer, without an Integer.toString
+    private static void writeInt(Writer out, int value) throws IOException {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                out.write("-2147483648");
+                return;
+            }
+            out.write('-');
+            value = -value;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + value / divisor % 10);
+        }
+    }
+}
+
+// Process-wide counters and latency histograms for the recipe operations, with gauges for tree
+// and queue state. Off unless the JVM runs with -Drecipes.metrics=true: ENABLED is a static final
+// constant, so with metrics off the JIT folds every guarded call site down to nothing.
+final class RecipeMetrics {
+    static final boolean ENABLED = Boolean.getBoolean("recipes.metrics");
+
+    static final Operation CREATE = new Operation("create", false);
+    static final Operation INSERT = new Operation("insert", true);
+    static final Operation SEARCH = new Operation("search", true);
+    static final Operation DELETE = new Operation("delete", true);
+    static final Operation SORT = new Operation("sort", true);
+    static final Operation TRAVERSE = new Operation("traverse", true);
+    static final Operation ENQUEUE = new Operation("enqueue", true);
+    static final Operation DEQUEUE = new Operation("dequeue", true);
+    static final Operation STACK = new Operation("stack", false);
+    static final Operation FAVORITE = new Operation("favorite", false);
+    private static final Operation[] OPERATIONS = { CREATE, INSERT, SEARCH, DELETE, SORT, TRAVERSE, ENQUEUE,
+            DEQUEUE, STACK, FAVORITE };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    // Registered by name so a component that is rebuilt replaces its old gauge
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private RecipeMetrics() {
+    }
+
+    // Start timestamp to hand back to Operation.stop; 0 when metrics are off
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void gauge(String name, String help, LongSupplier value) {
+        if (ENABLED) {
+            gauges.put(name, new Gauge(name, help, value));
+        }
+    }
+
+    static void writePrometheus(Appendable out) throws IOException {
+        out.append("# HELP recipe_operation_seconds Latency of recipe operations\n");
+        out.append("# TYPE recipe_operation_seconds summary\n");
+        for (Operation operation : OPERATIONS) {
+            if (!operation.timed) {
+                continue;
+            }
+            long[] counts = operation.histogram.snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            for (double quantile : QUANTILES) {
+                out.append("recipe_operation_seconds{operation=\"").append(operation.name).append("\",quantile=\"")
+                        .append(Double.toString(quantile)).append("\"} ")
+                        .append(seconds(LatencyHistogram.valueAt(counts, total, quantile))).append('\n');
+            }
+            out.append("recipe_operation_seconds_sum{operation=\"").append(operation.name).append("\"} ")
+                    .append(seconds(operation.histogram.sum())).append('\n');
+            out.append("recipe_operation_seconds_count{operation=\"").append(operation.name).append("\"} ")
+                    .append(Long.toString(total)).append('\n');
+        }
+        writeCounters(out, "recipe_operation_errors_total", "Operations rejected for invalid input", false);
+        writeCounters(out, "recipe_operation_misses_total",
+                "Operations that found nothing to do: misses, duplicates, drops and empty queues", true);
+        List<Gauge> sorted = new ArrayList<>(gauges.values());
+        sorted.sort(Comparator.comparing(gauge -> gauge.name));
+        for (Gauge gauge : sorted) {
+            out.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n');
+            out.append("# TYPE ").append(gauge.name).append(" gauge\n");
+            out.append(gauge.name).append(' ').append(Long.toString(gauge.value.getAsLong())).append('\n');
+        }
+    }
+
+    private static void writeCounters(Appendable out, String name, String help, boolean misses) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Operation operation : OPERATIONS) {
+            out.append(name).append("{operation=\"").append(operation.name).append("\"} ")
+                    .append(Long.toString((misses ? operation.misses : operation.errors).sum())).append('\n');
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    static final class Operation {
+        final String name;
+        final boolean timed;
+        private final LatencyHistogram histogram;
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        private Operation(String name, boolean timed) {
+            this.name = name;
+            this.timed = timed;
+            histogram = ENABLED && timed ? new LatencyHistogram() : null;
+        }
+
+        void stop(long start) {
+            if (ENABLED) {
+                long nanos = System.nanoTime() - start;
+                histogram.record(nanos);
+                RecipeOperationEvent event = new RecipeOperationEvent();
+                if (event.isEnabled()) {
+                    event.operation = name;
+                    event.latency = nanos;
+                    event.commit();
+                }
+            }
+        }
+
+        void error() {
+            if (ENABLED) {
+                errors.increment();
+            }
+        }
+
+        void miss() {
+            if (ENABLED) {
+                misses.increment();
+            }
+        }
+
+        long count() {
+            return histogram == null ? 0 : histogram.count();
+        }
+
+        long errors() {
+            return errors.sum();
+        }
+
+        long misses() {
+            return misses.sum();
+        }
+
+        // Latency in nanoseconds at the quantile (0..1), accurate to within 1/16th
+        long percentile(double quantile) {
+            if (histogram == null) {
+                return 0;
+            }
+            long[] counts = histogram.snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return LatencyHistogram.valueAt(counts, total, quantile);
+        }
+    }
+
+    // Log-linear buckets in the style of HdrHistogram: each power of two is split into 16 linear
+    // sub-buckets, so any recorded value is off by at most 1/16th, from 1 ns up to about 18
+    // minutes in 592 counters. Recording threads are spread over a few stripes so they do not all
+    // increment the same cache line.
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final long MAX_VALUE = (1L << 40) - 1;
+        static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+        private final AtomicLongArray[] stripes;
+        private final LongAdder sum = new LongAdder();
+
+        LatencyHistogram() {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            stripes = new AtomicLongArray[Math.min(8, Integer.highestOneBit(cpus))];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(0, value);
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(Math.min(value, MAX_VALUE)) - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) + (int) ((Math.min(value, MAX_VALUE) >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // Smallest value that falls into the bucket
+        static long lowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            return (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << ((bucket >>> SUB_BITS) - 1);
+        }
+
+        void record(long nanos) {
+            int stripe = (int) Thread.currentThread().getId() & (stripes.length - 1);
+            stripes[stripe].getAndIncrement(bucket(nanos));
+            sum.add(Math.max(0, nanos));
+        }
+
+        long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += stripe.get(i);
+                }
+            }
+            return counts;
+        }
+
+        long count() {
+            long total = 0;
+            for (long count : snapshot()) {
+                total += count;
+            }
+            return total;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        // Highest value of the bucket holding the quantile, as HdrHistogram reports it
+        static long valueAt(long[] counts, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i + 1 < BUCKETS ? lowestValue(i + 1) - 1 : MAX_VALUE;
+                }
+            }
+            return MAX_VALUE;
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
+
+// One recipe operation as a JFR event, recorded when metrics are on and a recording enables it:
+// java -Drecipes.metrics=true -XX:StartFlightRecording:filename=recipes.jfr recipe_manager
+@Name("recipes.Operation")
+@Label("Recipe Operation")
+@Category("Recipe Manager")
+@StackTrace(false)
+class RecipeOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
+
+// Aggregate views of the catalog for dashboards: recipes and average cooking time, servings and
+// popularity per cuisine, how many recipes use each ingredient, how often two ingredients appear
+// together, and a popularity histogram. Everything lives in primitive arrays indexed by dense
+// cuisine and ingredient ids. compute builds the totals in one parallel pass; a live instance
+// starts from that pass over the tree and then applies each insert and delete as a +1/-1 delta,
+// so reads only copy precomputed numbers.
+class CatalogAnalytics implements RecipeIndexListener {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Totals totals;
+    private List<Recipe> replayed; // set while addListener replays the tree
+
+    public CatalogAnalytics(RecipeBST recipeBST) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        lock.writeLock().lock();
+        try {
+            replayed = new ArrayList<>(recipeBST.size());
+            recipeBST.addListener(this);
+            totals = compute(replayed.parallelStream());
+            replayed = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Full recompute over any source of recipes, e.g. recipeBST.recipes().parallel(). Each
+    // worker fills its own Totals against shared id dictionaries and the parts are summed.
+    static Totals compute(Stream<Recipe> recipes) {
+        Dictionary cuisines = new Dictionary(false);
+        Dictionary ingredients = new Dictionary(true);
+        return recipes.collect(() -> new Totals(cuisines, ingredients), (t, recipe) -> t.add(recipe, 1),
+                Totals::merge);
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            if (replayed != null) {
+                replayed.add(recipe);
+                return;
+            }
+            totals.add(recipe, 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            totals.add(recipe, -1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long recipes() {
+        lock.readLock().lock();
+        try {
+            return totals.recipes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Every cuisine with at least one recipe, most recipes first
+    public List<CuisineSummary> cuisines() {
+        lock.readLock().lock();
+        try {
+            return totals.cuisines();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k ingredients used by the most recipes
+    public List<Tally> topIngredients(int k) {
+        lock.readLock().lock();
+        try {
+            return totals.topIngredients(k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long recipesWith(String ingredient) {
+        lock.readLock().lock();
+        try {
+            int id = totals.ingredients.find(ingredient);
+            return id < 0 || id >= totals.ingredientCount.length ? 0 : totals.ingredientCount[id];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k ingredients that share the most recipes with the given one
+    public List<Tally> coOccurring(String ingredient, int k) {
+        lock.readLock().lock();
+        try {
+            int id = totals.ingredients.find(ingredient);
+            return id < 0 ? new ArrayList<>() : totals.coOccurring(id, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k ingredient pairs found together in the most recipes, named "first + second"
+    public List<Tally> topPairs(int k) {
+        lock.readLock().lock();
+        try {
+            return totals.coOccurring(-1, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Recipes per popularity 0..Recipe.MAX_POPULARITY
+    public long[] popularityHistogram() {
+        lock.readLock().lock();
+        try {
+            return totals.popularity.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static final class CuisineSummary {
+        final String cuisine;
+        final long recipes;
+        final double averageCookingTime;
+        final double averageServings;
+        final double averagePopularity;
+
+        CuisineSummary(String cuisine, long recipes, long cookingTime, long servings, long popularity) {
+            this.cuisine = cuisine;
+            this.recipes = recipes;
+            averageCookingTime = (double) cookingTime / recipes;
+            averageServings = (double) servings / recipes;
+            averagePopularity = (double) popularity / recipes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d recipes, %.1f min, %.1f servings, popularity %.1f", cuisine, recipes,
+                    averageCookingTime, averageServings, averagePopularity);
+        }
+    }
+
+    static final class Tally {
+        final String name;
+        final long count;
+
+        Tally(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + count;
+        }
+    }
+
+    // Dense ids for cuisines or ingredients, shared by every worker of one compute. Ingredients
+    // are normalized like IngredientIndex does; cuisines are kept as written, as RecipeOrder
+    // compares them. Workers cache ids by the exact string they saw, so the shared map and
+    // the normalization are only paid once per distinct spelling per worker.
+    static final class Dictionary {
+        private final boolean normalize;
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        Dictionary(boolean normalize) {
+            this.normalize = normalize;
+        }
+
+        int id(String value) {
+            String key = normalize ? IngredientIndex.normalize(value) : value;
+            return ids.computeIfAbsent(key, k -> {
+                synchronized (names) {
+                    names.add(value.trim());
+                    return names.size() - 1;
+                }
+            });
+        }
+
+        // Id of a value already seen, or -1
+        int find(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer id = ids.get(normalize ? IngredientIndex.normalize(value) : value);
+            return id == null ? -1 : id;
+        }
+
+        String name(int id) {
+            synchronized (names) {
+                return names.get(id);
+            }
+        }
+    }
+
+    static final class Totals {
+        final Dictionary cuisines;
+        final Dictionary ingredients;
+        private final Map<String, Integer> cuisineCache = new HashMap<>();
+        private final Map<String, Integer> ingredientCache = new HashMap<>();
+        long recipes;
+        long[] cuisineCount = new long[16];
+        long[] cookingTime = new long[16];
+        long[] servings = new long[16];
+        long[] cuisinePopularity = new long[16];
+        long[] ingredientCount = new long[64];
+        final long[] popularity = new long[Recipe.MAX_POPULARITY + 1];
+        final PairCounts pairs = new PairCounts();
+        private int[] scratch = new int[16];
+
+        Totals(Dictionary cuisines, Dictionary ingredients) {
+            this.cuisines = cuisines;
+            this.ingredients = ingredients;
+        }
+
+        void add(Recipe recipe, int delta) {
+            int cuisine = id(cuisineCache, cuisines, recipe.getCuisine());
+            if (cuisine >= cuisineCount.length) {
+                int length = Math.max(cuisine + 1, cuisineCount.length * 2);
+                cuisineCount = Arrays.copyOf(cuisineCount, length);
+                cookingTime = Arrays.copyOf(cookingTime, length);
+                servings = Arrays.copyOf(servings, length);
+                cuisinePopularity = Arrays.copyOf(cuisinePopularity, length);
+            }
+            recipes += delta;
+            cuisineCount[cuisine] += delta;
+            cookingTime[cuisine] += (long) delta * recipe.getCookingTime();
+            servings[cuisine] += (long) delta * recipe.getServings();
+            cuisinePopularity[cuisine] += (long) delta * recipe.getPopularity();
+            popularity[recipe.getPopularity()] += delta;
+
+            // Distinct ingredient ids of the recipe in ascending order, then every pair once
+            List<String> names = recipe.getIngredients();
+            if (scratch.length < names.size()) {
+                scratch = new int[names.size() * 2];
+            }
+            int count = 0;
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (name.isBlank()) {
+                    continue;
+                }
+                scratch[count++] = id(ingredientCache, ingredients, name);
+            }
+            Arrays.sort(scratch, 0, count);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct == 0 || scratch[i] != scratch[distinct - 1]) {
+                    scratch[distinct++] = scratch[i];
+                }
+            }
+            if (distinct > 0 && scratch[distinct - 1] >= ingredientCount.length) {
+                ingredientCount = Arrays.copyOf(ingredientCount,
+                        Math.max(scratch[distinct - 1] + 1, ingredientCount.length * 2));
+            }
+            for (int i = 0; i < distinct; i++) {
+                ingredientCount[scratch[i]] += delta;
+                for (int j = i + 1; j < distinct; j++) {
+                    pairs.add(scratch[i], scratch[j], delta);
+                }
+            }
+        }
+
+        private static int id(Map<String, Integer> cache, Dictionary dictionary, String value) {
+            Integer id = cache.get(value);
+            if (id == null) {
+                id = dictionary.id(value);
+                cache.put(value, id);
+            }
+            return id;
+        }
+
+        Totals merge(Totals other) {
+            recipes += other.recipes;
+            cuisineCount = sum(cuisineCount, other.cuisineCount);
+            cookingTime = sum(cookingTime, other.cookingTime);
+            servings = sum(servings, other.servings);
+            cuisinePopularity = sum(cuisinePopularity, other.cuisinePopularity);
+            ingredientCount = sum(ingredientCount, other.ingredientCount);
+            for (int i = 0; i < popularity.length; i++) {
+                popularity[i] += other.popularity[i];
+            }
+            pairs.addAll(other.pairs);
+            return this;
+        }
+
+        private static long[] sum(long[] into, long[] from) {
+            if (from.length > into.length) {
+                into = Arrays.copyOf(into, from.length);
+            }
+            for (int i = 0; i < from.length; i++) {
+                into[i] += from[i];
+            }
+            return into;
+        }
+
+        List<CuisineSummary> cuisines() {
+            List<CuisineSummary> summaries = new ArrayList<>();
+            for (int id = 0; id < cuisineCount.length; id++) {
+                if (cuisineCount[id] > 0) {
+                    summaries.add(new CuisineSummary(cuisines.name(id), cuisineCount[id], cookingTime[id],
+                            servings[id], cuisinePopularity[id]));
+                }
+            }
+            summaries.sort((a, b) -> Long.compare(b.recipes, a.recipes));
+            return summaries;
+        }
+
+        List<Tally> topIngredients(int k) {
+            TopK top = new TopK(k);
+            for (int id = 0; id < ingredientCount.length; id++) {
+                top.offer(id, ingredientCount[id]);
+            }
+            List<Tally> result = new ArrayList<>();
+            for (long[] entry : top.drain()) {
+                result.add(new Tally(ingredients.name((int) entry[1]), entry[0]));
+            }
+            return result;
+        }
+
+        // Partners of one ingredient, or the top pairs overall when ingredient is -1
+        List<Tally> coOccurring(int ingredient, int k) {
+            TopK top = new TopK(k);
+            pairs.forEach((first, second, count) -> {
+                if (ingredient == -1) {
+                    top.offer(((long) first << 32) | second, count);
+                } else if (first == ingredient) {
+                    top.offer(second, count);
+                } else if (second == ingredient) {
+                    top.offer(first, count);
+                }
+            });
+            List<Tally> result = new ArrayList<>();
+            for (long[] entry : top.drain()) {
+                long key = entry[1];
+                String name = ingredient == -1
+                        ? ingredients.name((int) (key >>> 32)) + " + " + ingredients.name((int) key)
+                        : ingredients.name((int) key);
+                result.add(new Tally(name, entry[0]));
+            }
+            return result;
+        }
+    }
+
+    interface PairVisitor {
+        void visit(int first, int second, long count);
+    }
+
+    // Counts per ingredient pair (first < second). Pairs of the first DENSE_IDS ingredients sit in
+    // a triangular array, so the common pairs cost one indexed add; ids are handed out in
+    // first-seen order, which puts the frequent ingredients there. Rarer pairs go to an
+    // open-addressing map whose keys are stored plus one so an all-zero slot is free.
+    static final class PairCounts {
+        static final int DENSE_IDS = 1 << 10;
+
+        private long[] dense = new long[0]; // pair (a, b) at b * (b - 1) / 2 + a
+        private long[] keys = new long[1 << 4];
+        private long[] counts = new long[1 << 4];
+        private int used;
+
+        void add(int first, int second, long delta) {
+            if (second < DENSE_IDS) {
+                int index = second * (second - 1) / 2 + first;
+                if (index >= dense.length) {
+                    dense = Arrays.copyOf(dense,
+                            Math.min(DENSE_IDS * (DENSE_IDS - 1) / 2, Math.max(index + 1, dense.length * 2)));
+                }
+                dense[index] += delta;
+            } else {
+                addSparse(((long) first << 32) | second, delta);
+            }
+        }
+
+        private void addSparse(long pair, long delta) {
+            if (used * 2 >= keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int slot = (int) UserSessionStore.mix(pair) & mask;
+            while (keys[slot] != 0 && keys[slot] != pair + 1) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                keys[slot] = pair + 1;
+                used++;
+            }
+            counts[slot] += delta;
+        }
+
+        void addAll(PairCounts other) {
+            if (other.dense.length > dense.length) {
+                dense = Arrays.copyOf(dense, other.dense.length);
+            }
+            for (int i = 0; i < other.dense.length; i++) {
+                dense[i] += other.dense[i];
+            }
+            for (int slot = 0; slot < other.keys.length; slot++) {
+                if (other.keys[slot] != 0) {
+                    addSparse(other.keys[slot] - 1, other.counts[slot]);
+                }
+            }
+        }
+
+        // Every pair with a positive count
+        void forEach(PairVisitor visitor) {
+            for (int second = 1, index = 0; index < dense.length; second++) {
+                for (int first = 0; first < second && index < dense.length; first++, index++) {
+                    if (dense[index] > 0) {
+                        visitor.visit(first, second, dense[index]);
+                    }
+                }
+            }
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0 && counts[slot] > 0) {
+                    long pair = keys[slot] - 1;
+                    visitor.visit((int) (pair >>> 32), (int) pair, counts[slot]);
+                }
+            }
+        }
+
+        int size() {
+            int[] size = new int[1];
+            forEach((first, second, count) -> size[0]++);
+            return size[0];
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            counts = new long[oldKeys.length * 2];
+            used = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != 0) {
+                    addSparse(oldKeys[slot] - 1, oldCounts[slot]);
+                }
+            }
+        }
+    }
+
+    // Keeps the k largest counts seen with their keys; ties keep the smaller key
+    private static final class TopK {
+        private final int k;
+        private final PriorityQueue<long[]> heap = new PriorityQueue<>((a, b) -> a[0] != b[0]
+                ? Long.compare(a[0], b[0]) : Long.compare(b[1], a[1]));
+
+        TopK(int k) {
+            this.k = Math.max(0, k);
+        }
+
+        void offer(long key, long count) {
+            if (count <= 0 || k == 0) {
+                return;
+            }
+            if (heap.size() < k) {
+                heap.add(new long[] { count, key });
+            } else {
+                long[] smallest = heap.peek();
+                if (count > smallest[0] || count == smallest[0] && key < smallest[1]) {
+                    heap.poll();
+                    heap.add(new long[] { count, key });
+                }
+            }
+        }
+
+        // Largest first, as { count, key }
+        List<long[]> drain() {
+            List<long[]> entries = new ArrayList<>(heap.size());
+            while (!heap.isEmpty()) {
+                entries.add(heap.poll());
+            }
+            Collections.reverse(entries);
+            return entries;
+        }
+    }
+}
+
+// "More like this" over ingredient sets. Each recipe gets a MinHash signature of BANDS * ROWS
+// hashes; recipes whose signatures agree on all ROWS hashes of some band share that band's
+// bucket, so candidates come from BANDS bucket chains instead of a catalog scan. Candidates are
+// then reranked by their exact Jaccard similarity, a same-cuisine bonus and popularity.
+class RecipeSimilarity implements RecipeIndexListener {
+    // 16 bands of 3 rows: a pair with Jaccard s shares a bucket with probability 1-(1-s^3)^16,
+    // about 0.65 at s=0.4 and 0.98 at s=0.6
+    static final int BANDS = 16;
+    static final int ROWS = 3;
+    // Bucket entries read per band, so one crowded bucket cannot use up a query's budget
+    private static final int BAND_CANDIDATES = 256;
+    private static final double CUISINE_BONUS = 0.1;
+    private static final double POPULARITY_WEIGHT = 0.25;
+    private static final long[] SEEDS = new long[BANDS * ROWS];
+
+    static {
+        for (int i = 0; i < SEEDS.length; i++) {
+            SEEDS[i] = UserSessionStore.mix(0x9e3779b97f4a7c15L * (i + 1));
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Per recipe id: the recipe, its sorted distinct ingredient hashes and its cuisine hash
+    private Recipe[] recipes;
+    private int[][] ingredients;
+    private int[] cuisines;
+    private int count;
+    // BANDS tables of mask+1 slots each, holding id+1 of the first recipe in the slot (0 = empty).
+    // Entry id*BANDS+band links a recipe into its slot of that band, with the full band hash
+    // kept so the tables can be resized without recomputing signatures.
+    private int[] heads;
+    private int mask;
+    private int[] next;
+    private int[] prev;
+    private int[] bandHashes;
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    public RecipeSimilarity(RecipeBST recipeBST) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        lock.writeLock().lock();
+        try {
+            // Sized for the replay up front so building never rehashes
+            int capacity = Integer.highestOneBit(Math.max(16, recipeBST.size()) * 2 - 1);
+            recipes = new Recipe[capacity];
+            ingredients = new int[capacity][];
+            cuisines = new int[capacity];
+            next = new int[capacity * BANDS];
+            prev = new int[capacity * BANDS];
+            bandHashes = new int[capacity * BANDS];
+            heads = new int[capacity * BANDS];
+            mask = capacity - 1;
+            recipeBST.addListener(this);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeInserted(int id, Recipe recipe) {
+        int[] hashes = ingredientHashes(recipe);
+        int[] bands = hashes.length == 0 ? null : bandHashes(hashes);
+        lock.writeLock().lock();
+        try {
+            if (id >= recipes.length) {
+                int capacity = Math.max(id + 1, recipes.length * 2);
+                recipes = Arrays.copyOf(recipes, capacity);
+                ingredients = Arrays.copyOf(ingredients, capacity);
+                cuisines = Arrays.copyOf(cuisines, capacity);
+                next = Arrays.copyOf(next, capacity * BANDS);
+                prev = Arrays.copyOf(prev, capacity * BANDS);
+                bandHashes = Arrays.copyOf(bandHashes, capacity * BANDS);
+            }
+            recipes[id] = recipe;
+            ingredients[id] = hashes;
+            cuisines[id] = IngredientIndex.normalize(recipe.getCuisine()).hashCode();
+            count++;
+            if (bands == null) {
+                return; // nothing to compare on; never a candidate
+            }
+            System.arraycopy(bands, 0, bandHashes, id * BANDS, BANDS);
+            if (count > mask + 1) {
+                resize((mask + 1) * 2);
+            } else {
+                for (int band = 0; band < BANDS; band++) {
+                    link(id, band);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void recipeDeleted(int id, Recipe recipe) {
+        lock.writeLock().lock();
+        try {
+            if (id >= recipes.length || recipes[id] == null) {
+                return;
+            }
+            if (ingredients[id].length > 0) {
+                for (int band = 0; band < BANDS; band++) {
+                    unlink(id, band);
+                }
+            }
+            recipes[id] = null;
+            ingredients[id] = null;
+            count--;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k recipes most like the given one, best first. The recipe need not be in the catalog;
+    // if it is, it is left out of its own results.
+    public List<Match> similar(Recipe recipe, int k) {
+        List<Match> result = new ArrayList<>();
+        if (recipe == null || k <= 0) {
+            return result;
+        }
+        int[] hashes = ingredientHashes(recipe);
+        if (hashes.length == 0) {
+            return result;
+        }
+        int[] bands = bandHashes(hashes);
+        int cuisine = IngredientIndex.normalize(recipe.getCuisine()).hashCode();
+        Scratch s = scratch.get();
+        s.ensure(k);
+        lock.readLock().lock();
+        try {
+            int stamp = s.nextStamp(recipes.length);
+            int size = mask + 1;
+            for (int band = 0; band < BANDS; band++) {
+                int walked = 0;
+                for (int entry = heads[band * size + (bands[band] & mask)]; entry != 0
+                        && walked < BAND_CANDIDATES; entry = next[(entry - 1) * BANDS + band]) {
+                    int id = entry - 1;
+                    walked++;
+                    if (bandHashes[id * BANDS + band] != bands[band]) {
+                        continue; // another bucket sharing the slot
+                    }
+                    if (s.stamps[id] == stamp || recipes[id] == recipe) {
+                        continue;
+                    }
+                    s.stamps[id] = stamp;
+                    double similarity = jaccard(hashes, ingredients[id]);
+                    double score = score(similarity, cuisines[id] == cuisine, recipes[id].getPopularity());
+                    s.offer(id, similarity, score, k);
+                }
+            }
+            for (int i = 0; i < s.found; i++) {
+                result.add(new Match(recipes[s.ids[i]], s.similarities[i], s.scores[i]));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // Jaccard similarity weighted up to 1 + POPULARITY_WEIGHT for the most popular recipes
+    static double score(double similarity, boolean sameCuisine, int popularity) {
+        return (similarity + (sameCuisine ? CUISINE_BONUS : 0))
+                * (1 + POPULARITY_WEIGHT * popularity / Recipe.MAX_POPULARITY);
+    }
+
+    // Shared over combined elements of two sorted, distinct arrays
+    static double jaccard(int[] a, int[] b) {
+        int i = 0;
+        int j = 0;
+        int shared = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) shared / (a.length + b.length - shared);
+    }
+
+    // Normalized ingredient names as sorted, distinct hash codes; exact similarity compares these
+    static int[] ingredientHashes(Recipe recipe) {
+        List<String> names = recipe.getIngredients();
+        int[] hashes = new int[names.size()];
+        int n = 0;
+        for (String ingredient : names) {
+            String key = IngredientIndex.normalize(ingredient);
+            if (!key.isEmpty()) {
+                hashes[n++] = key.hashCode();
+            }
+        }
+        Arrays.sort(hashes, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        return distinct == hashes.length ? hashes : Arrays.copyOf(hashes, distinct);
+    }
+
+    // MinHash each seed over the ingredient hashes, then fold every ROWS minimums into a band hash
+    static int[] bandHashes(int[] hashes) {
+        int[] bands = new int[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            long folded = band;
+            for (int row = 0; row < ROWS; row++) {
+                long seed = SEEDS[band * ROWS + row];
+                long min = Long.MAX_VALUE;
+                for (int hash : hashes) {
+                    min = Math.min(min, UserSessionStore.mix(hash ^ seed));
+                }
+                folded = UserSessionStore.mix(folded ^ min);
+            }
+            bands[band] = (int) folded;
+        }
+        return bands;
+    }
+
+    private void link(int id, int band) {
+        int entry = id * BANDS + band;
+        int slot = band * (mask + 1) + (bandHashes[entry] & mask);
+        int head = heads[slot];
+        next[entry] = head;
+        prev[entry] = 0;
+        if (head != 0) {
+            prev[(head - 1) * BANDS + band] = id + 1;
+        }
+        heads[slot] = id + 1;
+    }
+
+    private void unlink(int id, int band) {
+        int entry = id * BANDS + band;
+        int after = next[entry];
+        int before = prev[entry];
+        if (before != 0) {
+            next[(before - 1) * BANDS + band] = after;
+        } else {
+            heads[band * (mask + 1) + (bandHashes[entry] & mask)] = after;
+        }
+        if (after != 0) {
+            prev[(after - 1) * BANDS + band] = before;
+        }
+        next[entry] = 0;
+        prev[entry] = 0;
+    }
+
+    private void resize(int capacity) {
+        heads = new int[capacity * BANDS];
+        mask = capacity - 1;
+        for (int id = 0; id < recipes.length; id++) {
+            if (recipes[id] != null && ingredients[id].length > 0) {
+                for (int band = 0; band < BANDS; band++) {
+                    link(id, band);
+                }
+            }
+        }
+    }
+
+    static final class Match {
+        final Recipe recipe;
+        final double similarity; // exact Jaccard similarity of the ingredient sets
+        final double score;
+
+        Match(Recipe recipe, double similarity, double score) {
+            this.recipe = recipe;
+            this.similarity = similarity;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%.0f%% shared ingredients)", recipe.getName(), similarity * 100);
+        }
+    }
+
+    // Per-thread visit stamps and the running top k, best first, reused across queries
+    private static final class Scratch {
+        int[] stamps = new int[1024];
+        int stamp;
+
+        int[] ids = new int[16];
+        double[] similarities = new double[16];
+        double[] scores = new double[16];
+        int found;
+
+        int nextStamp(int ids) {
+            if (stamps.length < ids) {
+                stamps = new int[ids];
+                stamp = 0;
+            }
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            found = 0;
+            return stamp;
+        }
+
+        void ensure(int k) {
+            if (ids.length < k) {
+                ids = new int[k];
+                similarities = new double[k];
+                scores = new double[k];
+            }
+        }
+
+        // Insertion into the sorted top k; k is small, so shifting beats a heap
+        void offer(int id, double similarity, double score, int k) {
+            if (found == k && score <= scores[k - 1]) {
+                return;
+            }
+            int i = found < k ? found++ : k - 1;
+            while (i > 0 && scores[i - 1] < score) {
+                ids[i] = ids[i - 1];
+                similarities[i] = similarities[i - 1];
+                scores[i] = scores[i - 1];
+                i--;
+            }
+            ids[i] = id;
+            similarities[i] = similarity;
+            scores[i] = score;
+        }
+    }
+}
+
+class Stack {
+    private List<Recipe> stack = new ArrayList<>();
+
+    // Returns false for a null recipe, which is not pushed
+    public boolean push(Recipe recipe) {
+        if (recipe == null) {
+            RecipeMetrics.STACK.error();
+            return false;
+        }
+        stack.add(recipe);
+        return true;
+    }
+
+    // Most recently pushed recipe, removed from the stack, or null when the stack is empty
+    public Recipe pop() {
+        if (stack.isEmpty()) {
+            RecipeMetrics.STACK.miss();
+            return null;
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    public void display() {
+        if (stack.isEmpty()) {
+            System.out.println("No recently viewed recipes.");
+        } else {
+            System.out.println("Recently Viewed Recipes (most recent first):");
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                System.out.println(stack.get(i));
+            }
+        }
+    }
+}
+
+// Meal-planning queue shared by request threads (producers) and scheduler threads (consumers).
+// It is a lock-free MPMC ring buffer after Vyukov: every slot carries a sequence number saying
+// whose turn it is, so a producer or consumer claims a slot with a single CAS on its own counter,
+// and the two counters live on separate cache lines so both sides do not fight over one line.
+// What happens when the ring is full is chosen per queue.
+class CircularQueue {
+    enum FullPolicy {
+        BLOCK, // wait until a consumer frees a slot
+        DROP, // reject the recipe
+        GROW // chain a ring twice as large; consumers move on once the old ring is drained
+    }
+
+    private static final long CLOSED = 1L << 62; // set in a ring's producer counter once it has a successor
+
+    private final FullPolicy policy;
+    private final AtomicReference<Ring> head; // ring consumers take from
+    private final AtomicReference<Ring> tail; // ring producers add to
+
+    public CircularQueue(int capacity) {
+        this(capacity, FullPolicy.DROP);
+    }
+
+    // Capacity is rounded up to a power of two so a position maps to its slot with a mask
+    public CircularQueue(int capacity, FullPolicy policy) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Queue capacity must be between 1 and 2^30");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Full-queue policy cannot be null");
+        }
+        this.policy = policy;
+        Ring ring = new Ring(Math.max(2, Integer.highestOneBit(capacity - 1) << 1));
+        head = new AtomicReference<>(ring);
+        tail = new AtomicReference<>(ring);
+    }
+
+    // Adds the recipe, returning false when it was null or dropped (DROP policy, or an interrupted BLOCK)
+    public boolean enqueue(Recipe recipe) {
+        if (recipe == null) {
+            RecipeMetrics.ENQUEUE.error();
+            return false;
+        }
+        long start = RecipeMetrics.start();
+        boolean added = offer(recipe);
+        RecipeMetrics.ENQUEUE.stop(start);
+        if (!added) {
+            RecipeMetrics.ENQUEUE.miss();
+        }
+        return added;
+    }
+
+    private boolean offer(Recipe recipe) {
+        for (int attempt = 0;; attempt++) {
+            Ring ring = tail.get();
+            int result = ring.offer(recipe);
+            if (result == Ring.ADDED) {
+                return true;
+            }
+            if (result == Ring.CLOSED_RING) {
+                tail.compareAndSet(ring, ring.next.get());
+            } else if (policy == FullPolicy.DROP) {
+                return false;
+            } else if (policy == FullPolicy.GROW) {
+                grow(ring);
+            } else if (Thread.currentThread().isInterrupted()) {
+                return false;
+            } else {
+                backOff(attempt);
+            }
+        }
+    }
+
+    // Oldest recipe in the queue, or null when it is empty. Never blocks.
+    public Recipe dequeue() {
+        long start = RecipeMetrics.start();
+        Recipe recipe = poll();
+        RecipeMetrics.DEQUEUE.stop(start);
+        if (recipe == null) {
+            RecipeMetrics.DEQUEUE.miss();
+        }
+        return recipe;
+    }
+
+    private Recipe poll() {
+        while (true) {
+            Ring ring = head.get();
+            Recipe recipe = ring.poll();
+            if (recipe != null) {
+                return recipe;
+            }
+            Ring next = ring.next.get();
+            if (next == null || !ring.drained()) {
+                return null;
+            }
+            head.compareAndSet(ring, next);
+        }
+    }
+
+    // Waits for a recipe, spinning briefly before parking
+    public Recipe take() throws InterruptedException {
+        long start = RecipeMetrics.start();
+        for (int attempt = 0;; attempt++) {
+            Recipe recipe = poll();
+            if (recipe != null) {
+                RecipeMetrics.DEQUEUE.stop(start);
+                return recipe;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            backOff(attempt);
+        }
+    }
+
+    // Hands up to max recipes to the action in queue order and returns how many it took.
+    // Schedulers drain in batches to pay for the counter traffic once per batch, not per plan.
+    public int drainTo(Consumer<? super Recipe> action, int max) {
+        int drained = 0;
+        while (drained < max) {
+            Recipe recipe = poll();
+            if (recipe == null) {
+                break;
+            }
+            action.accept(recipe);
+            drained++;
+        }
+        return drained;
+    }
+
+    // Recipes currently queued; exact only while no other thread is using the queue
+    public int size() {
+        long size = 0;
+        for (Ring ring = head.get(); ring != null; ring = ring.next.get()) {
+            size += ring.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void display() {
+        List<Recipe> queued = new ArrayList<>();
+        for (Ring ring = head.get(); ring != null; ring = ring.next.get()) {
+            ring.snapshot(queued);
+        }
+        if (queued.isEmpty()) {
+            System.out.println("Queue is empty.");
+            return;
+        }
+        System.out.println("Meal Planning Queue:");
+        for (Recipe recipe : queued) {
+            System.out.println(recipe);
+        }
+    }
+
+    // Links a larger ring after the full one (only the first caller's ring wins), closes the full
+    // ring to producers and moves the tail on. Everything in the old ring was added before anything
+    // in the new one, so consumers still see queue order.
+    private void grow(Ring full) {
+        if (full.next.get() == null) {
+            full.next.compareAndSet(null, new Ring(Math.min(1 << 30, full.slots.length * 2)));
+        }
+        full.close();
+        tail.compareAndSet(full, full.next.get());
+    }
+
+    private static void backOff(int attempt) {
+        if (attempt < 64) {
+            Thread.onSpinWait();
+        } else if (attempt < 128) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    private static final class Ring {
+        static final int ADDED = 0;
+        static final int FULL = 1;
+        static final int CLOSED_RING = 2;
+
+        final Recipe[] slots;
+        // Slot i is free for the producer at position p when its sequence is p, and holds the
+        // recipe for the consumer at position p when it is p + 1
+        final AtomicLongArray sequences;
+        final int mask;
+        final PaddedCounter producer = new PaddedCounter();
+        final PaddedCounter consumer = new PaddedCounter();
+        final AtomicReference<Ring> next = new AtomicReference<>();
+
+        Ring(int capacity) {
+            slots = new Recipe[capacity];
+            sequences = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        int offer(Recipe recipe) {
+            while (true) {
+                long position = producer.get();
+                if ((position & CLOSED) != 0) {
+                    return CLOSED_RING;
+                }
+                int index = (int) position & mask;
+                long lag = sequences.get(index) - position;
+                if (lag == 0) {
+                    if (producer.compareAndSet(position, position + 1)) {
+                        slots[index] = recipe;
+                        sequences.lazySet(index, position + 1); // publishes the slot
+                        return ADDED;
+                    }
+                } else if (lag < 0) {
+                    return FULL; // the slot still holds the recipe from one lap ago
+                }
+                // Otherwise another producer took this position first; try the next one
+            }
+        }
+
+        Recipe poll() {
+            while (true) {
+                long position = consumer.get();
+                int index = (int) position & mask;
+                long lag = sequences.get(index) - (position + 1);
+                if (lag == 0) {
+                    if (consumer.compareAndSet(position, position + 1)) {
+                        Recipe recipe = slots[index];
+                        slots[index] = null; // nothing dequeued stays reachable from the ring
+                        sequences.lazySet(index, position + slots.length);
+                        return recipe;
+                    }
+                } else if (lag < 0) {
+                    return null;
+                }
+            }
+        }
+
+        void close() {
+            long position;
+            do {
+                position = producer.get();
+            } while ((position & CLOSED) == 0 && !producer.compareAndSet(position, position | CLOSED));
+        }
+
+        // Closed, and every position producers claimed has been consumed
+        boolean drained() {
+            long position = producer.get();
+            return (position & CLOSED) != 0 && consumer.get() == (position & ~CLOSED);
+        }
+
+        long size() {
+            return Math.max(0, (producer.get() & ~CLOSED) - consumer.get());
+        }
+
+        void snapshot(List<Recipe> into) {
+            long end = producer.get() & ~CLOSED;
+            for (long position = consumer.get(); position < end; position++) {
+                Recipe recipe = slots[(int) position & mask];
+                if (recipe != null) {
+                    into.add(recipe);
+                }
+            }
+        }
+    }
+
+    // A volatile long alone on its cache line. Superclass fields are laid out first, so the value
+    // sits between two blocks of 56 padding bytes whatever the JVM does with field order.
+    private static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class CounterValue extends LeftPadding {
+        volatile long value;
+    }
+
+    private static final class PaddedCounter extends CounterValue {
+        private static final AtomicLongFieldUpdater<CounterValue> VALUE =
+                AtomicLongFieldUpdater.newUpdater(CounterValue.class, "value");
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expected, long updated) {
+            return VALUE.compareAndSet(this, expected, updated);
+        }
+    }
+}
+
+// Plans when to start cooking so each recipe is ready at its serve time: a recipe serving at T
+// starts at T minus its cooking time. Plans sit in an indexed 4-ary min-heap ordered by start
+// time, then serve time, then arrival, so the next plan to start is always at the root. Every
+// plan keeps its heap position in a slot table, which makes reschedule and cancel O(log n)
+// sift operations instead of a search. Plan state lives in parallel primitive arrays, so
+// millions of plans cost a few dozen bytes each and no node objects.
+//
+// Workers take due plans in batches: one lock acquisition pops up to max plans, and the
+// consumer runs after the lock is released. Time comes from a Clock; a SimulatedClock only moves
+// when advanced, which makes tests and benchmarks deterministic.
+class MealScheduler implements AutoCloseable {
+    interface Clock {
+        long millis();
+    }
+
+    static final Clock SYSTEM_CLOCK = System::currentTimeMillis;
+
+    // Time that moves only through set and advance. Schedulers using it wake their waiting
+    // workers whenever it moves, since nothing else will.
+    static final class SimulatedClock implements Clock {
+        private final AtomicLong now;
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+        SimulatedClock(long start) {
+            now = new AtomicLong(start);
+        }
+
+        @Override
+        public long millis() {
+            return now.get();
+        }
+
+        void advance(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("A clock cannot move backwards");
+            }
+            now.addAndGet(millis);
+            listeners.forEach(Runnable::run);
+        }
+
+        void set(long millis) {
+            now.accumulateAndGet(millis, Math::max);
+            listeners.forEach(Runnable::run);
+        }
+
+        private void onAdvance(Runnable listener) {
+            listeners.add(listener);
+        }
+    }
+
+    // A plan handed to a worker: start cooking at startAt to serve at serveAt
+    static final class Plan {
+        final long handle;
+        final Recipe recipe;
+        final long startAt;
+        final long serveAt;
+
+        Plan(long handle, Recipe recipe, long startAt, long serveAt) {
+            this.handle = handle;
+            this.recipe = recipe;
+            this.startAt = startAt;
+            this.serveAt = serveAt;
+        }
+
+        @Override
+        public String toString() {
+            return recipe.getName() + " start " + startAt + " serve " + serveAt;
+        }
+    }
+
+    private static final int ARITY = 4;
+    private static final long MINUTE = 60_000;
+
+    private final Clock clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition due = lock.newCondition();
+    private boolean closed;
+
+    // Per slot; a handle is the slot in the low half and the slot's generation in the high half,
+    // so a handle to a plan that already ran or was cancelled never matches a reused slot
+    private Recipe[] recipes = new Recipe[16];
+    private long[] startAt = new long[16];
+    private long[] serveAt = new long[16];
+    private long[] arrival = new long[16];
+    private int[] generation = new int[16];
+    private int[] position = new int[16]; // index in heap, or the next free slot while free
+    private int freeSlot = -1;
+    private int slotsUsed;
+    private long arrivals;
+
+    private int[] heap = new int[16]; // slots, smallest (startAt, serveAt, arrival) first
+    private int size;
+
+    public MealScheduler() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public MealScheduler(Clock clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("Clock cannot be null");
+        }
+        this.clock = clock;
+        if (clock instanceof SimulatedClock) {
+            ((SimulatedClock) clock).onAdvance(this::wakeUp);
+        }
+    }
+
+    Clock clock() {
+        return clock;
+    }
+
+    // Plans the recipe to be ready at serveAt (clock millis) and returns a handle for reschedule
+    // and cancel, or -1 when the recipe is null or the scheduler is closed. A serve time too
+    // close to cook in full gets a start time in the past and comes out first.
+    public long schedule(Recipe recipe, long serveAt) {
+        if (recipe == null) {
+            return -1;
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return -1;
+            }
+            int slot = allocate();
+            recipes[slot] = recipe;
+            this.serveAt[slot] = serveAt;
+            startAt[slot] = startTime(recipe, serveAt);
+            arrival[slot] = arrivals++;
+            heap[size] = slot;
+            position[slot] = size;
+            siftUp(size++);
+            if (heap[0] == slot) {
+                due.signal(); // a waiting worker may now have something sooner
+            }
+            return handle(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves a plan to a new serve time; false when the handle no longer names a waiting plan
+    public boolean reschedule(long handle, long serveAt) {
+        lock.lock();
+        try {
+            int slot = slotOf(handle);
+            if (slot < 0) {
+                return false;
+            }
+            long oldStart = startAt[slot];
+            this.serveAt[slot] = serveAt;
+            startAt[slot] = startTime(recipes[slot], serveAt);
+            int index = position[slot];
+            siftUp(index);
+            siftDown(position[slot]);
+            if (startAt[slot] < oldStart && heap[0] == slot) {
+                due.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops a plan that has not been handed out yet
+    public boolean cancel(long handle) {
+        lock.lock();
+        try {
+            int slot = slotOf(handle);
+            if (slot < 0) {
+                return false;
+            }
+            removeAt(position[slot]);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands up to max plans whose start time has come to the action, earliest first, and
+    // returns how many. Never waits.
+    public int drainDue(Consumer<? super Plan> action, int max) {
+        Plan[] batch = popDue(max);
+        for (Plan plan : batch) {
+            action.accept(plan);
+        }
+        return batch.length;
+    }
+
+    // Waits until at least one plan is due, then takes up to max of them. Returns an empty list
+    // once the scheduler is closed.
+    public List<Plan> takeDue(int max) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!closed) {
+                long wait = size == 0 ? Long.MAX_VALUE : startAt[heap[0]] - clock.millis();
+                if (wait <= 0) {
+                    Plan[] batch = popDueLocked(max, clock.millis());
+                    if (size > 0 && startAt[heap[0]] <= clock.millis()) {
+                        due.signal(); // more for the next worker
+                    }
+                    return Arrays.asList(batch);
+                }
+                if (wait == Long.MAX_VALUE || clock instanceof SimulatedClock) {
+                    due.await();
+                } else {
+                    due.await(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Start time of the next plan, or Long.MAX_VALUE when nothing is planned
+    public long nextStart() {
+        lock.lock();
+        try {
+            return size == 0 ? Long.MAX_VALUE : startAt[heap[0]];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waiting plans in start order
+    public List<Plan> plans() {
+        lock.lock();
+        try {
+            List<Plan> plans = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                plans.add(plan(heap[i]));
+            }
+            plans.sort(Comparator.comparingLong((Plan plan) -> plan.startAt).thenComparingLong(plan -> plan.serveAt));
+            return plans;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void display() {
+        List<Plan> plans = plans();
+        if (plans.isEmpty()) {
+            System.out.println("No meals scheduled.");
+            return;
+        }
+        long now = clock.millis();
+        System.out.println("Meal Schedule:");
+        for (Plan plan : plans) {
+            long startIn = (plan.startAt - now) / MINUTE;
+            System.out.println(String.format("| %-20s | start %s | serve in %4d min |", plan.recipe.getName(),
+                    startIn <= 0 ? "now        " : String.format("in %4d min", startIn),
+                    (plan.serveAt - now) / MINUTE));
+        }
+    }
+
+    // Wakes every waiting worker; they return empty lists and later schedule calls return -1
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            due.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeUp() {
+        lock.lock();
+        try {
+            due.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long startTime(Recipe recipe, long serveAt) {
+        return serveAt - Math.max(0, recipe.getCookingTime()) * MINUTE;
+    }
+
+    private Plan[] popDue(int max) {
+        lock.lock();
+        try {
+            return popDueLocked(max, clock.millis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Plan[] popDueLocked(int max, long now) {
+        int count = 0;
+        Plan[] batch = new Plan[Math.max(0, Math.min(max, size))];
+        while (count < batch.length && startAt[heap[0]] <= now) {
+            int slot = heap[0];
+            batch[count++] = plan(slot);
+            removeAt(0);
+        }
+        return count == batch.length ? batch : Arrays.copyOf(batch, count);
+    }
+
+    private Plan plan(int slot) {
+        return new Plan(handle(slot), recipes[slot], startAt[slot], serveAt[slot]);
+    }
+
+    private long handle(int slot) {
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    // Slot of a waiting plan, or -1 for a stale or made-up handle
+    private int slotOf(long handle) {
+        int slot = (int) handle;
+        if (handle < 0 || slot >= slotsUsed || generation[slot] != (int) (handle >>> 32) || recipes[slot] == null) {
+            return -1;
+        }
+        return slot;
+    }
+
+    private int allocate() {
+        if (freeSlot >= 0) {
+            int slot = freeSlot;
+            freeSlot = position[slot];
+            return slot;
+        }
+        if (slotsUsed == recipes.length) {
+            int capacity = recipes.length * 2;
+            recipes = Arrays.copyOf(recipes, capacity);
+            startAt = Arrays.copyOf(startAt, capacity);
+            serveAt = Arrays.copyOf(serveAt, capacity);
+            arrival = Arrays.copyOf(arrival, capacity);
+            generation = Arrays.copyOf(generation, capacity);
+            position = Arrays.copyOf(position, capacity);
+            heap = Arrays.copyOf(heap, capacity);
+        }
+        return slotsUsed++;
+    }
+
+    private void removeAt(int index) {
+        int slot = heap[index];
+        int last = heap[--size];
+        if (index < size) {
+            heap[index] = last;
+            position[last] = index;
+            siftUp(index);
+            siftDown(position[last]);
+        }
+        recipes[slot] = null; // nothing handed out stays reachable from the scheduler
+        generation[slot] = (generation[slot] + 1) & Integer.MAX_VALUE;
+        position[slot] = freeSlot;
+        freeSlot = slot;
+    }
+
+    private boolean before(int a, int b) {
+        if (startAt[a] != startAt[b]) {
+            return startAt[a] < startAt[b];
+        }
+        if (serveAt[a] != serveAt[b]) {
+            return serveAt[a] < serveAt[b];
+        }
+        return arrival[a] < arrival[b];
+    }
+
+    private void siftUp(int index) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / ARITY;
+            if (!before(slot, heap[parent])) {
+                break;
+            }
+            heap[index] = heap[parent];
+            position[heap[index]] = index;
+            index = parent;
+        }
+        heap[index] = slot;
+        position[slot] = index;
+    }
+
+    private void siftDown(int index) {
+        int slot = heap[index];
+        while (true) {
+            int first = index * ARITY + 1;
+            if (first >= size) {
+                break;
+            }
+            int smallest = first;
+            for (int child = first + 1; child < Math.min(first + ARITY, size); child++) {
+                if (before(heap[child], heap[smallest])) {
+                    smallest = child;
+                }
+            }
+            if (!before(heap[smallest], slot)) {
+                break;
+            }
+            heap[index] = heap[smallest];
+            position[heap[index]] = index;
+            index = smallest;
+        }
+        heap[index] = slot;
+        position[slot] = index;
+    }
+}
+
+// Fields a recipe list can be ordered by. String fields are turned into ranks before sorting,
+// so every comparison inside the sort is on ints.
+enum RecipeField {
+    NAME, CUISINE, INGREDIENT_COUNT, COOKING_TIME, SERVINGS, POPULARITY;
+
+    // Value of a numeric field; string fields go through RecipeSorter's rank dictionaries
+    int intValue(Recipe recipe) {
+        switch (this) {
+            case INGREDIENT_COUNT:
+                return recipe.getIngredients().size();
+            case COOKING_TIME:
+                return recipe.getCookingTime();
+            case SERVINGS:
+                return recipe.getServings();
+            case POPULARITY:
+                return recipe.getPopularity();
+            default:
+                throw new IllegalStateException(this + " is not numeric");
+        }
+    }
+
+    boolean isText() {
+        return this == NAME || this == CUISINE;
+    }
+}
+
+// Composable sort order, e.g. RecipeOrder.by(CUISINE).thenDescending(POPULARITY).then(COOKING_TIME).
+// Names compare case-insensitively like the BST, cuisines compare as written.
+class RecipeOrder implements Comparator<Recipe> {
+    final RecipeField[] fields;
+    final boolean[] descending;
+
+    private RecipeOrder(RecipeField[] fields, boolean[] descending) {
+        this.fields = fields;
+        this.descending = descending;
+    }
+
+    public static RecipeOrder by(RecipeField field) {
+        return new RecipeOrder(new RecipeField[] { field }, new boolean[] { false });
+    }
+
+    public static RecipeOrder byDescending(RecipeField field) {
+        return new RecipeOrder(new RecipeField[] { field }, new boolean[] { true });
+    }
+
+    public RecipeOrder then(RecipeField field) {
+        return append(field, false);
+    }
+
+    public RecipeOrder thenDescending(RecipeField field) {
+        return append(field, true);
+    }
+
+    private RecipeOrder append(RecipeField field, boolean desc) {
+        RecipeField[] moreFields = Arrays.copyOf(fields, fields.length + 1);
+        boolean[] moreDescending = Arrays.copyOf(descending, descending.length + 1);
+        moreFields[fields.length] = field;
+        moreDescending[fields.length] = desc;
+        return new RecipeOrder(moreFields, moreDescending);
+    }
+
+    // Getter-based comparison for one-off use; RecipeSorter never calls this while sorting
+    @Override
+    public int compare(Recipe a, Recipe b) {
+        for (int i = 0; i < fields.length; i++) {
+            int cmp;
+            if (fields[i] == RecipeField.NAME) {
+                cmp = a.getName().compareToIgnoreCase(b.getName());
+            } else if (fields[i] == RecipeField.CUISINE) {
+                cmp = a.getCuisine().compareTo(b.getCuisine());
+            } else {
+                cmp = Integer.compare(fields[i].intValue(a), fields[i].intValue(b));
+            }
+            if (cmp != 0) {
+                return descending[i] ? -cmp : cmp;
+            }
+        }
+        return 0;
+    }
+}
+
+// Stable O(n log n) multi-key sort. Each key is read once per recipe into an int column, then
+// - when all keys plus the original position fit in 63 bits, each recipe becomes one packed
+//   long and the longs are sorted (the position bits make equal keys keep their input order);
+// - otherwise an index permutation is merge sorted against the int columns, forking across
+//   the common pool above PARALLEL_THRESHOLD.
+class RecipeSorter {
+    static final int PARALLEL_THRESHOLD = 1 << 13;
+    private static final int INSERTION_THRESHOLD = 32;
+    // Key extraction is split into chunks of this many recipes for the parallel passes
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    public static void sort(List<Recipe> recipes, RecipeOrder order) {
+        int n = recipes.size();
+        if (n < 2) {
+            return;
+        }
+        long start = RecipeMetrics.start();
+        Recipe[] items = recipes.toArray(new Recipe[0]);
+        int[][] columns = new int[order.fields.length][];
+        int[] bits = new int[columns.length];
+        for (int k = 0; k < columns.length; k++) {
+            columns[k] = extract(items, order.fields[k], order.descending[k]);
+            bits[k] = normalize(columns[k]);
+        }
+
+        int indexBits = 32 - Integer.numberOfLeadingZeros(n - 1);
+        int keyBits = 0;
+        for (int b : bits) {
+            keyBits += b;
+        }
+        Recipe[] sorted = new Recipe[n];
+        int chunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (keyBits + indexBits <= 63) {
+            long[] packed = new long[n];
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, n); i < end; i++) {
+                    long key = 0;
+                    for (int k = 0; k < columns.length; k++) {
+                        key = (key << bits[k]) | columns[k][i];
+                    }
+                    packed[i] = (key << indexBits) | i;
+                }
+            });
+            Arrays.parallelSort(packed);
+            long indexMask = (1L << indexBits) - 1;
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, n); i < end; i++) {
+                    sorted[i] = items[(int) (packed[i] & indexMask)];
+                }
+            });
+        } else {
+            int[] permutation = new int[n];
+            for (int i = 0; i < n; i++) {
+                permutation[i] = i;
+            }
+            MergeSortTask task = new MergeSortTask(permutation, new int[n], 0, n, columns);
+            if (n >= PARALLEL_THRESHOLD) {
+                ForkJoinPool.commonPool().invoke(task);
+            } else {
+                task.compute();
+            }
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, n); i < end; i++) {
+                    sorted[i] = items[permutation[i]];
+                }
+            });
+        }
+
+        // The list may not be random access, so the write back stays a single ListIterator pass
+        ListIterator<Recipe> it = recipes.listIterator();
+        for (Recipe recipe : sorted) {
+            it.next();
+            it.set(recipe);
+        }
+        RecipeMetrics.SORT.stop(start);
+    }
+
+    private static int[] extract(Recipe[] items, RecipeField field, boolean descending) {
+        int[] column = new int[items.length];
+        int chunks = (items.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (field.isText()) {
+            // Each chunk numbers its distinct strings locally, then the small local dictionaries
+            // are merged and each local number is replaced by the global rank of its string
+            List<Map<String, Integer>> local = new ArrayList<>(Collections.nCopies(chunks, null));
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                Map<String, Integer> ids = new HashMap<>();
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, items.length); i < end; i++) {
+                    String value = field == RecipeField.NAME ? RecipeBST.foldKey(items[i].getName())
+                            : items[i].getCuisine();
+                    Integer id = ids.get(value);
+                    if (id == null) {
+                        id = ids.size();
+                        ids.put(value, id);
+                    }
+                    column[i] = id;
+                }
+                local.set(c, ids);
+            });
+            Set<String> distinctSet = new HashSet<>();
+            for (Map<String, Integer> ids : local) {
+                distinctSet.addAll(ids.keySet());
+            }
+            String[] distinct = distinctSet.toArray(new String[0]);
+            Arrays.parallelSort(distinct);
+            Map<String, Integer> ranks = new HashMap<>(distinct.length * 2);
+            for (int r = 0; r < distinct.length; r++) {
+                ranks.put(distinct[r], r);
+            }
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                Map<String, Integer> ids = local.get(c);
+                int[] toRank = new int[ids.size()];
+                for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                    toRank[entry.getValue()] = ranks.get(entry.getKey());
+                }
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, items.length); i < end; i++) {
+                    column[i] = descending ? ~toRank[column[i]] : toRank[column[i]];
+                }
+            });
+        } else {
+            IntStream.range(0, chunks).parallel().forEach(c -> {
+                for (int i = c * CHUNK_SIZE, end = Math.min(i + CHUNK_SIZE, items.length); i < end; i++) {
+                    // ~ reverses the order without overflow
+                    column[i] = descending ? ~field.intValue(items[i]) : field.intValue(items[i]);
+                }
+            });
+        }
+        return column;
+    }
+
+    // Shifts the column to start at zero and returns how many bits its values need, or 64 when
+    // the range does not fit in an int (which rules out packing)
+    private static int normalize(int[] column) {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int v : column) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        long range = (long) max - min;
+        if (range > Integer.MAX_VALUE) {
+            return 64;
+        }
+        for (int i = 0; i < column.length; i++) {
+            column[i] -= min;
+        }
+        return 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    private static final class MergeSortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] items;
+        private final int[] buffer;
+        private final int from, to;
+        private final int[][] columns;
+
+        MergeSortTask(int[] items, int[] buffer, int from, int to, int[][] columns) {
+            this.items = items;
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.columns = columns;
+        }
+
+        @Override
+        protected void compute() {
+            sort(from, to, to - from >= PARALLEL_THRESHOLD);
+        }
+
+        private void sort(int lo, int hi, boolean parallel) {
+            if (hi - lo <= INSERTION_THRESHOLD) {
+                insertionSort(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            if (parallel) {
+                invokeAll(new MergeSortTask(items, buffer, lo, mid, columns),
+                        new MergeSortTask(items, buffer, mid, hi, columns));
+            } else {
+                sort(lo, mid, false);
+                sort(mid, hi, false);
+            }
+            if (compare(items[mid - 1], items[mid]) <= 0) {
+                return; // halves already in order
+            }
+            System.arraycopy(items, lo, buffer, lo, hi - lo);
+            int i = lo, j = mid, k = lo;
+            while (i < mid && j < hi) {
+                // <= keeps equal keys in input order
+                items[k++] = compare(buffer[i], buffer[j]) <= 0 ? buffer[i++] : buffer[j++];
+            }
+            while (i < mid) {
+                items[k++] = buffer[i++];
+            }
+            while (j < hi) {
+                items[k++] = buffer[j++];
+            }
+        }
+
+        private void insertionSort(int lo, int hi) {
+            for (int i = lo + 1; i < hi; i++) {
+                int current = items[i];
+                int j = i - 1;
+                while (j >= lo && compare(items[j], current) > 0) {
+                    items[j + 1] = items[j];
+                    j--;
+                }
+                items[j + 1] = current;
+            }
+        }
+
+        private int compare(int a, int b) {
+            for (int[] column : columns) {
+                if (column[a] != column[b]) {
+                    return Integer.compare(column[a], column[b]);
+                }
+            }
+            return 0;
+        }
+    }
+}
+
+class RecipeSort {
+
+    // The sorts leave a null list alone and count it as an error; empty lists are already sorted
+    public static void bubbleSortByIngredients(List<Recipe> recipes) {
+        if (recipes == null) {
+            RecipeMetrics.SORT.error();
+            return;
+        }
+        RecipeSorter.sort(recipes, RecipeOrder.by(RecipeField.INGREDIENT_COUNT));
+    }
+
+    public static void insertionSortByPopularity(List<Recipe> recipes) {
+        if (recipes == null) {
+            RecipeMetrics.SORT.error();
+            return;
+        }
+        RecipeSorter.sort(recipes, RecipeOrder.byDescending(RecipeField.POPULARITY));
+    }
+
+    public static void quickSortByCuisine(List<Recipe> recipes, int low, int high) {
+        if (recipes == null) {
+            RecipeMetrics.SORT.error();
+            return;
+        }
+        if (low < high) {
+            RecipeSorter.sort(recipes.subList(low, high + 1), RecipeOrder.by(RecipeField.CUISINE));
+        }
+    }
+
+    public static void printRecipes(List<Recipe> recipes) {
+        if (recipes == null || recipes.isEmpty()) {
+            System.out.println("No recipes to display.");
+            return;
+        }
+        // Print table header for better clarity
+        System.out.printf("| %-20s | %-15s | %-30s | %-15s | %-8s | %-10s |\n", "Name", "Cuisine", "Ingredients",
+                "Cooking Time", "Servings", "Popularity");
+        System.out.println("--------------------------------------------------------------");
+        for (Recipe recipe : recipes) {
+            System.out.println(recipe);
+        }
+    }
+}
+
+class FavoritesManager {
+    // Insertion-ordered set: O(1) membership and no duplicates
+    private final LinkedHashSet<Recipe> favoriteRecipes = new LinkedHashSet<>();
+    private final RecipeBST recipeBST;
+
+    public FavoritesManager(RecipeBST recipeBST) {
+        if (recipeBST == null) {
+            throw new IllegalArgumentException("RecipeBST cannot be null");
+        }
+        this.recipeBST = recipeBST;
+    }
+
+    // Returns true when the recipe was added; prints what happened either way
+    public boolean addFavoriteRecipeByName(String recipeName) {
+        Recipe foundRecipe = recipeBST.search(recipeName);
+        if (foundRecipe == null) {
+            RecipeMetrics.FAVORITE.miss();
+            System.out.println("Recipe not found: " + recipeName);
+            return false;
+        }
+        if (!favoriteRecipes.add(foundRecipe)) {
+            System.out.println("Already in favorites: " + foundRecipe.getName());
+            return false;
+        }
+        System.out.println("Added to favorites: " + foundRecipe.getName());
+        return true;
+    }
+    public void displayFavoriteRecipes() {
+        if (favoriteRecipes.isEmpty()) {
+            System.out.println("No favorite recipes added.");
+        } else {
+            System.out.println("Favorite Recipes:");
+            for (Recipe recipe : favoriteRecipes) {
+                System.out.println("- " + recipe.getName() + " (" + recipe.getCuisine() + ")");
+            }
+        }
+    }
+}
+
+public class recipe_manager {
+    static final long LOCAL_USER = 0;
+
+    public static void createAndShowMainMenu(RecipeBST recipeBST) {
+        // Create the main frame
+        JFrame frame = new JFrame("Recipe App");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(400, 300);
+        frame.setLayout(new BorderLayout());
+
+        // Title label
+        JLabel titleLabel = new JLabel("Main Menu", JLabel.CENTER);
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 24));
+        frame.add(titleLabel, BorderLayout.NORTH);
+
+        // Button panel
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.setLayout(new GridLayout(2, 1, 10, 10));
+
+        JButton displayRecipesButton = new JButton("Display All Recipes");
+        displayRecipesButton.setFont(new Font("Arial", Font.PLAIN, 18));
+        displayRecipesButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                recipeBST.displayAllRecipes();
+            }
+        });
+
+        JButton exitButton = new JButton("Exit");
+        exitButton.setFont(new Font("Arial", Font.PLAIN, 18));
+        exitButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                System.exit(0);
+            }
+        });
+
+        buttonPanel.add(displayRecipesButton);
+        buttonPanel.add(exitButton);
+
+        frame.add(buttonPanel, BorderLayout.CENTER);
+        frame.setVisible(true);
+    }
+
+    // Value following a "--name" command line option, or the fallback when it is absent
+    static String optionValue(String[] args, String name, String fallback) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return fallback;
+    }
+
+    // The analytics and similarity indexes are the caller's, already listening to recipeBST
+    static void serve(RecipeBST recipeBST, DurableRecipeCatalog durable, UserSessionStore sessions,
+            CatalogAnalytics analytics, RecipeSimilarity similarity, int port) {
+        IngredientIndex ingredientIndex = new IngredientIndex(recipeBST);
+        CachedRecipeLookups lookups = new CachedRecipeLookups(recipeBST, ingredientIndex,
+                new PantryMatcher(recipeBST, ingredientIndex), 10_000);
+        try {
+            RecipeHttpServer server = new RecipeHttpServer(recipeBST, durable, lookups, sessions, port)
+                    .withAnalytics(analytics)
+                    .withSimilarity(similarity);
+            sessions.startEviction(30, TimeUnit.MINUTES);
+            server.start();
+            if (durable != null && !durable.restored()) {
+                // The indexes above registered on the empty tree and fill as the restore runs
+                durable.startRestore();
+                System.out.println("Serving lookups from the snapshot while it is restored, on http://localhost:"
+                        + server.port() + "/recipes");
+            } else {
+                System.out.println("Serving " + recipeBST.size() + " recipes on http://localhost:" + server.port()
+                        + "/recipes");
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                sessions.close();
+                saveCatalog(durable);
+                try {
+                    if (durable != null) {
+                        durable.close();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error occurred while closing the recipe log: " + e.getMessage());
+                }
+            }));
+        } catch (IOException e) {
+            System.out.println("Error occurred while starting the server: " + e.getMessage());
+        }
+    }
+
+    // Writes a fresh snapshot so bulk changes that bypassed the log are durable too
+    static boolean saveCatalog(DurableRecipeCatalog durable) {
+        if (durable == null) {
+            return false;
+        }
+        try {
+            durable.compact();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error occurred while saving recipes: " + e.getMessage());
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("\n----- RECIPE MANAGER APPLICATION ----");
+        RecipeBST recipeBST = new RecipeBST();
+        RecipeNameIndex nameIndex = new RecipeNameIndex(recipeBST);
+        RecipeSimilarity similarity = new RecipeSimilarity(recipeBST);
+        // The console serves a single local user; the store is what a multi-user service shares
+        UserSessionStore sessions = new UserSessionStore(recipeBST, 16, 20);
+        CircularQueue mealQueue = new CircularQueue(8, CircularQueue.FullPolicy.GROW);
+        MealScheduler mealSchedule = new MealScheduler();
+        RecipeMetrics.gauge("recipe_tree_nodes", "Recipes in the tree", recipeBST::size);
+        RecipeMetrics.gauge("recipe_tree_height", "Height of the recipe tree", recipeBST::height);
+        RecipeMetrics.gauge("recipe_meal_queue_size", "Recipes waiting in the meal-planning queue", mealQueue::size);
+        RecipeMetrics.gauge("recipe_meal_schedule_size", "Meals planned but not started", mealSchedule::size);
+        RecipeMetrics.gauge("recipe_user_sessions", "Live user sessions", sessions::size);
+        RecipeSort sort = new RecipeSort();
+        FavoritesManager fav = new FavoritesManager(recipeBST);
+        List<Recipe> recipeList = new ArrayList<>();
+
+        // Hardcoded 10 recipes initially
+        Recipe[] initialRecipes = {
+                new Recipe("Pasta", "Italian", Arrays.asList("Pasta", "Tomato", "Cheese"), 30, 4, 8),
+                new Recipe("Sushi", "Japanese", Arrays.asList("Rice", "Fish", "Seaweed"), 20, 2, 9),
+                new Recipe("Pizza", "Italian", Arrays.asList("Dough", "Cheese", "Tomato"), 40, 6, 7),
+                new Recipe("Tacos", "Mexican", Arrays.asList("Taco Shell", "Beef", "Cheese"), 15, 2, 6),
+                new Recipe("Burger", "American", Arrays.asList("Bun", "Beef Patty", "Lettuce"), 25, 4, 7),
+                new Recipe("Curry", "Indian", Arrays.asList("Chicken", "Spices", "Rice"), 45, 4, 9),
+                new Recipe("Salad", "Mediterranean", Arrays.asList("Lettuce", "Olives", "Feta"), 10, 2, 6),
+                new Recipe("Pancakes", "American", Arrays.asList("Flour", "Eggs", "Milk"), 20, 4, 8),
+                new Recipe("Ramen", "Japanese", Arrays.asList("Noodles", "Broth", "Egg"), 30, 2, 8),
+                new Recipe("Fried Rice", "Chinese", Arrays.asList("Rice", "Egg", "Vegetables"), 25, 4, 7)
+        };
+        // The saved catalog (snapshot plus write-ahead log) replaces the hardcoded recipes
+        Path snapshotPath = Paths.get(optionValue(args, "--snapshot", "recipes.snapshot"));
+        Path logPath = Paths.get(optionValue(args, "--wal", "recipes.wal"));
+        // Serving without an import starts answering while the snapshot is still being restored
+        boolean coldServe = optionValue(args, "--serve", null) != null && optionValue(args, "--import", null) == null;
+        DurableRecipeCatalog durable = null;
+        try {
+            durable = new DurableRecipeCatalog(recipeBST, snapshotPath, logPath, 5, true);
+            if (!coldServe) {
+                durable.awaitRestored();
+            }
+            if (durable.recovered()) {
+                System.out.println((durable.restored() ? "Recovered " + recipeBST.size() + " recipes from "
+                        : "Restoring recipes in the background from ") + snapshotPath);
+            }
+            durable.startCompaction(10, TimeUnit.MINUTES);
+        } catch (IOException e) {
+            System.out.println("Error occurred while recovering recipes, changes will not be saved: "
+                    + e.getMessage());
+            if (durable != null) {
+                try {
+                    durable.close();
+                } catch (IOException closing) {
+                    System.out.println("Error occurred while closing the recipe log: " + closing.getMessage());
+                }
+                durable = null;
+            }
+        }
+        if (durable == null || !durable.recovered()) {
+            // Add the hardcoded recipes to BST and List
+            recipeBST.bulkLoad(Arrays.asList(initialRecipes));
+            saveCatalog(durable);
+        }
+        recipeList.addAll(recipeBST.inOrder());
+
+        // Optional bulk import: java recipe_manager --import catalog.csv [--rejects rejected.tsv]
+        String importFile = optionValue(args, "--import", null);
+        if (importFile != null) {
+            Path source = Paths.get(importFile);
+            Path rejects = Paths.get(optionValue(args, "--rejects", importFile + ".rejects"));
+            try {
+                RecipeImporter importer = new RecipeImporter(recipeBST, rejects,
+                        Runtime.getRuntime().availableProcessors()).withProgress(true);
+                importer.importFile(source);
+                System.out.printf("Imported %,d recipes from %s (%,d duplicates, %,d rejected -> %s)%n",
+                        importer.imported(), source, importer.duplicates(), importer.rejected(), rejects);
+                for (RecipeError error : RecipeError.values()) {
+                    if (importer.rejected(error) > 0) {
+                        System.out.printf("  %,d rejected: %s%n", importer.rejected(error), error.message());
+                    }
+                }
+                recipeList = recipeBST.inOrder();
+                saveCatalog(durable);
+            } catch (IOException e) {
+                System.out.println("Error occurred while importing recipes: " + e.getMessage());
+            }
+        }
+
+        // Headless mode: java recipe_manager --serve 8080 answers the JSON API instead of the menu
+        String servePort = optionValue(args, "--serve", null);
+        if (servePort != null) {
+            int port;
+            try {
+                port = Integer.parseInt(servePort.trim());
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                System.out.println("Usage: java recipe_manager --serve <port 0-65535>; got \"" + servePort + "\"");
+                return;
+            }
+            serve(recipeBST, durable, sessions, new CatalogAnalytics(recipeBST), similarity, port);
+            return;
+        }
+
+        int choice = 0;
+        do {
+            System.out.println("\n\n--------------------------------------------------");
+            System.out.println("Menu:");
+            System.out.println("1. Add Recipe");
+            System.out.println("2. Display All Recipes");
+            System.out.println("3. Search Recipe by Name");
+            System.out.println("4. Add Recipe to Meal Planning Queue");
+            System.out.println("5. Display Meal Planning Queue");
+            System.out.println("6. Display Recently Viewed Recipes");
+            System.out.println("7. Sort Recipes");
+            System.out.println("8. Add Recipe to Favourites");
+            System.out.println("9. Display Favourites");
+            System.out.println("10. Delete a Recipe");
+            System.out.println("11. Exit");
+            System.out.println("--------------------------------------------------");
+
+            try {
+                System.out.print("Enter your choice: ");
+                choice = scanner.nextInt();
+                scanner.nextLine(); // Consume newline character
+
+                switch (choice) {
+                    case 1:
+                        // Add a recipe to BST and List
+                        try {
+                            System.out.print("Enter recipe name: ");
+                            String name = scanner.nextLine();
+                            System.out.print("Enter cuisine: ");
+                            String cuisine = scanner.nextLine();
+
+                            int cookingTime = 0;
+                            while (true) {
+                                try {
+                                    System.out.print("Enter cooking time (in minutes): ");
+                                    cookingTime = scanner.nextInt();
+                                    scanner.nextLine(); // Consume newline
+                                    break;
+                                } catch (InputMismatchException e) {
+                                    System.out.println("Invalid input! Please enter an integer for cooking time.");
+                                    scanner.nextLine(); // Clear invalid input
+                                }
+                            }
+
+                            int servings = 0;
+                            while (true) {
+                                try {
+                                    System.out.print("Enter servings: ");
+                                    servings = scanner.nextInt();
+                                    scanner.nextLine(); // Consume newline
+                                    break;
+                                } catch (InputMismatchException e) {
+                                    System.out.println("Invalid input! Please enter an integer for servings.");
+                                    scanner.nextLine(); // Clear invalid input
+                                }
+                            }
+
+                            int popularity = 0;
+                            while (true) {
+                                try {
+                                    System.out.print("Enter popularity (1-" + Recipe.MAX_POPULARITY + "): ");
+                                    popularity = scanner.nextInt();
+                                    scanner.nextLine(); // Consume newline
+                                    if (popularity < 1 || popularity > Recipe.MAX_POPULARITY) {
+                                        System.out.println("Popularity must be between 1 and " + Recipe.MAX_POPULARITY
+                                                + ".");
+                                    } else {
+                                        break;
+                                    }
+                                } catch (InputMismatchException e) {
+                                    System.out.println("Invalid input! Please enter an integer for popularity.");
+                                    scanner.nextLine(); // Clear invalid input
+                                }
+                            }
+
+                            System.out.print("Enter ingredients (comma separated): ");
+                            String ingredientsLine = scanner.nextLine();
+                            List<String> ingredients = Arrays.asList(ingredientsLine.split(","));
+                            RecipeError invalid = Recipe.validate(name, cuisine, ingredients, popularity);
+                            if (invalid != null) {
+                                System.out.println("Recipe not added: " + invalid.message());
+                                break;
+                            }
+                            Recipe newRecipe = new Recipe(name, cuisine, ingredients, cookingTime, servings,
+                                    popularity);
+                            boolean added = durable != null ? durable.insert(newRecipe) : recipeBST.insert(newRecipe);
+                            if (added) {
+                                recipeList.add(newRecipe);
+                                System.out.println("Recipe Added successfully.");
+                            } else {
+                                System.out.println("A recipe named " + name + " already exists.");
+                            }
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while adding the recipe: " + e.getMessage());
+                        }
+                        break;
+
+                    case 2:
+                        try {
+                            System.out.println("All Recipes:");
+                            System.out.println(String.format("| %-20s | %-15s | %-30s | %-15s | %-8s | %-10s |", "Name",
+                                    "Cuisine", "Ingredients", "Cooking Time", "Servings", "Popularity"));
+                            System.out.println(
+                                    "----------------------------------------------------------------------------------------------------------------------------");
+                            recipeBST.displayAllRecipes();
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while displaying recipes: " + e.getMessage());
+                        }
+                        break;
+
+                    case 3:
+                        try {
+                            System.out.print("Enter the recipe name to search: ");
+                            String searchName = scanner.nextLine();
+                            Recipe foundRecipe = recipeBST.search(searchName);
+                            if (foundRecipe != null) {
+                                System.out.println("Found: " + foundRecipe);
+                                sessions.viewed(LOCAL_USER, foundRecipe);
+                                List<RecipeSimilarity.Match> alike = similarity.similar(foundRecipe, 3);
+                                if (!alike.isEmpty()) {
+                                    System.out.println("More like this:");
+                                    for (RecipeSimilarity.Match match : alike) {
+                                        System.out.println("  " + match);
+                                    }
+                                }
+                            } else {
+                                System.out.println("Recipe not found.");
+                                List<Recipe> suggestions = nameIndex.suggest(searchName, 5);
+                                if (!suggestions.isEmpty()) {
+                                    System.out.println("Did you mean:");
+                                    for (Recipe suggestion : suggestions) {
+                                        System.out.println("  " + suggestion.getName());
+                                    }
+                                }
+                            }
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while searching for the recipe: " + e.getMessage());
+                        }
+                        break;
+
+                    case 4:
+                        try {
+                            System.out.print("Enter the recipe name to add to meal planning queue: ");
+                            String queueName = scanner.nextLine();
                             Recipe recipeForQueue = recipeBST.search(queueName);
                             if (recipeForQueue != null) {
-                                mealQueue.enqueue(recipeForQueue);
-                                System.out.println("Added to meal planning queue.");
+                                if (mealQueue.enqueue(recipeForQueue)) {
+                                    System.out.println("Added to meal planning queue.");
+                                }
+                                System.out.print("Serve in how many minutes? (Enter to skip): ");
+                                String serveIn = scanner.nextLine().trim();
+                                if (!serveIn.isEmpty()) {
+                                    long serveAt = mealSchedule.clock().millis()
+                                            + Long.parseLong(serveIn) * TimeUnit.MINUTES.toMillis(1);
+                                    mealSchedule.schedule(recipeForQueue, serveAt);
+                                    long startIn = serveAt - mealSchedule.clock().millis()
+                                            - TimeUnit.MINUTES.toMillis(recipeForQueue.getCookingTime());
+                                    System.out.println(startIn <= 0 ? "Start cooking now."
+                                            : "Start cooking in " + TimeUnit.MILLISECONDS.toMinutes(startIn)
+                                                    + " minutes.");
+                                }
                             } else {
                                 System.out.println("Recipe not found.");
                             }
@@ -703,99 +9268,1594 @@ public class recipe_manager {
                         }
                         break;
 
-                    case 5:
-                        try {
-                            mealQueue.display();
-                        } catch (Exception e) {
-                            System.out.println(
-                                    "Error occurred while displaying the meal planning queue: " + e.getMessage());
-                        }
-                        break;
+                    case 5:
+                        try {
+                            mealQueue.display();
+                            mealSchedule.display();
+                        } catch (Exception e) {
+                            System.out.println(
+                                    "Error occurred while displaying the meal planning queue: " + e.getMessage());
+                        }
+                        break;
+
+                    case 6:
+                        try {
+                            List<Recipe> recent = sessions.recentlyViewed(LOCAL_USER);
+                            if (recent.isEmpty()) {
+                                System.out.println("No recently viewed recipes.");
+                            } else {
+                                System.out.println("Recently Viewed Recipes (most recent first):");
+                                for (Recipe recipe : recent) {
+                                    System.out.println(recipe);
+                                }
+                            }
+                        } catch (Exception e) {
+                            System.out.println(
+                                    "Error occurred while displaying recently viewed recipes: " + e.getMessage());
+                        }
+                        break;
+
+                    case 7:
+                        try {
+                            System.out.println("Sort Recipes:");
+                            System.out.println("1. Sort by No. of Ingredients");
+                            System.out.println("2. Sort by Popularity");
+                            System.out.println("3. Sort by Cuisine alphabetically");
+                            System.out.print("Enter your choice: ");
+                            int sortChoice = scanner.nextInt();
+                            scanner.nextLine(); // Consume newline
+
+                            switch (sortChoice) {
+                                case 1:
+                                    RecipeSort.bubbleSortByIngredients(recipeList);
+                                    RecipeSort.printRecipes(recipeList);
+                                    break;
+                                case 2:
+                                    RecipeSort.insertionSortByPopularity(recipeList);
+                                    RecipeSort.printRecipes(recipeList);
+                                    break;
+                                case 3:
+                                    RecipeSort.quickSortByCuisine(recipeList, 0, recipeList.size() - 1);
+                                    RecipeSort.printRecipes(recipeList);
+                                    break;
+                                default:
+                                    System.out.println("Invalid choice.");
+                                    break;
+                            }
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while sorting recipes: " + e.getMessage());
+                        }
+                        break;
+
+                    case 8:
+                        try {
+                            System.out.print("Enter the recipe name to add to favorites: ");
+                            String favName = scanner.nextLine();
+                            fav.addFavoriteRecipeByName(favName);
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while adding recipe to favorites: " + e.getMessage());
+                        }
+                        break;
+
+                    case 9:
+                        try {
+                            fav.displayFavoriteRecipes();
+                        } catch (Exception e) {
+                            System.out.println("Error occurred while displaying favorite recipes: " + e.getMessage());
+                        }
+                        break;
+
+                    case 10:
+                        System.out.println("Enter Recipe Name to delete");
+                        String r = scanner.nextLine();
+                        // recipeBST.search(r);
+                        try {
+                            boolean removed = durable != null ? durable.delete(r) : recipeBST.delete(r);
+                            if (!removed) {
+                                System.out.println("Recipe not found.");
+                            }
+                        } catch (IOException e) {
+                            System.out.println("Error occurred while deleting the recipe: " + e.getMessage());
+                        }
+                        // recipeList.remove(r);
+                        break;
+
+                    case 11:
+                        if (saveCatalog(durable)) {
+                            System.out.println("Saved " + recipeBST.size() + " recipes to " + snapshotPath);
+                        }
+                        try {
+                            if (durable != null) {
+                                durable.close();
+                            }
+                        } catch (IOException e) {
+                            System.out.println("Error occurred while closing the recipe log: " + e.getMessage());
+                        }
+                        System.out.println("Exiting the application...");
+                        break;
+
+                    default:
+                        System.out.println("Invalid choice! Please try again.");
+                        break;
+                }
+
+            } catch (InputMismatchException e) {
+                System.out.println("Invalid input. Please enter a number.");
+                scanner.nextLine(); // Clear the invalid input
+            }
+
+        } while (choice != 11);
+        scanner.close();
+
+    }
+}
+
+
+// Standalone timing harness, run with: java -cp . RecipeBenchmark <scenario> [size]
+class RecipeBenchmark {
+
+    public static void main(String[] args) {
+        String scenario = args.length > 0 ? args[0] : "bst-sorted";
+        if (scenario.equals("suite")) {
+            RecipeBenchmarkSuite.run(args);
+            return;
+        }
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        switch (scenario) {
+            case "bst-sorted":
+                sortedInsertAndSearch(size);
+                break;
+            case "pantry":
+                pantryQueries(size);
+                break;
+            case "sort":
+                multiKeySort(size);
+                break;
+            case "import":
+                bulkImport(size);
+                break;
+            case "snapshot":
+                snapshotColdStart(size);
+                break;
+            case "wal":
+                walThroughput(size);
+                break;
+            case "memory":
+                memoryPerRecipe(size);
+                break;
+            case "autocomplete":
+                autocomplete(size);
+                break;
+            case "ordered":
+                orderedQueries(size);
+                break;
+            case "queue":
+                queueThroughput(size);
+                break;
+            case "sessions":
+                sessionStore(size);
+                break;
+            case "cache":
+                cachedLookups(size);
+                break;
+            case "metrics":
+                instrumentationOverhead(size);
+                break;
+            case "misses":
+                missHeavyLookups(size);
+                break;
+            case "stream":
+                streamAnalytics(size);
+                break;
+            case "analytics":
+                catalogAnalytics(size);
+                break;
+            case "scheduler":
+                mealScheduling(size);
+                break;
+            case "bulk-load":
+                bulkLoad(size);
+                break;
+            case "snapshot-reads":
+                snapshotReads(size);
+                break;
+            case "similar":
+                similarRecipes(size);
+                break;
+            case "off-heap":
+                offHeapStore(size);
+                break;
+            case "http":
+                // size is the number of requests kept in flight
+                httpLoad(size, args);
+                break;
+            default:
+                System.out.println("Unknown scenario: " + scenario);
+                break;
+        }
+    }
+
+    // Zero-padded names arrive in sorted order, the worst case for an unbalanced BST
+    static Recipe[] sortedCatalog(int size) {
+        Recipe[] recipes = new Recipe[size];
+        List<String> ingredients = Arrays.asList("Rice", "Cheese", "Tomato");
+        for (int i = 0; i < size; i++) {
+            recipes[i] = new Recipe(String.format("Recipe %08d", i), "Cuisine " + (i % 20), ingredients,
+                    10 + i % 50, 1 + i % 6, 1 + i % 10);
+        }
+        return recipes;
+    }
+
+    // Recipes with 5-12 ingredients drawn from a vocabulary where low ids are far more common
+    static Recipe[] randomCatalog(int size, int vocabulary, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[vocabulary];
+        for (int i = 0; i < vocabulary; i++) {
+            words[i] = "Ingredient " + i;
+        }
+        Recipe[] recipes = new Recipe[size];
+        for (int i = 0; i < size; i++) {
+            int count = 5 + random.nextInt(8);
+            List<String> ingredients = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                double u = random.nextDouble();
+                ingredients.add(words[(int) (u * u * vocabulary)]);
+            }
+            recipes[i] = new Recipe("Recipe " + Integer.toHexString(random.nextInt()) + "-" + i, "Cuisine " + (i % 20),
+                    ingredients, 10 + random.nextInt(110), 1 + random.nextInt(8), 1 + random.nextInt(10));
+        }
+        return recipes;
+    }
+
+    static void pantryQueries(int size) {
+        RecipeBST bst = new RecipeBST();
+        IngredientIndex index = new IngredientIndex(bst);
+        PantryMatcher matcher = new PantryMatcher(bst, index);
+        for (Recipe recipe : randomCatalog(size, 2000, 42)) {
+            bst.insert(recipe);
+        }
+        Random random = new Random(7);
+        int queries = 20_000;
+        long[] latencies = new long[queries];
+        for (int q = -2_000; q < queries; q++) {
+            List<String> pantry = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                pantry.add("Ingredient " + random.nextInt(2000));
+            }
+            long start = System.nanoTime();
+            List<Recipe> top = matcher.topMatches(pantry, 10);
+            long elapsed = System.nanoTime() - start;
+            if (q >= 0) {
+                latencies[q] = elapsed;
+            } else if (top.isEmpty()) {
+                System.out.println("warmup query returned nothing");
+            }
+        }
+        printLatencies("pantry top-10 over " + bst.size() + " recipes", latencies);
+    }
+
+    // Dish-like names so prefixes and typos behave roughly as they would on a real catalog
+    static void autocomplete(int size) {
+        String[] styles = { "Spicy", "Crispy", "Creamy", "Smoky", "Roasted", "Grilled", "Braised", "Steamed",
+                "Sticky", "Zesty", "Garlic", "Honey", "Lemon", "Herb", "Chili", "Ginger" };
+        String[] mains = { "Chicken", "Tofu", "Salmon", "Beef", "Mushroom", "Lentil", "Shrimp", "Pork",
+                "Eggplant", "Chickpea", "Paneer", "Duck", "Lamb", "Cod", "Potato", "Cauliflower" };
+        String[] dishes = { "Curry", "Tacos", "Noodles", "Stew", "Salad", "Risotto", "Pie", "Bowl", "Soup",
+                "Skewers", "Burger", "Stir Fry", "Pasta", "Dumplings", "Wraps", "Bake" };
+        Random random = new Random(5);
+        List<Recipe> catalog = new ArrayList<>(size);
+        List<String> ingredients = Arrays.asList("Rice", "Cheese", "Tomato");
+        for (int i = 0; i < size; i++) {
+            String name = styles[random.nextInt(styles.length)] + " " + mains[random.nextInt(mains.length)] + " "
+                    + dishes[random.nextInt(dishes.length)] + " " + Integer.toString(i, 36);
+            catalog.add(new Recipe(name, "Cuisine " + (i % 20), ingredients, 10 + i % 50, 1 + i % 6,
+                    1 + random.nextInt(10)));
+        }
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(catalog);
+        long heapBefore = usedHeapAfterGc();
+        long start = System.nanoTime();
+        RecipeNameIndex index = new RecipeNameIndex(bst);
+        System.out.printf("indexed %,d names in %.1f ms%n", index.size(), (System.nanoTime() - start) / 1e6);
+        System.out.printf("index heap: ~%d bytes per name%n", (usedHeapAfterGc() - heapBefore) / Math.max(1, size));
+
+        int queries = 20_000;
+        long[] prefixLatencies = new long[queries];
+        long[] fuzzyLatencies = new long[queries];
+        for (int q = -2_000; q < queries; q++) {
+            String name = catalog.get(random.nextInt(size)).getName();
+            // Every keystroke of a name, then the full name with one or two typos
+            String prefix = name.substring(0, 1 + random.nextInt(name.length()));
+            StringBuilder typo = new StringBuilder(name);
+            for (int e = 1 + random.nextInt(2); e > 0; e--) {
+                int at = random.nextInt(typo.length());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        typo.setCharAt(at, (char) ('a' + random.nextInt(26)));
+                        break;
+                    case 1:
+                        typo.deleteCharAt(at);
+                        break;
+                    default:
+                        typo.insert(at, (char) ('a' + random.nextInt(26)));
+                        break;
+                }
+            }
+            long t0 = System.nanoTime();
+            List<Recipe> completions = index.complete(prefix, 10);
+            long t1 = System.nanoTime();
+            List<Recipe> matches = index.fuzzy(typo.toString(), RecipeNameIndex.MAX_EDITS, 10);
+            long t2 = System.nanoTime();
+            if (q >= 0) {
+                prefixLatencies[q] = t1 - t0;
+                fuzzyLatencies[q] = t2 - t1;
+            } else if (completions.isEmpty() || matches.isEmpty()) {
+                System.out.println("warmup query returned nothing for " + prefix + " / " + typo);
+            }
+        }
+        printLatencies("prefix top-10 over " + size + " names", prefixLatencies);
+        printLatencies("fuzzy (2 edits) top-10 over " + size + " names", fuzzyLatencies);
+    }
+
+    static void orderedQueries(int size) {
+        RecipeBST bst = new RecipeBST();
+        List<Recipe> catalog = Arrays.asList(randomCatalog(size, 500, 3));
+        bst.insertAll(catalog);
+        RecipeFieldIndex time = new RecipeFieldIndex(bst, RecipeField.COOKING_TIME);
+        RecipeFieldIndex popularity = new RecipeFieldIndex(bst, RecipeField.POPULARITY);
+        Random random = new Random(9);
+        int queries = 5_000;
+        long[] rangeLatencies = new long[queries];
+        long[] rankLatencies = new long[queries];
+        long[] quickLatencies = new long[queries];
+        for (int q = -500; q < queries; q++) {
+            String from = "Recipe " + Integer.toHexString(random.nextInt());
+            long t0 = System.nanoTime();
+            List<Recipe> range = bst.range(from, from + "~", 50);
+            long t1 = System.nanoTime();
+            Recipe middle = bst.select(bst.rank(from));
+            long t2 = System.nanoTime();
+            // Under 20 minutes, most popular first
+            List<Recipe> quick = popularity.ordered(time.between(0, 19), true, 20);
+            long t3 = System.nanoTime();
+            if (q >= 0) {
+                rangeLatencies[q] = t1 - t0;
+                rankLatencies[q] = t2 - t1;
+                quickLatencies[q] = t3 - t2;
+            } else if (range.size() > 50 || middle == null && bst.rank(from) < size || quick.size() != 20) {
+                System.out.println("unexpected result during warmup");
+            }
+        }
+        printLatencies("range scan of 50 names", rangeLatencies);
+        printLatencies("rank + select", rankLatencies);
+        printLatencies("under 20 minutes, top 20 by popularity (index)", quickLatencies);
+
+        long start = System.nanoTime();
+        List<Recipe> copy = new ArrayList<>();
+        for (Recipe recipe : bst.inOrder()) {
+            if (recipe.getCookingTime() < 20) {
+                copy.add(recipe);
+            }
+        }
+        RecipeSorter.sort(copy, RecipeOrder.byDescending(RecipeField.POPULARITY));
+        System.out.printf("under 20 minutes, top 20 by popularity (copy and sort): %.3f ms%n",
+                (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        int pages = 0;
+        String cursor = null;
+        for (List<Recipe> page = bst.pageAfter(null, 1000); !page.isEmpty(); page = bst.pageAfter(cursor, 1000)) {
+            cursor = page.get(page.size() - 1).getName();
+            pages++;
+        }
+        System.out.printf("walked %d pages of 1000 with a cursor in %.1f ms%n", pages, (System.nanoTime() - start) / 1e6);
+    }
+
+    // Producers hand meal plans to two scheduler threads that drain in batches of up to 64
+    static void queueThroughput(int size) {
+        Recipe[] recipes = sortedCatalog(1024);
+        for (int producers : new int[] { 1, 4, 16 }) {
+            for (int round = 0; round < 3; round++) {
+                CircularQueue ring = new CircularQueue(1024, CircularQueue.FullPolicy.BLOCK);
+                double ringRate = runQueue(size, producers, recipes, ring::enqueue,
+                        batch -> ring.drainTo(batch::add, 64));
+                ArrayBlockingQueue<Recipe> blocking = new ArrayBlockingQueue<>(1024);
+                double blockingRate = runQueue(size, producers, recipes, recipe -> {
+                    try {
+                        blocking.put(recipe);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, batch -> blocking.drainTo(batch, 64));
+                System.out.printf("%2d producers: ring buffer %,.0f ops/s, ArrayBlockingQueue %,.0f ops/s%n",
+                        producers, ringRate, blockingRate);
+            }
+        }
+    }
+
+    private static double runQueue(int total, int producers, Recipe[] recipes, Consumer<Recipe> enqueue,
+            ToLongFunction<List<Recipe>> drain) {
+        int perProducer = total / producers;
+        AtomicLong consumed = new AtomicLong();
+        long expected = (long) perProducer * producers;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(() -> {
+                List<Recipe> batch = new ArrayList<>(64);
+                int idle = 0;
+                while (consumed.get() < expected) {
+                    long drained = drain.applyAsLong(batch);
+                    batch.clear();
+                    if (drained == 0) {
+                        if (++idle > 64) {
+                            Thread.yield();
+                        }
+                    } else {
+                        idle = 0;
+                        consumed.addAndGet(drained);
+                    }
+                }
+            }));
+        }
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    enqueue.accept(recipes[i & (recipes.length - 1)]);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        return expected / ((System.nanoTime() - start) / 1e9);
+    }
+
+    // size users, each viewing eight recipes and saving two favorites
+    static void sessionStore(int size) {
+        Recipe[] recipes = sortedCatalog(10_000);
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(Arrays.asList(recipes));
+        UserSessionStore store = new UserSessionStore(bst, 64, 20);
+        long heapBefore = usedHeapAfterGc();
+        long start = System.nanoTime();
+        Random random = new Random(13);
+        for (long user = 0; user < size; user++) {
+            for (int v = 0; v < 8; v++) {
+                store.viewed(user, recipes[random.nextInt(recipes.length)]);
+            }
+            store.addFavorite(user, recipes[random.nextInt(recipes.length)]);
+            store.addFavorite(user, recipes[random.nextInt(recipes.length)]);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("created %,d sessions, %,.0f updates/s single-threaded%n", store.size(), size * 10 / seconds);
+        System.out.printf("~%d bytes per session%n", (usedHeapAfterGc() - heapBefore) / Math.max(1, size));
+
+        int threads = 8;
+        int perThread = 1_000_000;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers.add(new Thread(() -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < perThread; i++) {
+                    long user = r.nextInt(size);
+                    if ((i & 3) == 0) {
+                        store.recentlyViewed(user);
+                    } else {
+                        store.viewed(user, recipes[r.nextInt(recipes.length)]);
+                    }
+                }
+            }));
+        }
+        start = System.nanoTime();
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.printf("%d threads: %,.0f ops/s%n", threads,
+                threads * (double) perThread / ((System.nanoTime() - start) / 1e9));
+
+        start = System.nanoTime();
+        int evicted = store.evictIdle(0, TimeUnit.NANOSECONDS);
+        System.out.printf("evicted %,d idle sessions in %.1f ms%n", evicted, (System.nanoTime() - start) / 1e6);
+    }
+
+    // Zipf-skewed name lookups (s = 1.1) with 10% misses and a full scan every 200k lookups,
+    // through a 2,000-entry cache; an LRU of the same size replays the trace for comparison
+    static void cachedLookups(int size) {
+        Recipe[] recipes = randomCatalog(size, 500, 17);
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(Arrays.asList(recipes));
+        IngredientIndex index = new IngredientIndex(bst);
+        CachedRecipeLookups lookups = new CachedRecipeLookups(bst, index, new PantryMatcher(bst, index), 2_000);
+        double[] cumulative = new double[size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            total += 1 / Math.pow(i + 1, 1.1);
+            cumulative[i] = total;
+        }
+        Random random = new Random(21);
+        int lookupsCount = 2_000_000;
+        String[] trace = new String[lookupsCount];
+        int scanned = 0;
+        for (int i = 0; i < lookupsCount; i++) {
+            if (i % 200_000 < 5_000) {
+                trace[i] = recipes[scanned++ % size].getName().toUpperCase(); // a scan of cold names
+            } else if (random.nextInt(10) == 0) {
+                trace[i] = "Missing recipe " + random.nextInt(1_000);
+            } else {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                trace[i] = recipes[rank < 0 ? Math.min(size - 1, -rank - 1) : rank].getName();
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (String name : trace) {
+                found += bst.search(name) != null ? 1 : 0;
+            }
+            double direct = (System.nanoTime() - start) / (double) lookupsCount;
+            start = System.nanoTime();
+            for (String name : trace) {
+                found -= lookups.search(name) != null ? 1 : 0;
+            }
+            double cached = (System.nanoTime() - start) / (double) lookupsCount;
+            System.out.printf("direct %.0f ns/lookup, cached %.0f ns/lookup%s%n", direct, cached,
+                    found == 0 ? "" : " (answers differ!)");
+        }
+        System.out.println("W-TinyLFU: " + lookups.nameCache());
+
+        // Just the head of the distribution: every lookup is one of the 300 most popular names
+        String[] hot = new String[lookupsCount];
+        for (int i = 0; i < lookupsCount; i++) {
+            hot[i] = recipes[random.nextInt(300)].getName();
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (String name : hot) {
+                bst.search(name);
+            }
+            double direct = (System.nanoTime() - start) / (double) lookupsCount;
+            start = System.nanoTime();
+            for (String name : hot) {
+                lookups.search(name);
+            }
+            double cached = (System.nanoTime() - start) / (double) lookupsCount;
+            System.out.printf("hot set: direct %.0f ns/lookup, cached %.0f ns/lookup%n", direct, cached);
+        }
+
+        // Popular pantry searches repeat too: 50 distinct pantries, asked for over and over
+        List<List<String>> pantries = new ArrayList<>();
+        for (int p = 0; p < 50; p++) {
+            List<String> pantry = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                pantry.add("Ingredient " + random.nextInt(500));
+            }
+            pantries.add(pantry);
+        }
+        long[] pantryLatencies = new long[20_000];
+        for (int q = 0; q < pantryLatencies.length; q++) {
+            long start = System.nanoTime();
+            lookups.topMatches(pantries.get(random.nextInt(pantries.size())), 10);
+            pantryLatencies[q] = System.nanoTime() - start;
+        }
+        printLatencies("cached pantry top-10", pantryLatencies);
+        System.out.println("query cache: " + lookups.queryCache());
+
+        Map<String, Boolean> lru = new LinkedHashMap<String, Boolean>(4_096, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > 2_000;
+            }
+        };
+        long lruHits = 0;
+        for (String name : trace) {
+            String key = RecipeBST.foldKey(name);
+            if (lru.get(key) != null) {
+                lruHits++;
+            } else {
+                lru.put(key, Boolean.TRUE);
+            }
+        }
+        System.out.printf("LRU of the same size: hit rate %.1f%%%n", 100.0 * lruHits / lookupsCount);
+    }
+
+    // Keeps `concurrency` requests in flight against the JSON API for --seconds (default 10):
+    // 80% single-recipe reads, 10% ingredient searches, 10% cursor pages. Without --url it serves
+    // a generated 100k-recipe catalog from this process on an ephemeral port.
+    static void httpLoad(int concurrency, String[] args) {
+        int seconds = Integer.parseInt(recipe_manager.optionValue(args, "--seconds", "10"));
+        String base = recipe_manager.optionValue(args, "--url", null);
+        RecipeHttpServer server = null;
+        try {
+            if (base == null) {
+                RecipeBST bst = new RecipeBST();
+                bst.insertAll(Arrays.asList(randomCatalog(100_000, 500, 23)));
+                IngredientIndex index = new IngredientIndex(bst);
+                CachedRecipeLookups lookups = new CachedRecipeLookups(bst, index, new PantryMatcher(bst, index),
+                        10_000);
+                server = new RecipeHttpServer(bst, null, lookups, new UserSessionStore(bst, 64, 20), 0);
+                server.start();
+                base = "http://localhost:" + server.port();
+            }
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+                    .executor(Executors.newFixedThreadPool(4)).build();
+            // Names to ask for come from the server itself, so --url works against any catalog
+            List<String> names = new ArrayList<>();
+            String body = client.send(HttpRequest.newBuilder(URI.create(base + "/recipes?limit=1000")).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            for (int at = body.indexOf("{\"name\":\""); at >= 0; at = body.indexOf("{\"name\":\"", at + 1)) {
+                names.add(body.substring(at + 9, body.indexOf('"', at + 9)));
+            }
+            if (names.isEmpty()) {
+                System.out.println("The server at " + base + " has no recipes");
+                return;
+            }
+
+            Random random = new Random(29);
+            Semaphore inFlight = new Semaphore(concurrency);
+            long[] latencies = new long[8_000_000];
+            AtomicLong recorded = new AtomicLong();
+            LongAdder errors = new LongAdder();
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < deadline) {
+                inFlight.acquire();
+                String name = URLEncoder.encode(names.get(random.nextInt(names.size())), StandardCharsets.UTF_8)
+                        .replace("+", "%20");
+                int kind = random.nextInt(10);
+                String path = kind == 0 ? "/search?all=Ingredient%20" + random.nextInt(50) + "&limit=20"
+                        : kind == 1 ? "/recipes?after=" + name + "&limit=20" : "/recipes/" + name;
+                long sent = System.nanoTime();
+                client.sendAsync(HttpRequest.newBuilder(URI.create(base + path)).build(),
+                        HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+                            long elapsed = System.nanoTime() - sent;
+                            if (failure != null || response.statusCode() != 200) {
+                                errors.increment();
+                            } else {
+                                long slot = recorded.getAndIncrement();
+                                if (slot < latencies.length) {
+                                    latencies[(int) slot] = elapsed;
+                                }
+                            }
+                            inFlight.release();
+                        });
+            }
+            inFlight.acquire(concurrency);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            int completed = (int) Math.min(recorded.get(), latencies.length);
+            System.out.printf("%d in flight for %.1f s: %,.0f requests/s, %,d errors%n", concurrency, elapsed,
+                    recorded.get() / elapsed, errors.sum());
+            if (completed > 0) {
+                printLatencies("request latency", Arrays.copyOf(latencies, completed));
+            }
+        } catch (IOException e) {
+            System.out.println("Load test failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        System.exit(0); // the client's selector thread is not a daemon
+    }
+
+    // Run once plain and once with -Drecipes.metrics=true to see what the instrumentation costs
+    static void instrumentationOverhead(int size) {
+        Recipe[] recipes = randomCatalog(size, 1_000, 42);
+        CircularQueue queue = new CircularQueue(1_024);
+        for (int round = 1; round <= 3; round++) {
+            RecipeBST bst = new RecipeBST();
+            long start = System.nanoTime();
+            for (Recipe recipe : recipes) {
+                bst.insert(recipe);
+            }
+            long insertNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int found = 0;
+            for (Recipe recipe : recipes) {
+                if (bst.search(recipe.getName()) != null) {
+                    found++;
+                }
+            }
+            long searchNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Recipe recipe : recipes) {
+                queue.enqueue(recipe);
+                queue.dequeue();
+            }
+            long queueNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d (metrics %s): insert %.1f ns/op, search %.1f ns/op (%d found), "
+                    + "enqueue+dequeue %.1f ns/op%n", round, RecipeMetrics.ENABLED ? "on" : "off",
+                    (double) insertNanos / size, (double) searchNanos / size, found, (double) queueNanos / size);
+        }
+        if (RecipeMetrics.ENABLED) {
+            System.out.printf("recorded: insert p50 %d ns p99 %d ns, search p50 %d ns p99 %d ns, dequeue p99 %d ns%n",
+                    RecipeMetrics.INSERT.percentile(0.5), RecipeMetrics.INSERT.percentile(0.99),
+                    RecipeMetrics.SEARCH.percentile(0.5), RecipeMetrics.SEARCH.percentile(0.99),
+                    RecipeMetrics.DEQUEUE.percentile(0.99));
+        }
+    }
+
+    // Every lookup misses: the result-typed APIs should allocate nothing per call. The
+    // throw-and-catch row is what each miss used to cost, minus the stderr write.
+    static void missHeavyLookups(int size) {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("This JVM does not report allocated bytes per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(Arrays.asList(randomCatalog(size, 1_000, 42)));
+        String[] misses = new String[Math.min(size, 100_000)];
+        for (int i = 0; i < misses.length; i++) {
+            misses[i] = "Missing Recipe " + i;
+        }
+        Stack empty = new Stack();
+        CircularQueue full = new CircularQueue(2);
+        full.enqueue(bst.select(0));
+        full.enqueue(bst.select(1));
+        for (int round = 1; round <= 3; round++) {
+            System.out.printf("round %d (n=%,d):%n", round, bst.size());
+            missRow(threads, "search miss", misses, name -> bst.search(name) == null ? 1 : 0);
+            missRow(threads, "lookup miss", misses, name -> bst.lookup(name).isPresent() ? 0 : 1);
+            missRow(threads, "delete miss", misses, name -> bst.delete(name) ? 0 : 1);
+            missRow(threads, "pop empty stack", misses, name -> empty.pop() == null ? 1 : 0);
+            missRow(threads, "enqueue full queue", misses, name -> full.enqueue(bst.select(0)) ? 0 : 1);
+            missRow(threads, "throw+catch per miss", misses, name -> {
+                try {
+                    if (bst.search(name) == null) {
+                        throw new NoSuchElementException("Recipe not found");
+                    }
+                    return 0;
+                } catch (NoSuchElementException e) {
+                    return e.getMessage() != null ? 1 : 0;
+                }
+            });
+        }
+    }
 
-                    case 6:
-                        try {
-                            recentRecipes.display();
-                        } catch (Exception e) {
-                            System.out.println(
-                                    "Error occurred while displaying recently viewed recipes: " + e.getMessage());
+    private static void missRow(com.sun.management.ThreadMXBean threads, String label, String[] names,
+            ToLongFunction<String> op) {
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long missed = 0;
+        for (String name : names) {
+            missed += op.applyAsLong(name);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+        System.out.printf("  %-22s %8.1f ns/op %8.1f B/op (%,d misses)%n", label, (double) elapsed / names.length,
+                (double) bytes / names.length, missed);
+    }
+
+    // Average cooking time per cuisine four ways. Only the parallel stream can use more than one
+    // core; the iterator and the sequential stream never materialize the catalog.
+    static void streamAnalytics(int size) {
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(Arrays.asList(randomCatalog(size, 1_000, 42)));
+        System.out.printf("n=%,d, %d cores%n", bst.size(), Runtime.getRuntime().availableProcessors());
+        for (int round = 1; round <= 3; round++) {
+            timeAnalytics("inOrder().stream()", () -> averageByCuisine(bst.inOrder().stream()));
+            timeAnalytics("iterator", () -> {
+                Map<String, long[]> totals = new HashMap<>();
+                for (Recipe recipe : bst) {
+                    long[] total = totals.computeIfAbsent(recipe.getCuisine(), c -> new long[2]);
+                    total[0] += recipe.getCookingTime();
+                    total[1]++;
+                }
+                return totals.size();
+            });
+            timeAnalytics("recipes()", () -> averageByCuisine(bst.recipes()));
+            timeAnalytics("recipes().parallel()", () -> averageByCuisine(bst.recipes().parallel()));
+        }
+    }
+
+    private static int averageByCuisine(Stream<Recipe> recipes) {
+        return recipes.collect(Collectors.groupingBy(Recipe::getCuisine,
+                Collectors.averagingInt(Recipe::getCookingTime))).size();
+    }
+
+    private static void timeAnalytics(String label, Supplier<Integer> query) {
+        long start = System.nanoTime();
+        int groups = query.get();
+        System.out.printf("  %-22s %8.1f ms (%d cuisines)%n", label, (System.nanoTime() - start) / 1e6, groups);
+    }
+
+    // One parallel pass over the catalog, then the cost analytics add to each insert and delete
+    static void catalogAnalytics(int size) {
+        Recipe[] recipes = randomCatalog(size, 1_000, 42);
+        System.out.printf("n=%,d, %d cores%n", size, Runtime.getRuntime().availableProcessors());
+        for (int round = 1; round <= 3; round++) {
+            long start = System.nanoTime();
+            CatalogAnalytics.Totals totals = CatalogAnalytics.compute(Arrays.stream(recipes).parallel());
+            long nanos = System.nanoTime() - start;
+            System.out.printf("round %d: full recompute %.0f ms (%,.0f recipes/s), %,d ingredient pairs%n", round,
+                    nanos / 1e6, size * 1e9 / nanos, totals.pairs.size());
+        }
+
+        RecipeBST bst = new RecipeBST();
+        bst.insertAll(Arrays.asList(recipes));
+        long start = System.nanoTime();
+        CatalogAnalytics analytics = new CatalogAnalytics(bst);
+        System.out.printf("live analytics over the tree built in %.0f ms%n", (System.nanoTime() - start) / 1e6);
+        Recipe[] extra = randomCatalog(Math.min(size, 100_000), 1_000, 7);
+        for (int round = 1; round <= 3; round++) {
+            start = System.nanoTime();
+            for (Recipe recipe : extra) {
+                bst.insert(recipe);
+            }
+            for (Recipe recipe : extra) {
+                bst.delete(recipe.getName());
+            }
+            System.out.printf("round %d: insert+delete with analytics %.0f ns/pair%n", round,
+                    (double) (System.nanoTime() - start) / extra.length);
+        }
+        start = System.nanoTime();
+        List<CatalogAnalytics.CuisineSummary> cuisines = analytics.cuisines();
+        List<CatalogAnalytics.Tally> top = analytics.topIngredients(3);
+        List<CatalogAnalytics.Tally> pairs = analytics.topPairs(3);
+        System.out.printf("dashboard read %.2f ms: %s; top %s; pairs %s%n", (System.nanoTime() - start) / 1e6,
+                cuisines.get(0), top, pairs);
+    }
+
+    // Plans size meals over a simulated day, moves and cancels a tenth of them, then lets worker
+    // threads drain due plans in batches while the clock advances one minute at a time
+    static void mealScheduling(int size) {
+        Recipe[] recipes = randomCatalog(Math.min(size, 10_000), 1_000, 42);
+        MealScheduler.SimulatedClock clock = new MealScheduler.SimulatedClock(0);
+        MealScheduler scheduler = new MealScheduler(clock);
+        long day = TimeUnit.DAYS.toMillis(1);
+        Random random = new Random(3);
+        long[] handles = new long[size];
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            handles[i] = scheduler.schedule(recipes[i % recipes.length], (long) (random.nextDouble() * day));
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("schedule %,d plans: %.0f ns/plan%n", size, (double) nanos / size);
+        start = System.nanoTime();
+        int moves = size / 10;
+        for (int i = 0; i < moves; i++) {
+            scheduler.reschedule(handles[random.nextInt(size)], (long) (random.nextDouble() * day));
+        }
+        for (int i = 0; i < moves; i++) {
+            scheduler.cancel(handles[random.nextInt(size)]);
+        }
+        nanos = System.nanoTime() - start;
+        System.out.printf("reschedule/cancel %,d each: %.0f ns/op, %,d plans left%n", moves,
+                (double) nanos / (2 * moves), scheduler.size());
+
+        int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        LongAdder started = new LongAdder();
+        int expected = scheduler.size();
+        Thread[] threads = new Thread[workers];
+        for (int w = 0; w < workers; w++) {
+            threads[w] = new Thread(() -> {
+                try {
+                    while (true) {
+                        List<MealScheduler.Plan> batch = scheduler.takeDue(256);
+                        if (batch.isEmpty()) {
+                            return;
                         }
-                        break;
+                        started.add(batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[w].start();
+        }
+        start = System.nanoTime();
+        clock.set(-TimeUnit.HOURS.toMillis(2)); // earliest start: a 2-hour recipe served at midnight
+        while (started.sum() < expected) {
+            clock.advance(minute);
+            while (scheduler.nextStart() <= clock.millis()) {
+                Thread.onSpinWait(); // let the workers catch up before the next minute
+            }
+        }
+        nanos = System.nanoTime() - start;
+        scheduler.close();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.printf("drained %,d plans with %d workers in %.0f ms (%,.0f plans/s)%n", started.sum(), workers,
+                nanos / 1e6, started.sum() * 1e9 / nanos);
+    }
 
-                    case 7:
-                        try {
-                            System.out.println("Sort Recipes:");
-                            System.out.println("1. Sort by No. of Ingredients (Bubble Sort)");
-                            System.out.println("2. Sort by Popularity (Insertion Sort)");
-                            System.out.println("3. Sort by Cuisine alphabetically (Quick Sort)");
-                            System.out.print("Enter your choice: ");
-                            int sortChoice = scanner.nextInt();
-                            scanner.nextLine(); // Consume newline
+    // Full refresh of a shuffled catalog: one insert per recipe against insertAll and bulkLoad,
+    // then a bulk delete of every other recipe
+    static void bulkLoad(int size) {
+        Recipe[] recipes = sortedCatalog(size);
+        Collections.shuffle(Arrays.asList(recipes), new Random(5));
+        List<Recipe> catalog = Arrays.asList(recipes);
+        List<String> half = new ArrayList<>(size / 2);
+        for (int i = 0; i < size; i += 2) {
+            half.add(recipes[i].getName());
+        }
+        for (int round = 1; round <= 3; round++) {
+            RecipeBST single = new RecipeBST();
+            long start = System.nanoTime();
+            for (Recipe recipe : recipes) {
+                single.insert(recipe);
+            }
+            long insertNanos = System.nanoTime() - start;
+            single = null;
 
-                            switch (sortChoice) {
-                                case 1:
-                                    RecipeSort.bubbleSortByIngredients(recipeList);
-                                    RecipeSort.printRecipes(recipeList);
-                                    break;
-                                case 2:
-                                    RecipeSort.insertionSortByPopularity(recipeList);
-                                    RecipeSort.printRecipes(recipeList);
-                                    break;
-                                case 3:
-                                    RecipeSort.quickSortByCuisine(recipeList, 0, recipeList.size() - 1);
-                                    RecipeSort.printRecipes(recipeList);
-                                    break;
-                                default:
-                                    System.out.println("Invalid choice.");
-                                    break;
+            RecipeBST batched = new RecipeBST();
+            start = System.nanoTime();
+            batched.insertAll(catalog);
+            long insertAllNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            batched.bulkLoad(catalog);
+            long refreshNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int deleted = batched.deleteAll(half);
+            long deleteAllNanos = System.nanoTime() - start;
+            System.out.printf("round %d: insert each %.0f ms, insertAll %.0f ms, bulkLoad over the full tree %.0f ms, "
+                    + "deleteAll %,d in %.0f ms (height %d)%n", round, insertNanos / 1e6, insertAllNanos / 1e6,
+                    refreshNanos / 1e6, deleted, deleteAllNanos / 1e6, batched.height());
+        }
+
+        // The key sort both batch paths start with, against the plain comparator sort it replaces
+        RecipeNode[] nodes = new RecipeNode[size];
+        Arrays.parallelSetAll(nodes, i -> new RecipeNode(recipes[i]));
+        for (int round = 1; round <= 3; round++) {
+            RecipeNode[] packed = nodes.clone();
+            long start = System.nanoTime();
+            RecipeBST.sortByKey(packed, 0, packed.length, 0);
+            long packedNanos = System.nanoTime() - start;
+
+            RecipeNode[] compared = nodes.clone();
+            start = System.nanoTime();
+            Arrays.parallelSort(compared, RecipeBST.KEY_ORDER);
+            long comparedNanos = System.nanoTime() - start;
+            System.out.printf("round %d: key sort %.0f ms packed, %.0f ms parallelSort(KEY_ORDER)%s%n", round,
+                    packedNanos / 1e6, comparedNanos / 1e6, Arrays.equals(packed, compared) ? "" : ", ORDERS DIFFER");
+        }
+    }
+
+    // Lookups per second from 1, 2, 4... reader threads while one writer inserts and deletes
+    // without pause; readers never lock, so their rate should grow with the cores available
+    static void snapshotReads(int size) {
+        Recipe[] recipes = sortedCatalog(size);
+        RecipeBST bst = new RecipeBST();
+        bst.bulkLoad(Arrays.asList(recipes));
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int readers = 1; readers <= Math.max(2, cores); readers *= 2) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder reads = new LongAdder();
+            LongAdder writes = new LongAdder();
+            LongAdder found = new LongAdder();
+            List<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> {
+                Random random = new Random(1);
+                while (running.get()) {
+                    Recipe recipe = recipes[random.nextInt(recipes.length)];
+                    bst.delete(recipe.getName());
+                    bst.insert(recipe);
+                    writes.add(2);
+                }
+            }));
+            for (int r = 0; r < readers; r++) {
+                int seed = r;
+                threads.add(new Thread(() -> {
+                    Random random = new Random(seed);
+                    while (running.get()) {
+                        int hits = 0;
+                        for (int i = 0; i < 1024; i++) {
+                            if (bst.search(recipes[random.nextInt(recipes.length)].getName()) != null) {
+                                hits++;
                             }
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while sorting recipes: " + e.getMessage());
                         }
-                        break;
+                        reads.add(1024);
+                        found.add(hits);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            threads.forEach(Thread::start);
+            try {
+                Thread.sleep(2_000);
+                running.set(false);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d readers: %,.0f reads/s (%,.0f per reader, %.1f%% found), writer %,.0f writes/s%n",
+                    readers, reads.sum() / seconds, reads.sum() / seconds / readers, 100.0 * found.sum() / reads.sum(),
+                    writes.sum() / seconds);
+        }
+    }
 
-                    case 8:
-                        try {
-                            System.out.print("Enter the recipe name to add to favorites: ");
-                            String favName = scanner.nextLine();
-                            fav.addFavoriteRecipeByName(favName);
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while adding recipe to favorites: " + e.getMessage());
-                        }
-                        break;
+    // A catalog where every fourth recipe is a variant of an earlier one with an ingredient
+    // swapped, so queries have real neighbours; reports build cost, top-10 latency and how many
+    // of the close neighbours in the exact top 10 (from a full scan) the LSH candidates find
+    static void similarRecipes(int size) {
+        Recipe[] recipes = randomCatalog(size, 2_000, 42);
+        Random random = new Random(11);
+        for (int i = 3; i < size; i += 4) {
+            Recipe base = recipes[random.nextInt(i)];
+            List<String> ingredients = new ArrayList<>(base.getIngredients());
+            ingredients.set(random.nextInt(ingredients.size()), "Ingredient " + random.nextInt(2_000));
+            recipes[i] = new Recipe(recipes[i].getName(), base.getCuisine(), ingredients, base.getCookingTime(),
+                    base.getServings(), 1 + random.nextInt(10));
+        }
+        RecipeBST bst = new RecipeBST();
+        bst.bulkLoad(Arrays.asList(recipes));
+        long start = System.nanoTime();
+        RecipeSimilarity similarity = new RecipeSimilarity(bst);
+        System.out.printf("signatures for %,d recipes in %.0f ms%n", similarity.size(),
+                (System.nanoTime() - start) / 1e6);
 
-                    case 9:
-                        try {
-                            fav.displayFavoriteRecipes();
-                        } catch (Exception e) {
-                            System.out.println("Error occurred while displaying favorite recipes: " + e.getMessage());
-                        }
-                        break;
+        int queries = 20_000;
+        long[] latencies = new long[queries];
+        long found = 0;
+        for (int q = -2_000; q < queries; q++) {
+            Recipe recipe = recipes[random.nextInt(size)];
+            start = System.nanoTime();
+            List<RecipeSimilarity.Match> top = similarity.similar(recipe, 10);
+            long elapsed = System.nanoTime() - start;
+            if (q >= 0) {
+                latencies[q] = elapsed;
+                found += top.size();
+            }
+        }
+        printLatencies("similar top-10 over " + bst.size() + " recipes", latencies);
+        System.out.printf("%.1f matches per query%n", (double) found / queries);
 
-                    case 10:
-                        System.out.println("Enter Recipe Name to delete");
-                        String r = scanner.nextLine();
-                        // recipeBST.search(r);
-                        recipeBST.delete(r);
-                        // recipeList.remove(r);
-                        break;
+        int[][] hashesById = new int[size][];
+        for (int i = 0; i < size; i++) {
+            hashesById[i] = RecipeSimilarity.ingredientHashes(recipes[i]);
+        }
+        int reached = 0;
+        int wanted = 0;
+        for (int q = 0; q < 50; q++) {
+            Recipe recipe = recipes[random.nextInt(size)];
+            int[] hashes = RecipeSimilarity.ingredientHashes(recipe);
+            Set<Recipe> returned = new HashSet<>();
+            for (RecipeSimilarity.Match match : similarity.similar(recipe, 10)) {
+                returned.add(match.recipe);
+            }
+            // The exact top 10 by a full scan; those sharing at least 40% of their ingredients
+            // are the neighbours LSH has to find
+            PriorityQueue<double[]> exact = new PriorityQueue<>(Comparator.comparingDouble(e -> e[0]));
+            for (int i = 0; i < size; i++) {
+                if (recipes[i] == recipe) {
+                    continue;
+                }
+                double jaccard = RecipeSimilarity.jaccard(hashes, hashesById[i]);
+                exact.add(new double[] { RecipeSimilarity.score(jaccard,
+                        recipes[i].getCuisine().equals(recipe.getCuisine()), recipes[i].getPopularity()),
+                        jaccard, i });
+                if (exact.size() > 10) {
+                    exact.poll();
+                }
+            }
+            for (double[] e : exact) {
+                if (e[1] >= 0.4) {
+                    wanted++;
+                    if (returned.contains(recipes[(int) e[2]])) {
+                        reached++;
+                    }
+                }
+            }
+        }
+        System.out.printf("recall@10 for neighbours with Jaccard >= 0.4: %d of %d (%.0f%%)%n", reached, wanted,
+                100.0 * reached / Math.max(1, wanted));
 
-                    case 11:
+        // The first round includes growing the id arrays and bucket tables
+        Recipe[] extra = randomCatalog(Math.min(size, 100_000), 2_000, 7);
+        for (int round = 1; round <= 3; round++) {
+            start = System.nanoTime();
+            for (Recipe recipe : extra) {
+                bst.insert(recipe);
+            }
+            for (Recipe recipe : extra) {
+                bst.delete(recipe.getName());
+            }
+            System.out.printf("round %d: insert+delete with signatures %.0f ns/pair%n", round,
+                    (double) (System.nanoTime() - start) / extra.length);
+        }
+    }
 
-                        System.out.println("Exiting the application...");
-                        break;
+    static void multiKeySort(int size) {
+        Recipe[] catalog = sortedCatalog(size);
+        Collections.shuffle(Arrays.asList(catalog), new Random(11));
+        RecipeOrder order = RecipeOrder.by(RecipeField.CUISINE).thenDescending(RecipeField.POPULARITY)
+                .then(RecipeField.COOKING_TIME);
+        for (int round = 1; round <= 5; round++) {
+            List<Recipe> recipes = new ArrayList<>(Arrays.asList(catalog));
+            long start = System.nanoTime();
+            RecipeSorter.sort(recipes, order);
+            System.out.printf("round %d: sorted %d recipes by cuisine, popularity desc, time in %.1f ms%n", round,
+                    size, (System.nanoTime() - start) / 1e6);
+        }
+    }
 
-                    default:
-                        System.out.println("Invalid choice! Please try again.");
-                        break;
+    static void bulkImport(int size) {
+        try {
+            Path dir = Files.createTempDirectory("recipe-import");
+            Path csv = dir.resolve("catalog.csv");
+            Path jsonl = dir.resolve("catalog.jsonl");
+            try (BufferedWriter csvOut = Files.newBufferedWriter(csv, StandardCharsets.UTF_8);
+                    BufferedWriter jsonOut = Files.newBufferedWriter(jsonl, StandardCharsets.UTF_8)) {
+                csvOut.write("name,cuisine,ingredients,cookingTime,servings,popularity\n");
+                for (Recipe r : randomCatalog(size, 2000, 5)) {
+                    csvOut.write(r.getName() + "," + r.getCuisine() + "," + String.join(";", r.getIngredients()) + ","
+                            + r.getCookingTime() + "," + r.getServings() + "," + r.getPopularity() + "\n");
+                    jsonOut.write("{\"name\":\"" + r.getName() + "\",\"cuisine\":\"" + r.getCuisine()
+                            + "\",\"ingredients\":[\"" + String.join("\",\"", r.getIngredients()) + "\"],\"cookingTime\":"
+                            + r.getCookingTime() + ",\"servings\":" + r.getServings() + ",\"popularity\":"
+                            + r.getPopularity() + "}\n");
                 }
+                csvOut.write("Broken,Row,,x,1,1\n");
+            }
+            for (Path source : new Path[] { csv, jsonl }) {
+                RecipeBST bst = new RecipeBST();
+                RecipeImporter importer = new RecipeImporter(bst, dir.resolve("rejects.tsv"),
+                        Runtime.getRuntime().availableProcessors());
+                long start = System.nanoTime();
+                importer.importFile(source);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%s: %,d imported, %,d rejected in %.2f s (%,.0f recipes/s, %,d MB file)%n",
+                        source.getFileName(), importer.imported(), importer.rejected(), seconds,
+                        importer.imported() / seconds, Files.size(source) >> 20);
+            }
+        } catch (IOException e) {
+            System.out.println("Import benchmark failed: " + e.getMessage());
+        }
+    }
 
-            } catch (InputMismatchException e) {
-                System.out.println("Invalid input. Please enter a number.");
-                scanner.nextLine(); // Clear the invalid input
+    static void snapshotColdStart(int size) {
+        try {
+            Path file = Files.createTempFile("recipes", ".snapshot");
+            RecipeBST bst = new RecipeBST();
+            bst.insertAll(Arrays.asList(randomCatalog(size, 2000, 9)));
+            List<Recipe> sorted = bst.inOrder();
+            long start = System.nanoTime();
+            RecipeSnapshot.write(sorted, 0, file);
+            System.out.printf("wrote %,d recipes (%,d MB) in %.0f ms%n", sorted.size(), Files.size(file) >> 20,
+                    (System.nanoTime() - start) / 1e6);
+
+            // A restart: lookups are answered from the map while the tree is restored behind them
+            Path log = file.resolveSibling(file.getFileName() + ".wal");
+            start = System.nanoTime();
+            DurableRecipeCatalog durable = new DurableRecipeCatalog(new RecipeBST(), file, log, 5, false);
+            Recipe first = durable.search(sorted.get(sorted.size() / 2).getName());
+            System.out.printf("open + first search: %.2f ms (%s)%n", (System.nanoTime() - start) / 1e6,
+                    first == null ? "miss" : "hit");
+
+            Random random = new Random(3);
+            long[] latencies = new long[100_000];
+            for (int i = 0; i < latencies.length; i++) {
+                String name = sorted.get(random.nextInt(sorted.size())).getName();
+                long t = System.nanoTime();
+                durable.search(name);
+                latencies[i] = System.nanoTime() - t;
             }
+            printLatencies("mapped search before restore", latencies);
 
-        } while (choice != 11);
-        scanner.close();
+            durable.awaitRestored();
+            System.out.printf("open + full restore into RecipeBST: %.0f ms%n", (System.nanoTime() - start) / 1e6);
+            durable.close();
+            for (long number : RecipeWriteAheadLog.segmentNumbers(log)) {
+                Files.delete(RecipeWriteAheadLog.segmentPath(log, number));
+            }
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("Snapshot benchmark failed: " + e.getMessage());
+        }
+    }
+
+    // Durable inserts from 64 writer threads for a few seconds per configuration, with and
+    // without fsync. Each writer waits for its commit, so throughput is bounded by
+    // writers / window and grows with the number of concurrent writers.
+    static void walThroughput(int size) {
+        Recipe[] recipes = randomCatalog(size, 2000, 13);
+        int threads = 64;
+        long runNanos = 3_000_000_000L;
+        for (boolean fsync : new boolean[] { false, true }) {
+            for (long window : new long[] { 1, 5, 20 }) {
+                try {
+                    Path dir = Files.createTempDirectory("recipe-wal");
+                    RecipeBST bst = new RecipeBST();
+                    DurableRecipeCatalog catalog = new DurableRecipeCatalog(bst, dir.resolve("recipes.snapshot"),
+                            dir.resolve("recipes.wal"), window, fsync);
+                    AtomicLong next = new AtomicLong();
+                    long deadline = System.nanoTime() + runNanos;
+                    Thread[] writers = new Thread[threads];
+                    long start = System.nanoTime();
+                    for (int t = 0; t < threads; t++) {
+                        writers[t] = new Thread(() -> {
+                            try {
+                                while (System.nanoTime() < deadline) {
+                                    catalog.insert(recipes[(int) (next.getAndIncrement() % recipes.length)]);
+                                }
+                            } catch (IOException e) {
+                                System.out.println("insert failed: " + e.getMessage());
+                            }
+                        });
+                        writers[t].start();
+                    }
+                    for (Thread writer : writers) {
+                        writer.join();
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    catalog.close();
+                    System.out.printf("fsync=%s window=%d ms: %,.0f inserts/s (%d writers)%n", fsync, window,
+                            next.get() / seconds, threads);
+                } catch (IOException e) {
+                    System.out.println("WAL benchmark failed: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Retained heap per recipe for RecipeBST versus CompactRecipeStore. Ingredient strings are
+    // copied per recipe, as they are when typed into the menu or split from a file line.
+    static void memoryPerRecipe(int size) {
+        Recipe[] template = randomCatalog(size, 2000, 17);
+        long baseline = usedHeapAfterGc();
+        RecipeBST bst = new RecipeBST();
+        for (Recipe r : template) {
+            bst.insert(copyOf(r));
+        }
+        long objects = usedHeapAfterGc() - baseline;
+        System.out.printf("RecipeBST:          %,d recipes, %,d bytes/recipe%n", bst.size(), objects / size);
+        bst = null;
+
+        baseline = usedHeapAfterGc();
+        CompactRecipeStore store = new CompactRecipeStore();
+        for (Recipe r : template) {
+            store.add(copyOf(r));
+        }
+        long compact = usedHeapAfterGc() - baseline;
+        System.out.printf("CompactRecipeStore: %,d recipes, %,d bytes/recipe%n", store.size(), compact / size);
+    }
+
+    private static Recipe copyOf(Recipe r) {
+        List<String> ingredients = new ArrayList<>();
+        for (String ingredient : r.getIngredients()) {
+            ingredients.add(new String(ingredient.toCharArray()));
+        }
+        return new Recipe(new String(r.getName().toCharArray()), new String(r.getCuisine().toCharArray()),
+                ingredients, r.getCookingTime(), r.getServings(), r.getPopularity());
+    }
+
+    // Heap held, full-collection pause and collector time under a search/insert/delete churn,
+    // first with the catalog in a RecipeBST and then in an OffHeapRecipeStore
+    static void offHeapStore(int size) {
+        Recipe[] template = randomCatalog(size, 2000, 17);
+        long baseline = usedHeapAfterGc();
+        RecipeBST bst = new RecipeBST();
+        for (Recipe r : template) {
+            bst.insert(copyOf(r));
+        }
+        long heap = usedHeapAfterGc() - baseline;
+        System.out.printf("RecipeBST:           %,d recipes, %,d heap bytes/recipe, full GC %.0f ms%n", bst.size(),
+                heap / size, fullGcMillis());
+        gcUnderChurn("RecipeBST", template, bst::search, bst::insert, bst::delete);
+        bst = null;
+
+        baseline = usedHeapAfterGc();
+        OffHeapRecipeStore store = new OffHeapRecipeStore();
+        for (Recipe r : template) {
+            store.insert(r);
+        }
+        heap = usedHeapAfterGc() - baseline;
+        System.out.printf("OffHeapRecipeStore:  %,d recipes, %,d heap bytes/recipe, %,d off-heap bytes/recipe, "
+                + "full GC %.0f ms%n", store.size(), heap / size, store.offHeapBytes() / size, fullGcMillis());
+        gcUnderChurn("OffHeapRecipeStore", template, store::search, store::insert, store::delete);
+        store.close();
+    }
+
+    private static double fullGcMillis() {
+        long start = System.nanoTime();
+        System.gc();
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    // Searches with a delete and re-insert every tenth operation; collector time is what the
+    // GC beans report over the run
+    private static void gcUnderChurn(String label, Recipe[] template, Function<String, Recipe> search,
+            Predicate<Recipe> insert, Predicate<String> delete) {
+        List<java.lang.management.GarbageCollectorMXBean> beans =
+                java.lang.management.ManagementFactory.getGarbageCollectorMXBeans();
+        long collections = 0;
+        long gcMillis = 0;
+        for (java.lang.management.GarbageCollectorMXBean bean : beans) {
+            collections -= bean.getCollectionCount();
+            gcMillis -= bean.getCollectionTime();
+        }
+        Random random = new Random(9);
+        int operations = 2_000_000;
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            Recipe recipe = template[random.nextInt(template.length)];
+            if (i % 10 == 0 && delete.test(recipe.getName())) {
+                insert.test(copyOf(recipe));
+            } else if (search.apply(recipe.getName()) != null) {
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        for (java.lang.management.GarbageCollectorMXBean bean : beans) {
+            collections += bean.getCollectionCount();
+            gcMillis += bean.getCollectionTime();
+        }
+        System.out.printf("%s churn: %.0f ns/op, %d found, %d collections, %d ms in GC%n", label,
+                (double) nanos / operations, found, collections, gcMillis);
+    }
+
+    static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void printLatencies(String label, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s: p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", label, sorted[sorted.length / 2] / 1e6,
+                sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    static void sortedInsertAndSearch(int size) {
+        Recipe[] recipes = sortedCatalog(size);
+        for (int round = 1; round <= 3; round++) {
+            RecipeBST bst = new RecipeBST();
+            long start = System.nanoTime();
+            for (Recipe recipe : recipes) {
+                bst.insert(recipe);
+            }
+            long insertNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int found = 0;
+            for (Recipe recipe : recipes) {
+                if (bst.search(recipe.getName()) != null) {
+                    found++;
+                }
+            }
+            long searchNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: n=%d height=%d insert %.1f ns/op, search %.1f ns/op (%d found)%n", round,
+                    bst.size(), bst.height(), (double) insertNanos / size, (double) searchNanos / size, found);
+        }
+    }
+}
+
+
+// Parameterized micro-benchmark suite over every structure in this file, in the spirit of JMH:
+//   java -cp . RecipeBenchmark suite [--sizes 1000,100000] [--orders random,sorted,reverse,duplicates]
+//        [--warmup 2] [--iterations 5] [--out results.json]
+// Each case gets fresh state per iteration (built outside the timed region), runs warmup
+// iterations, then reports throughput, average time per operation and bytes allocated per
+// operation by the benchmark thread. Results are also written as JSON for comparing runs.
+class RecipeBenchmarkSuite {
+    static final String[] ORDERS = { "random", "sorted", "reverse", "duplicates" };
+
+    private final int warmup;
+    private final int iterations;
+    private final List<String> results = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads;
+
+    RecipeBenchmarkSuite(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        this.threads = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    static void run(String[] args) {
+        String sizes = recipe_manager.optionValue(args, "--sizes", "1000,10000,100000,1000000");
+        String orders = recipe_manager.optionValue(args, "--orders", String.join(",", ORDERS));
+        RecipeBenchmarkSuite suite = new RecipeBenchmarkSuite(
+                Integer.parseInt(recipe_manager.optionValue(args, "--warmup", "2")),
+                Integer.parseInt(recipe_manager.optionValue(args, "--iterations", "5")));
+        System.out.printf("%-28s %-10s %10s %16s %14s %12s%n", "benchmark", "order", "size", "ops/s", "ns/op",
+                "B/op");
+        // Benchmark chatter (favorites, empty pops) would otherwise flood the console
+        PrintStream console = System.out;
+        for (String sizeText : sizes.split(",")) {
+            int size = Integer.parseInt(sizeText.trim());
+            for (String order : orders.split(",")) {
+                suite.runAll(order.trim(), size, console);
+            }
+        }
+        String out = recipe_manager.optionValue(args, "--out", null);
+        if (out != null) {
+            try {
+                Files.write(Paths.get(out), ("[\n" + String.join(",\n", suite.results) + "\n]\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                System.out.println("Results written to " + out);
+            } catch (IOException e) {
+                System.out.println("Could not write results: " + e.getMessage());
+            }
+        }
+    }
+
+    static Recipe[] catalog(String order, int size) {
+        Recipe[] recipes = RecipeBenchmark.sortedCatalog(size);
+        switch (order) {
+            case "random":
+                Collections.shuffle(Arrays.asList(recipes), new Random(size));
+                break;
+            case "reverse":
+                Collections.reverse(Arrays.asList(recipes));
+                break;
+            case "duplicates":
+                // Only a tenth of the names are distinct, shuffled
+                int distinct = Math.max(1, size / 10);
+                for (int i = 0; i < size; i++) {
+                    Recipe r = recipes[i % distinct];
+                    recipes[i] = new Recipe(r.getName(), r.getCuisine(), r.getIngredients(), 10 + i % 50, 1 + i % 6,
+                            1 + i % 10);
+                }
+                Collections.shuffle(Arrays.asList(recipes), new Random(size));
+                break;
+            default:
+                break;
+        }
+        return recipes;
+    }
+
+    private void runAll(String order, int size, PrintStream console) {
+        Recipe[] recipes = catalog(order, size);
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = recipes[i].getName();
+        }
+
+        measure("bst.insert", order, size, console, () -> new RecipeBST(), bst -> {
+            for (Recipe recipe : recipes) {
+                bst.insert(recipe);
+            }
+            return recipes.length;
+        });
+        measure("bst.insertAll", order, size, console, () -> new RecipeBST(), bst -> {
+            bst.insertAll(Arrays.asList(recipes));
+            return recipes.length;
+        });
+        RecipeBST loaded = new RecipeBST();
+        loaded.insertAll(Arrays.asList(recipes));
+        measure("bst.search", order, size, console, () -> loaded, bst -> {
+            for (String name : names) {
+                bst.search(name);
+            }
+            return names.length;
+        });
+        measure("bst.searchMiss", order, size, console, () -> loaded, bst -> {
+            for (String name : names) {
+                bst.search(name + "?");
+            }
+            return names.length;
+        });
+        measure("bst.inOrder", order, size, console, () -> loaded, bst -> bst.inOrder().size());
+        measure("bst.delete", order, size, console, () -> {
+            RecipeBST bst = new RecipeBST();
+            bst.insertAll(Arrays.asList(recipes));
+            return bst;
+        }, bst -> {
+            for (String name : names) {
+                bst.delete(name);
+            }
+            return names.length;
+        });
+
+        measure("sort.ingredients", order, size, console, () -> new ArrayList<>(Arrays.asList(recipes)), list -> {
+            RecipeSort.bubbleSortByIngredients(list);
+            return list.size();
+        });
+        measure("sort.popularity", order, size, console, () -> new ArrayList<>(Arrays.asList(recipes)), list -> {
+            RecipeSort.insertionSortByPopularity(list);
+            return list.size();
+        });
+        measure("sort.cuisine", order, size, console, () -> new ArrayList<>(Arrays.asList(recipes)), list -> {
+            RecipeSort.quickSortByCuisine(list, 0, list.size() - 1);
+            return list.size();
+        });
+        RecipeOrder threeKeys = RecipeOrder.by(RecipeField.CUISINE).thenDescending(RecipeField.POPULARITY)
+                .then(RecipeField.COOKING_TIME);
+        measure("sort.threeKeys", order, size, console, () -> new ArrayList<>(Arrays.asList(recipes)), list -> {
+            RecipeSorter.sort(list, threeKeys);
+            return list.size();
+        });
+
+        measure("stack.pushPop", order, size, console, Stack::new, stack -> {
+            for (Recipe recipe : recipes) {
+                stack.push(recipe);
+            }
+            for (int i = 0; i < recipes.length; i++) {
+                stack.pop();
+            }
+            return 2L * recipes.length;
+        });
+        measure("queue.enqueueDequeue", order, size, console, () -> new CircularQueue(1024), queue -> {
+            for (Recipe recipe : recipes) {
+                queue.enqueue(recipe);
+                queue.dequeue();
+            }
+            return 2L * recipes.length;
+        });
+        measure("favorites.add", order, Math.min(size, 10_000), console, () -> new FavoritesManager(loaded), fav -> {
+            int n = Math.min(names.length, 10_000);
+            for (int i = 0; i < n; i++) {
+                fav.addFavoriteRecipeByName(names[i]);
+            }
+            return n;
+        });
+    }
 
+    private <T> void measure(String name, String order, int size, PrintStream console, Supplier<T> setup,
+            ToLongFunction<T> body) {
+        long totalOps = 0, totalNanos = 0, totalBytes = 0;
+        long threadId = Thread.currentThread().getId();
+        PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+        for (int i = 0; i < warmup + iterations; i++) {
+            T state = setup.get();
+            System.setOut(silent);
+            long bytesBefore = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long ops;
+            try {
+                ops = body.applyAsLong(state);
+            } finally {
+                System.setOut(console);
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytes = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+            if (i >= warmup) {
+                totalOps += ops;
+                totalNanos += elapsed;
+                totalBytes += bytes;
+            }
+        }
+        double opsPerSecond = totalOps * 1e9 / Math.max(totalNanos, 1);
+        double nanosPerOp = (double) totalNanos / Math.max(totalOps, 1);
+        double bytesPerOp = threads == null ? -1 : (double) totalBytes / Math.max(totalOps, 1);
+        System.out.printf("%-28s %-10s %10d %,16.0f %,14.1f %12.1f%n", name, order, size, opsPerSecond, nanosPerOp,
+                bytesPerOp);
+        results.add(String.format(Locale.ROOT,
+                "  {\"benchmark\": \"%s\", \"order\": \"%s\", \"size\": %d, \"opsPerSecond\": %.1f, "
+                        + "\"nanosPerOp\": %.2f, \"bytesPerOp\": %.2f, \"iterations\": %d}",
+                name, order, size, opsPerSecond, nanosPerOp, bytesPerOp, iterations));
     }
 }